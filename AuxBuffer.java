@@ -0,0 +1,165 @@
+import java.util.Arrays;
+
+/**
+ * First hit features of every pixel: surface normal, depth along the
+ * camera ray and albedo, averaged over the samples of the pixel like Film.
+ * They are noise free apart from antialiasing, so the denoiser uses them to
+ * find edges the noisy radiance hides.
+ *
+ * @author Jeremy Parker Yang
+ *
+ */
+public class AuxBuffer {
+
+	// albedo of pixels that see the sky, same as the sky color of shade
+	final static double[] SKY = { 201d / 255, 226d / 255, 1 };
+
+	// image size
+	private final int width;
+	private final int height;
+
+	// per pixel sums
+	private final double[] normal; // xyz, zero where the sky is seen
+	private final double[] depth;
+	private final double[] albedo; // rgb
+	private final int[] hits; // number of samples that hit a mesh
+	private final int[] count; // number of samples
+
+	/**
+	 * Create a new empty buffer with size width by height
+	 *
+	 * @param width  in pixels
+	 * @param height in pixels
+	 */
+	public AuxBuffer(int width, int height) {
+		this.width = width;
+		this.height = height;
+		normal = new double[3 * width * height];
+		depth = new double[width * height];
+		albedo = new double[3 * width * height];
+		hits = new int[width * height];
+		count = new int[width * height];
+	}
+
+	/**
+	 * Empty the buffer, to fill it again for another frame
+	 */
+	public void clear() {
+		Arrays.fill(normal, 0);
+		Arrays.fill(depth, 0);
+		Arrays.fill(albedo, 0);
+		Arrays.fill(hits, 0);
+		Arrays.fill(count, 0);
+	}
+
+	/**
+	 * Add the first hit of one sample to a pixel. Pixels may be written
+	 * from different threads as long as each pixel is only written by one
+	 * at a time.
+	 *
+	 * @param ray camera ray with its collision info
+	 * @param hit true if the camera ray hit a mesh
+	 */
+	public void add(int x, int y, Ray ray, boolean hit) {
+		int p = x + y * width;
+		if (hit) {
+			normal[3 * p] += ray.n.getX();
+			normal[3 * p + 1] += ray.n.getY();
+			normal[3 * p + 2] += ray.n.getZ();
+			depth[p] += ray.tuv.getX();
+			albedo[3 * p] += Material.ALBEDO;
+			albedo[3 * p + 1] += Material.ALBEDO;
+			albedo[3 * p + 2] += Material.ALBEDO;
+			hits[p]++;
+		} else {
+			albedo[3 * p] += SKY[0];
+			albedo[3 * p + 1] += SKY[1];
+			albedo[3 * p + 2] += SKY[2];
+		}
+		count[p]++;
+	}
+
+	/**
+	 * Average normal of a pixel, shorter than 1 where it is partly sky
+	 *
+	 * @param c 0 for x, 1 for y, 2 for z
+	 */
+	public double getNormal(int x, int y, int c) {
+		int p = x + y * width;
+		return count[p] == 0 ? 0 : normal[3 * p + c] / count[p];
+	}
+
+	/**
+	 * Average depth of the samples of a pixel that hit a mesh, 0 if none did
+	 */
+	public double getDepth(int x, int y) {
+		int p = x + y * width;
+		return hits[p] == 0 ? 0 : depth[p] / hits[p];
+	}
+
+	/**
+	 * Average albedo of a pixel
+	 *
+	 * @param c 0 for red, 1 for green, 2 for blue
+	 */
+	public double getAlbedo(int x, int y, int c) {
+		int p = x + y * width;
+		return count[p] == 0 ? 0 : albedo[3 * p + c] / count[p];
+	}
+
+	/**
+	 * Normals as a film, xyz in rgb
+	 */
+	public Film normalFilm() {
+		Film film = new Film(width, height);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				film.add(x, y, getNormal(x, y, 0), getNormal(x, y, 1),
+						getNormal(x, y, 2));
+			}
+		}
+		return film;
+	}
+
+	/**
+	 * Depths as a film, the same in every channel
+	 */
+	public Film depthFilm() {
+		Film film = new Film(width, height);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				double d = getDepth(x, y);
+				film.add(x, y, d, d, d);
+			}
+		}
+		return film;
+	}
+
+	/**
+	 * Albedos as a film
+	 */
+	public Film albedoFilm() {
+		Film film = new Film(width, height);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				film.add(x, y, getAlbedo(x, y, 0), getAlbedo(x, y, 1),
+						getAlbedo(x, y, 2));
+			}
+		}
+		return film;
+	}
+
+	/**
+	 * @return width of buffer
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * @return height of buffer
+	 */
+	public int getHeight() {
+		return height;
+	}
+}
@@ -0,0 +1,694 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Bounding volume hierarchy over the triangles of a mesh or the meshes of a
+ * scene. The tree is built once with the surface area heuristic (SAH) and
+ * stored in flat arrays. Rays walk the tree front to back and skip any node
+ * farther than the closest hit found so far.
+ *
+ * With Triangle.SINGLE the finished boxes are stored in float, rounded
+ * outward so they still hold everything inside them. Box tests stay in
+ * double.
+ *
+ * When primitives move, the boxes can be refit without changing the tree.
+ * The tree gets worse as primitives move away from where it was built, so
+ * refit reports its SAH cost against the cost when it was built and the
+ * owner rebuilds once that passes REBUILD.
+ *
+ * @author Jeremy Parker Yang
+ *
+ */
+public class BVH {
+
+	// build parameters
+	final static int BINS = 16; // SAH buckets per axis
+	final static int LEAF_SIZE = 4; // max primitives in a leaf
+	final static double TRAV_COST = 1; // box test cost relative to primitive
+	final static double REBUILD = 1.25; // SAH cost of refit tree vs. built
+
+	// node data
+	private double[] bounds; // xMin, yMin, zMin, xMax, yMax, zMax per node
+	private float[] fbounds; // bounds in float with Triangle.SINGLE
+	private int[] first; // left child if interior, first primitive if leaf
+	private int[] count; // number of primitives, 0 if interior
+	private int numNodes = 0;
+	private int depth = 0; // depth of deepest leaf
+	private double builtCost; // SAH cost when built, see cost()
+	private double[] fitBounds; // bounds refit with Triangle.SINGLE, kept
+
+	// primitive data used only while building
+	private double[] primBox;
+	private double[] cent;
+	private int[] idx;
+
+	/**
+	 * Build the hierarchy over a set of primitives. Every leaf covers a
+	 * contiguous range of order, so callers should store their
+	 * primitives in that order.
+	 *
+	 * @param boxes xMin, yMin, zMin, xMax, yMax, zMax of each primitive
+	 * @param order filled with the primitive index at each position
+	 */
+	public BVH(double[] boxes, int[] order) {
+		int size = order.length;
+
+		// per primitive centroids
+		primBox = boxes;
+		cent = new double[3 * size];
+		idx = order;
+		for (int i = 0; i < size; i++) {
+			for (int k = 0; k < 3; k++) {
+				cent[3 * i + k] = 0.5 * (boxes[6 * i + k] + boxes[6 * i + k + 3]);
+			}
+			idx[i] = i;
+		}
+
+		// a binary tree with at most one primitive per leaf
+		int maxNodes = Math.max(1, 2 * size - 1);
+		bounds = new double[6 * maxNodes];
+		first = new int[maxNodes];
+		count = new int[maxNodes];
+
+		// build from root
+		numNodes = 1;
+		build(0, 0, size, 0);
+
+		// build data no longer needed
+		primBox = null;
+		cent = null;
+		idx = null;
+		if (Triangle.SINGLE) {
+			toFloat(bounds);
+			bounds = null;
+		}
+		builtCost = cost();
+	}
+
+	/**
+	 * Build the hierarchy over the triangles of a mesh. The triangles are
+	 * reordered so that every leaf covers a contiguous range of them.
+	 *
+	 * @param tris triangles of the mesh
+	 */
+	public static BVH build(TriArray tris) {
+		return build(tris, new int[tris.size()]);
+	}
+
+	/**
+	 * Build the hierarchy over the triangles of a mesh. The triangles are
+	 * reordered so that every leaf covers a contiguous range of them.
+	 *
+	 * @param tris  triangles of the mesh
+	 * @param order filled with the old index of the triangle at each
+	 *              position
+	 */
+	public static BVH build(TriArray tris, int[] order) {
+		int size = tris.size();
+		double[] boxes = new double[6 * size];
+		for (int i = 0; i < size; i++) {
+			tris.getBounds(i, boxes, 6 * i);
+		}
+		BVH bvh = new BVH(boxes, order);
+
+		// reorder triangles to match leaves
+		tris.reorder(order);
+		return bvh;
+	}
+
+	/**
+	 * Read a hierarchy saved with write
+	 *
+	 * @param buf buffer positioned at the saved tree, advanced past it
+	 */
+	static BVH read(ByteBuffer buf) {
+		BVH bvh = new BVH(new double[0], new int[0]);
+		bvh.numNodes = buf.getInt();
+		bvh.depth = buf.getInt();
+		bvh.first = new int[bvh.numNodes];
+		bvh.count = new int[bvh.numNodes];
+		if (Triangle.SINGLE) {
+			bvh.bounds = null;
+			bvh.fbounds = new float[6 * bvh.numNodes];
+			buf.asFloatBuffer().get(bvh.fbounds);
+			buf.position(buf.position() + 4 * bvh.fbounds.length);
+		} else {
+			bvh.bounds = new double[6 * bvh.numNodes];
+			buf.asDoubleBuffer().get(bvh.bounds);
+			buf.position(buf.position() + 8 * bvh.bounds.length);
+		}
+		buf.asIntBuffer().get(bvh.first);
+		buf.position(buf.position() + 4 * bvh.numNodes);
+		buf.asIntBuffer().get(bvh.count);
+		buf.position(buf.position() + 4 * bvh.numNodes);
+		bvh.builtCost = bvh.cost();
+		return bvh;
+	}
+
+	/**
+	 * Save the nodes of the hierarchy
+	 *
+	 * @param buf buffer with at least bytes() remaining, advanced past tree
+	 */
+	void write(ByteBuffer buf) {
+		buf.putInt(numNodes);
+		buf.putInt(depth);
+		if (Triangle.SINGLE) {
+			buf.asFloatBuffer().put(fbounds, 0, 6 * numNodes);
+			buf.position(buf.position() + 24 * numNodes);
+		} else {
+			buf.asDoubleBuffer().put(bounds, 0, 6 * numNodes);
+			buf.position(buf.position() + 48 * numNodes);
+		}
+		buf.asIntBuffer().put(first, 0, numNodes);
+		buf.position(buf.position() + 4 * numNodes);
+		buf.asIntBuffer().put(count, 0, numNodes);
+		buf.position(buf.position() + 4 * numNodes);
+	}
+
+	/**
+	 * Number of bytes needed by write
+	 */
+	long bytes() {
+		return 8 + (Triangle.SINGLE ? 32L : 56L) * numNodes;
+	}
+
+	/**
+	 * Fit the box of every node to primitives that have moved, keeping the
+	 * tree. Children always come after their parent, so nodes are fit from
+	 * the last to the first.
+	 *
+	 * @param boxes xMin, yMin, zMin, xMax, yMax, zMax of each primitive, in
+	 *              the order given by build
+	 * @return SAH cost of the tree now, relative to when it was built
+	 */
+	public double refit(double[] boxes) {
+		double[] fit = bounds;
+		if (Triangle.SINGLE) {
+			if (fitBounds == null) {
+				fitBounds = new double[6 * numNodes];
+			}
+			fit = fitBounds;
+		}
+		for (int node = numNodes - 1; node >= 0; node--) {
+			emptyBox(fit, 6 * node);
+			if (interior(node)) {
+				// union of children
+				growBox(fit, 6 * node, fit, 6 * first[node]);
+				growBox(fit, 6 * node, fit, 6 * first[node] + 6);
+			} else {
+				int end = first[node] + count[node];
+				for (int i = first[node]; i < end; i++) {
+					growBox(fit, 6 * node, boxes, 6 * i);
+				}
+			}
+		}
+		if (Triangle.SINGLE) {
+			toFloat(fit);
+		}
+		return builtCost > 0 ? cost() / builtCost : 1;
+	}
+
+	/**
+	 * Expected cost of tracing a ray through the tree by the surface area
+	 * heuristic, in primitive tests for a ray that hits the root
+	 */
+	double cost() {
+		double[] box = new double[6];
+		double cost = 0;
+		for (int node = 0; node < numNodes; node++) {
+			for (int k = 0; k < 6; k++) {
+				box[k] = bound(6 * node + k);
+			}
+			cost += area(box, 0) * (interior(node) ? TRAV_COST
+					: count[node]);
+		}
+		getBounds(box, 0);
+		double root = area(box, 0);
+		return root > 0 ? cost / root : 0;
+	}
+
+	/**
+	 * Recursively build the subtree of a node using binned SAH splits.
+	 *
+	 * @param node  index of node to fill
+	 * @param start first primitive (in idx) of node
+	 * @param end   one past the last primitive of node
+	 * @param level depth of node
+	 */
+	private void build(int node, int start, int end, int level) {
+		depth = Math.max(depth, level);
+
+		// bounds of primitives and of their centroids
+		double[] cMin = { Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE };
+		double[] cMax = { -Double.MAX_VALUE, -Double.MAX_VALUE,
+				-Double.MAX_VALUE };
+		for (int k = 0; k < 3; k++) {
+			bounds[6 * node + k] = Double.MAX_VALUE;
+			bounds[6 * node + k + 3] = -Double.MAX_VALUE;
+		}
+		for (int i = start; i < end; i++) {
+			int t = idx[i];
+			for (int k = 0; k < 3; k++) {
+				bounds[6 * node + k] = Math.min(bounds[6 * node + k],
+						primBox[6 * t + k]);
+				bounds[6 * node + k + 3] = Math.max(bounds[6 * node + k + 3],
+						primBox[6 * t + k + 3]);
+				cMin[k] = Math.min(cMin[k], cent[3 * t + k]);
+				cMax[k] = Math.max(cMax[k], cent[3 * t + k]);
+			}
+		}
+
+		int num = end - start;
+		if (num <= 1) {
+			makeLeaf(node, start, num);
+			return;
+		}
+
+		// find cheapest split over all axes
+		double bestCost = Double.MAX_VALUE;
+		int bestAxis = -1;
+		int bestBin = 0;
+		int[] binCount = new int[BINS];
+		double[] binBox = new double[6 * BINS];
+		double[] rightArea = new double[BINS];
+		for (int k = 0; k < 3; k++) {
+			double extent = cMax[k] - cMin[k];
+			if (extent <= 0) {
+				continue; // all centroids in a plane
+			}
+
+			// fill bins
+			for (int b = 0; b < BINS; b++) {
+				binCount[b] = 0;
+				emptyBox(binBox, 6 * b);
+			}
+			for (int i = start; i < end; i++) {
+				int t = idx[i];
+				int b = bin(cent[3 * t + k], cMin[k], extent);
+				binCount[b]++;
+				growBox(binBox, 6 * b, primBox, 6 * t);
+			}
+
+			// sweep from the right to get area of each right side
+			double[] box = new double[6];
+			emptyBox(box, 0);
+			for (int b = BINS - 1; b > 0; b--) {
+				growBox(box, 0, binBox, 6 * b);
+				rightArea[b] = area(box, 0);
+			}
+
+			// sweep from the left and evaluate cost of each split plane
+			emptyBox(box, 0);
+			int leftCount = 0;
+			for (int b = 0; b < BINS - 1; b++) {
+				growBox(box, 0, binBox, 6 * b);
+				leftCount += binCount[b];
+				int rightCount = num - leftCount;
+				if (leftCount == 0 || rightCount == 0) {
+					continue;
+				}
+				double cost = area(box, 0) * leftCount
+						+ rightArea[b + 1] * rightCount;
+				if (cost < bestCost) {
+					bestCost = cost;
+					bestAxis = k;
+					bestBin = b;
+				}
+			}
+		}
+
+		// compare best split with the cost of making a leaf
+		double nodeArea = area(bounds, 6 * node);
+		if (bestAxis < 0) {
+			makeLeaf(node, start, num); // primitives can not be separated
+			return;
+		}
+		bestCost = TRAV_COST + bestCost / nodeArea;
+		if (num <= LEAF_SIZE && bestCost >= num) {
+			makeLeaf(node, start, num);
+			return;
+		}
+
+		// partition primitives around the split plane
+		double extent = cMax[bestAxis] - cMin[bestAxis];
+		int mid = start;
+		for (int i = start; i < end; i++) {
+			int t = idx[i];
+			if (bin(cent[3 * t + bestAxis], cMin[bestAxis], extent) <= bestBin) {
+				idx[i] = idx[mid];
+				idx[mid] = t;
+				mid++;
+			}
+		}
+
+		// children are stored next to each other
+		int left = numNodes;
+		numNodes += 2;
+		first[node] = left;
+		count[node] = 0;
+		build(left, start, mid, level + 1);
+		build(left + 1, mid, end, level + 1);
+	}
+
+	/**
+	 * Closest ray-triangle intersection inside the hierarchy. The hit point
+	 * and barycentric coords of the ray are only written when a hit closer
+	 * than tMax is found.
+	 *
+	 * @param tris triangles in the order given by build
+	 * @param ray  ray to trace
+	 * @param tMax ignore hits farther than this
+	 * @return index of the closest triangle, -1 if no hit
+	 */
+	public int intersect(TriArray tris, Ray ray, double tMax) {
+
+		// ray data shared by all box tests
+		Vector3 o = ray.o, d = ray.d, hit = ray.hit, tuv = ray.tuv;
+		double ox = o.getX(), oy = o.getY(), oz = o.getZ();
+		double ix = 1d / d.getX(), iy = 1d / d.getY(), iz = 1d / d.getZ();
+
+		// closest hit so far
+		double dist = tMax;
+		int ihit = -1;
+		double[] geo = tris.geo;
+		float[] fgeo = tris.fgeo;
+
+		// nodes still to visit and their entry distances
+		ray.reserveMesh(stackSize());
+		int[] stack = ray.meshStack;
+		double[] stackDist = ray.meshDist;
+		int sp = 0;
+
+		// counts for telemetry
+		int boxes = 1, rejects = 0, tests = 0, hits = 0;
+
+		// nothing to hit
+		if (isEmpty()) {
+			return -1;
+		}
+
+		// check root
+		if (entry(0, ox, oy, oz, ix, iy, iz, dist) == Double.MAX_VALUE) {
+			if (Telemetry.ENABLED) {
+				ray.stats.mesh(1, 1, 0, 0);
+			}
+			return -1;
+		}
+		int node = 0;
+
+		while (true) {
+			if (count[node] > 0) {
+				// leaf: check intersection with triangles
+				int end = first[node] + count[node];
+				for (int i = first[node]; i < end; i++) {
+					if (Triangle.SINGLE
+							? Triangle.MTint(fgeo, i, o, d, dist, hit, tuv)
+							: Triangle.MTint(geo, i, o, d, dist, hit, tuv)) {
+						dist = tuv.getX();
+						ihit = i;
+						hits++;
+					}
+				}
+				tests += count[node];
+			} else {
+				// interior: visit the nearer child first
+				int left = first[node];
+				double tl = entry(left, ox, oy, oz, ix, iy, iz, dist);
+				double tr = entry(left + 1, ox, oy, oz, ix, iy, iz, dist);
+				if (Telemetry.ENABLED) {
+					boxes += 2;
+					rejects += (tl == Double.MAX_VALUE ? 1 : 0)
+							+ (tr == Double.MAX_VALUE ? 1 : 0);
+				}
+				if (tl != Double.MAX_VALUE && tr != Double.MAX_VALUE) {
+					if (tl <= tr) {
+						stack[sp] = left + 1;
+						stackDist[sp++] = tr;
+						node = left;
+					} else {
+						stack[sp] = left;
+						stackDist[sp++] = tl;
+						node = left + 1;
+					}
+					continue;
+				} else if (tl != Double.MAX_VALUE) {
+					node = left;
+					continue;
+				} else if (tr != Double.MAX_VALUE) {
+					node = left + 1;
+					continue;
+				}
+			}
+
+			// pop the next node that is still closer than the closest hit
+			do {
+				if (sp == 0) {
+					if (Telemetry.ENABLED) {
+						ray.stats.mesh(boxes, rejects, tests, hits);
+					}
+					return ihit;
+				}
+				node = stack[--sp];
+			} while (stackDist[sp] > dist);
+		}
+	}
+
+	/**
+	 * Any ray-triangle intersection inside the hierarchy. Stops at the first
+	 * hit found, so nodes are visited in any order and nothing is written to
+	 * the ray.
+	 *
+	 * @param tris triangles in the order given by build
+	 * @param ray  ray to trace
+	 * @param tMax ignore hits farther than this
+	 * @return true if any triangle is hit closer than tMax
+	 */
+	public boolean occluded(TriArray tris, Ray ray, double tMax) {
+
+		// ray data shared by all box tests
+		Vector3 o = ray.o, d = ray.d;
+		double ox = o.getX(), oy = o.getY(), oz = o.getZ();
+		double ix = 1d / d.getX(), iy = 1d / d.getY(), iz = 1d / d.getZ();
+		double[] geo = tris.geo;
+		float[] fgeo = tris.fgeo;
+
+		// nodes still to visit
+		ray.reserveMesh(stackSize());
+		int[] stack = ray.meshStack;
+		int sp = 0;
+
+		// counts for telemetry
+		int boxes = 1, rejects = 0, tests = 0;
+
+		// nothing to hit
+		if (isEmpty()) {
+			return false;
+		}
+
+		// check root
+		if (entry(0, ox, oy, oz, ix, iy, iz, tMax) == Double.MAX_VALUE) {
+			if (Telemetry.ENABLED) {
+				ray.stats.mesh(1, 1, 0, 0);
+			}
+			return false;
+		}
+		stack[sp++] = 0;
+
+		while (sp > 0) {
+			int node = stack[--sp];
+			if (count[node] > 0) {
+				// leaf: any hit ends the search
+				int end = first[node] + count[node];
+				for (int i = first[node]; i < end; i++) {
+					if (Triangle.SINGLE ? Triangle.MTocc(fgeo, i, o, d, tMax)
+							: Triangle.MTocc(geo, i, o, d, tMax)) {
+						if (Telemetry.ENABLED) {
+							ray.stats.mesh(boxes, rejects,
+									tests + i - first[node] + 1, 1);
+						}
+						return true;
+					}
+				}
+				tests += count[node];
+			} else {
+				// interior: visit every child the ray enters
+				int left = first[node];
+				boxes += 2;
+				if (entry(left, ox, oy, oz, ix, iy, iz,
+						tMax) != Double.MAX_VALUE) {
+					stack[sp++] = left;
+				} else {
+					rejects++;
+				}
+				if (entry(left + 1, ox, oy, oz, ix, iy, iz,
+						tMax) != Double.MAX_VALUE) {
+					stack[sp++] = left + 1;
+				} else {
+					rejects++;
+				}
+			}
+		}
+		if (Telemetry.ENABLED) {
+			ray.stats.mesh(boxes, rejects, tests, 0);
+		}
+		return false;
+	}
+
+	/**
+	 * Ray-box intersection with a node using the slab method.
+	 *
+	 * @return distance where the ray enters the box, Double.MAX_VALUE if it
+	 *         misses or enters beyond tMax
+	 */
+	double entry(int node, double ox, double oy, double oz, double ix,
+			double iy, double iz, double tMax) {
+		int b = 6 * node;
+		double txmin = (bound(b) - ox) * ix;
+		double txmax = (bound(b + 3) - ox) * ix;
+		double tymin = (bound(b + 1) - oy) * iy;
+		double tymax = (bound(b + 4) - oy) * iy;
+		double tzmin = (bound(b + 2) - oz) * iz;
+		double tzmax = (bound(b + 5) - oz) * iz;
+
+		double tmin = Math.max(
+				Math.max(Math.min(txmin, txmax), Math.min(tymin, tymax)),
+				Math.min(tzmin, tzmax));
+		double tmax = Math.min(
+				Math.min(Math.max(txmin, txmax), Math.max(tymin, tymax)),
+				Math.max(tzmin, tzmax));
+
+		if ((tmax < 0) || (tmin > tmax) || (tmin > tMax)) {
+			return Double.MAX_VALUE;
+		}
+		return Math.max(tmin, 0);
+	}
+
+	/**
+	 * Get bounding box of everything in the hierarchy
+	 *
+	 * @param box xMin, yMin, zMin, xMax, yMax, zMax written here
+	 * @param off index of xMin in box
+	 */
+	public void getBounds(double[] box, int off) {
+		for (int k = 0; k < 6; k++) {
+			box[off + k] = bound(k);
+		}
+	}
+
+	/**
+	 * One value of the node boxes, xMin, yMin, zMin, xMax, yMax, zMax per
+	 * node
+	 */
+	double bound(int i) {
+		return Triangle.SINGLE ? fbounds[i] : bounds[i];
+	}
+
+	/**
+	 * Helper method for build and refit. Store the boxes in float, mins
+	 * rounded down and maxes rounded up. The float array is reused once
+	 * allocated.
+	 *
+	 * @param from node boxes in double
+	 */
+	private void toFloat(double[] from) {
+		if (fbounds == null) {
+			fbounds = new float[6 * numNodes];
+		}
+		for (int i = 0; i < fbounds.length; i++) {
+			float f = (float) from[i];
+			if (i % 6 < 3 && f > from[i]) {
+				f = Math.nextDown(f);
+			} else if (i % 6 >= 3 && f < from[i]) {
+				f = Math.nextUp(f);
+			}
+			fbounds[i] = f;
+		}
+	}
+
+	/**
+	 * Number of primitives in a node, 0 if node is interior
+	 */
+	int count(int node) {
+		return count[node];
+	}
+
+	/**
+	 * Left child of an interior node (right child follows it), or the first
+	 * primitive of a leaf
+	 */
+	int first(int node) {
+		return first[node];
+	}
+
+	/**
+	 * Size of traversal stack needed by this tree
+	 */
+	int stackSize() {
+		return depth + 1;
+	}
+
+	/**
+	 * Check if the hierarchy holds no primitives. Its root is then a leaf
+	 * without primitives, which traversals must not treat as interior.
+	 */
+	boolean isEmpty() {
+		return numNodes == 1 && count[0] == 0;
+	}
+
+	/**
+	 * Helper method for refit and cost. Check if a node is interior, only
+	 * the root of an empty tree is a leaf without primitives.
+	 */
+	private boolean interior(int node) {
+		return count[node] == 0 && !isEmpty();
+	}
+
+	/**
+	 * Helper method for build. Turn node into a leaf.
+	 */
+	private void makeLeaf(int node, int start, int num) {
+		first[node] = start;
+		count[node] = num;
+	}
+
+	/**
+	 * Helper method for build. Bucket of a centroid along an axis.
+	 */
+	private static int bin(double c, double min, double extent) {
+		int b = (int) (BINS * (c - min) / extent);
+		return Math.min(b, BINS - 1);
+	}
+
+	/**
+	 * Helper method for build and refit. Set box to the empty box.
+	 */
+	private static void emptyBox(double[] box, int off) {
+		for (int k = 0; k < 3; k++) {
+			box[off + k] = Double.MAX_VALUE;
+			box[off + k + 3] = -Double.MAX_VALUE;
+		}
+	}
+
+	/**
+	 * Helper method for build and refit. Grow box a to contain box b.
+	 */
+	private static void growBox(double[] a, int offA, double[] b, int offB) {
+		for (int k = 0; k < 3; k++) {
+			a[offA + k] = Math.min(a[offA + k], b[offB + k]);
+			a[offA + k + 3] = Math.max(a[offA + k + 3], b[offB + k + 3]);
+		}
+	}
+
+	/**
+	 * Helper method for build and refit. Surface area of a box, 0 if empty.
+	 */
+	private static double area(double[] box, int off) {
+		double dx = box[off + 3] - box[off];
+		double dy = box[off + 4] - box[off + 1];
+		double dz = box[off + 5] - box[off + 2];
+		if (dx < 0 || dy < 0 || dz < 0) {
+			return 0;
+		}
+		return 2 * (dx * dy + dy * dz + dz * dx);
+	}
+}
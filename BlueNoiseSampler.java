@@ -0,0 +1,152 @@
+/**
+ * Sobol points shared by every pixel, shifted per pixel by a blue noise
+ * texture (blue noise dithered sampling). The error left in each pixel then
+ * has no low frequencies across the image, so noise looks finer at the same
+ * sample count. Each dimension reads the texture at its own offset.
+ *
+ * @author Jeremy Parker Yang
+ *
+ */
+public class BlueNoiseSampler extends SobolSampler {
+
+	// texture parameters
+	final static int SIZE = 64; // width and height, a power of 2
+	final static double SIGMA = 1.5; // spread of the void and cluster filter
+
+	// blue noise texture, values in [0, 1), made when the class is loaded
+	private final static double[] NOISE = texture(1);
+
+	BlueNoiseSampler(long seed) {
+		super(seed);
+	}
+
+	@Override
+	public double next() {
+		int d = dim;
+		long h = mix(seed ^ 0x5bd1e9955bd1e995L ^ d);
+		int tx = (x + (int) h) & (SIZE - 1);
+		int ty = (y + (int) (h >>> 32)) & (SIZE - 1);
+		double u = super.next() + NOISE[tx + ty * SIZE];
+		return u >= 1 ? u - 1 : u;
+	}
+
+	/**
+	 * The same points for every pixel
+	 */
+	@Override
+	long pairSeed(int pair) {
+		return hash(0, 0, pair);
+	}
+
+	/**
+	 * Make a tileable blue noise texture with the void and cluster method.
+	 * Pixels are ranked by the order they are added to a pattern that is
+	 * kept as even as possible, measured by a Gaussian filter on a torus.
+	 *
+	 * @param seed seed of the random starting pattern
+	 */
+	static double[] texture(long seed) {
+		int n = SIZE * SIZE;
+
+		// filter response on the torus
+		double[] filter = new double[n];
+		for (int dy = 0; dy < SIZE; dy++) {
+			for (int dx = 0; dx < SIZE; dx++) {
+				int ax = Math.min(dx, SIZE - dx);
+				int ay = Math.min(dy, SIZE - dy);
+				filter[dx + dy * SIZE] = Math.exp(-(ax * ax + ay * ay)
+						/ (2 * SIGMA * SIGMA));
+			}
+		}
+
+		// random starting pattern with a tenth of pixels on
+		boolean[] on = new boolean[n];
+		double[] energy = new double[n];
+		int numOn = 0;
+		long state = seed;
+		while (numOn < n / 10) {
+			state += 0x9e3779b97f4a7c15L;
+			int p = (int) ((mix(state) >>> 1) % n);
+			if (!on[p]) {
+				on[p] = true;
+				splat(energy, filter, p, 1);
+				numOn++;
+			}
+		}
+
+		// move points from the tightest cluster to the largest void
+		while (true) {
+			int cluster = extreme(energy, on, true, true);
+			on[cluster] = false;
+			splat(energy, filter, cluster, -1);
+			int v = extreme(energy, on, false, false);
+			on[v] = true;
+			splat(energy, filter, v, 1);
+			if (v == cluster) {
+				break;
+			}
+		}
+
+		// rank initial points by removing tightest clusters
+		int[] rank = new int[n];
+		boolean[] pattern = on.clone();
+		double[] start = energy.clone();
+		for (int r = numOn - 1; r >= 0; r--) {
+			int cluster = extreme(energy, on, true, true);
+			on[cluster] = false;
+			splat(energy, filter, cluster, -1);
+			rank[cluster] = r;
+		}
+
+		// rank the rest by filling largest voids
+		on = pattern;
+		energy = start;
+		for (int r = numOn; r < n; r++) {
+			int v = extreme(energy, on, false, false);
+			on[v] = true;
+			splat(energy, filter, v, 1);
+			rank[v] = r;
+		}
+
+		double[] tex = new double[n];
+		for (int p = 0; p < n; p++) {
+			tex[p] = (rank[p] + 0.5) / n;
+		}
+		return tex;
+	}
+
+	/**
+	 * Helper method for texture. Add a filter centered on pixel p.
+	 */
+	private static void splat(double[] energy, double[] filter, int p,
+			double k) {
+		int px = p % SIZE;
+		int py = p / SIZE;
+		for (int y = 0; y < SIZE; y++) {
+			int fy = ((y - py) & (SIZE - 1)) * SIZE;
+			for (int x = 0; x < SIZE; x++) {
+				int fx = (x - px) & (SIZE - 1);
+				energy[x + y * SIZE] += k * filter[fx + fy];
+			}
+		}
+	}
+
+	/**
+	 * Helper method for texture. Pixel with the highest (or lowest) energy
+	 * among pixels that are on (or off).
+	 */
+	private static int extreme(double[] energy, boolean[] on, boolean isOn,
+			boolean highest) {
+		int best = -1;
+		for (int p = 0; p < energy.length; p++) {
+			if (on[p] != isOn) {
+				continue;
+			}
+			if (best < 0 || (highest ? energy[p] > energy[best]
+					: energy[p] < energy[best])) {
+				best = p;
+			}
+		}
+		return best;
+	}
+}
@@ -1,86 +1,77 @@
-
+/**
+ * Order in which the buckets (tiles) of an image are rendered. Buckets are
+ * visited in a spiral from the center of the image outward so the most
+ * important part of the frame finishes first.
+ *
+ * @author Jeremy Parker Yang
+ *
+ */
 public class Buckets {
-	
+
 	/**
-	 * Traverse matrix in spiral order
+	 * Traverse matrix in spiral order, starting from the middle. Cells of a
+	 * non-square matrix that the spiral passes outside of are skipped.
+	 *
+	 * @param m number of rows
+	 * @param n number of columns
+	 * @return row and column of each cell in the order visited
 	 */
-	public static void spiral() {
-		
-		int m = 1;
-		int n = 2;
-		
-		int numIfs = 0;
-		int[][] mat = new int[m][n];
+	public static int[][] spiral(int m, int n) {
+
+		int[][] order = new int[m * n][];
+		int numVisited = 0;
 
 		// find middle
-		int len = Math.min(m, n);
 		int ip = (m - 1) / 2;
 		int jp = (n - 1) / 2;
 
-		// spiral through center square
-		System.out.print(mat[ip][jp] + ", ");
+		// spiral out from center until every cell is visited
+		numVisited = visit(order, numVisited, m, n, ip, jp);
 		int numJumps = 1;
-		while (true) {
+		while (numVisited < m * n) {
 
 			// go right -->
-			if (numJumps < len) {
-				numIfs++;
-				for (int i = 0; i < numJumps; i++) {
-					numIfs++;
-					jp++;
-					System.out.print(mat[ip][jp] + ", ");
-				}
-			} else {
-				for (int i = 0; i < numJumps - 1; i++) {
-					numIfs++;
-					jp++;
-					System.out.print(mat[ip][jp] + ", ");
-				}
-				break;
-
+			for (int i = 0; i < numJumps; i++) {
+				jp++;
+				numVisited = visit(order, numVisited, m, n, ip, jp);
 			}
 
 			// go down |
 			// ~~~~~~~ v
 			for (int i = 0; i < numJumps; i++) {
-				numIfs++;
 				ip++;
-				System.out.print(mat[ip][jp] + ", ");
+				numVisited = visit(order, numVisited, m, n, ip, jp);
 			}
 			numJumps++;
 
 			// go left <--
-			if (numJumps < len) {
-				numIfs++;
-				for (int i = 0; i < numJumps; i++) {
-					numIfs++;
-					jp--;
-					System.out.print(mat[ip][jp] + ", ");
-				}
-			} else {
-				for (int i = 0; i < numJumps - 1; i++) {
-					numIfs++;
-					jp--;
-					System.out.print(mat[ip][jp] + ", ");
-				}
-				break;
+			for (int i = 0; i < numJumps; i++) {
+				jp--;
+				numVisited = visit(order, numVisited, m, n, ip, jp);
 			}
 
 			// go up ^
 			// ~~~~~ |
 			for (int i = 0; i < numJumps; i++) {
-				numIfs++;
 				ip--;
-				System.out.print(mat[ip][jp] + ", ");
+				numVisited = visit(order, numVisited, m, n, ip, jp);
 			}
 			numJumps++;
-
-			System.out.println();
 		}
 
-		// travel through remaining spaces
-		System.out.println();
-		System.out.println("numIfs: " + numIfs);
-		System.out.println("sides");
+		return order;
+	}
+
+	/**
+	 * Helper method for spiral. Add cell to order if it is in the matrix.
+	 *
+	 * @return number of cells visited so far
+	 */
+	private static int visit(int[][] order, int numVisited, int m, int n,
+			int ip, int jp) {
+		if (ip >= 0 && ip < m && jp >= 0 && jp < n) {
+			order[numVisited++] = new int[] { ip, jp };
+		}
+		return numVisited;
 	}
 }
@@ -1,4 +1,13 @@
+import java.awt.GraphicsEnvironment;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.BooleanSupplier;
 
 /**
  * Calculate light-mesh collisions to generate image from camera
@@ -14,256 +23,1091 @@ public class Camera {
 	final static int SAMPLES = 32; // max number of scattered rays
 	final static int MAX_BOUNCES = 3; // max number of GI bounces
 	final static double GI_SCALE = 0.4; // GI intensity falloff
+	final static boolean IRRADIANCE_CACHE = false; // see IrradianceCache
+
+	// path tracing integrator
+	final static boolean PATH_TRACE = false; // true to trace paths
+	static boolean pathTrace = PATH_TRACE; // on during a preview
+	final static int SPP = 256; // paths per pixel
+	final static int RR_DEPTH = 2; // bounces before russian roulette
+	final static boolean NEE = true; // sample the sky directly at each bounce
+
+	// random numbers
+	final static int SAMPLER = Sampler.SOBOL; // see Sampler for other kinds
+	final static long SEED = 1; // change to get a different image
+
+	// progressive rendering
+	final static boolean PROGRESSIVE = false; // true to render in passes
+	final static long TIME_LIMIT = 0; // ms to render for, 0 for no limit
+	final static double TARGET_ERROR = 0.02; // relative error to stop at
+
+	// adaptive sampling
+	final static boolean ADAPTIVE = false; // true to spend samples on noise
+	final static int MIN_SAMPLES = 16; // samples per pixel before checking error
+	final static int MAX_SAMPLES = 4 * SPP; // most samples in one pixel
+	final static int BATCH = 4; // extra samples given to a noisy pixel at once
+
+	// denoising
+	final static boolean DENOISE = false; // filter final image, see Denoiser
+
+	// parallel rendering
+	final static int TILE_SIZE = 32; // width and height of a tile in pixels
+	final static int THREADS = Runtime.getRuntime().availableProcessors();
+
+	// trace camera rays of neighboring samples together with SIMD, needs
+	// --add-modules jdk.incubator.vector or single rays are traced instead
+	final static boolean PACKETS = true;
+	final static boolean USE_PACKETS = PACKETS && ModuleLayer.boot()
+			.findModule("jdk.incubator.vector").isPresent();
 
 	// camera info
 	final static Vector3 CAM_LOC = new Vector3(10, 7.5, 10).mul(0.3);
 	final static Vector3 CAM_ROT = new Vector3(-0.5, 0.785, 0);
 	final static double FOV = 0.69;
-	static ArrayList<TriMesh> scene = new ArrayList<TriMesh>();
+	static Scene scene = new Scene();
+
+	// camera of local renders, moved by Preview between frames
+	static Vector3 camLoc = CAM_LOC;
+	static Vector3 camRot = CAM_ROT;
 
-	// display image
-	private static Display display = new Display(WIDTH, HEIGHT);
+	// mesh placed on the plane, changed with -mesh and turned by -sequence
+	static String mesh = "cube.obj";
+	static String sky; // image given with -sky, null for the built in sky
+	static TriMesh model;
+	final static Vector3 MESH_SCALE = new Vector3(1, 1, 1);
+	final static Vector3 MESH_ROT = new Vector3(0, 0, 0);
+	final static Vector3 MESH_TRANS = new Vector3(0, 0.5, 0);
+
+	// work stealing pool of local renders, kept for the whole run so
+	// frames of a preview or sequence do not start new threads
+	final static ForkJoinPool pool = new ForkJoinPool(THREADS);
+
+	// per thread rays, one for each bounce
+	private static ThreadLocal<Ray[]> threadRays = ThreadLocal
+			.withInitial(() -> Ray.array(MAX_BOUNCES + 1));
+
+	// light arriving at surfaces, one cache for each number of bounces left.
+	// Off on workers, where the records would depend on the tiles the
+	// worker happened to render before.
+	static IrradianceCache[] irradiance = IrradianceCache.array(MAX_BOUNCES);
+	static boolean cacheIrradiance = IRRADIANCE_CACHE;
+
+	// per thread random numbers
+	private static ThreadLocal<Sampler> threadSampler = ThreadLocal
+			.withInitial(() -> Sampler.create(SAMPLER, SEED));
+
+	// display image, null when running headless
+	private static Display display;
+
+	// per pixel cost of the render, null unless asked for
+	static CostMap cost;
+
+	// first hit features for the denoiser, null when not denoising
+	static AuxBuffer aux;
 
 	/**
-	 * Load meshes, generate image
+	 * Load meshes, generate image. Options:
+	 * 
+	 * -headless         render without a display window
+	 * -o name           write name.png (clamped) and name.pfm (HDR) when done
+	 * -sky file         light the scene with a lat-long .hdr or .pfm image,
+	 *                   stops with an error if it cannot be read
+	 * -coordinator port render on worker processes that connect to port
+	 * -spawn n          also start n workers on this machine
+	 * -worker host:port render tiles for the coordinator at host:port
+	 * -once             stop a worker after one frame
+	 * -cost             also write the time, rays and triangle tests of
+	 *                   each pixel as false color images, see CostMap
+	 * -stats            print the ray and test counts of a local render
+	 *                   when done, see Telemetry
+	 * -mesh file        show this .obj file instead of the cube
+	 * -preview          move the camera around in a quick preview first,
+	 *                   press enter to render from there, see Preview
+	 * -sequence n       render n frames of the mesh turning on the plane,
+	 *                   written to name.0000.png/.pfm on, see Sequence
+	 * 
+	 * Headless runs always write image files, to render.png/.pfm by default.
+	 * With DENOISE, these hold the filtered image. The noisy image and the
+	 * normal, depth and albedo buffers are written next to it. The cost map
+	 * and denoising are only done by local renders.
+	 * Workers need the same settings as the coordinator and their own -sky
+	 * and -mesh, holding the same files. Previews are only done by local
+	 * renders with a display. Sequences are only rendered locally.
 	 */
 	public static void main(String[] args) {
-		// load meshes
-		Vector3 scale = new Vector3(1, 1, 1);
-		Vector3 rot = new Vector3(0, 0, 0);
-		Vector3 trans = new Vector3(0, 0.5, 0);
-		TriMesh cube = new TriMesh("cube.obj", scale, rot, trans);
-		TriMesh plane = new TriMesh("plane.obj");
-		scene.add(cube);
-		scene.add(plane);
+		// read options
+		boolean headless = GraphicsEnvironment.isHeadless();
+		String output = null;
+		int port = -1;
+		int spawn = 0;
+		String worker = null;
+		boolean once = false;
+		boolean preview = false;
+		boolean costMap = false;
+		boolean stats = false;
+		int frames = 0;
+		ArrayList<String> workerArgs = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-headless")) {
+				headless = true;
+			} else if (args[i].equals("-o") && i + 1 < args.length) {
+				output = args[++i];
+			} else if (args[i].equals("-sky") && i + 1 < args.length) {
+				workerArgs.add(args[i]);
+				workerArgs.add(args[i + 1]);
+				sky = args[++i];
+				try {
+					SkyLight.load(sky);
+				} catch (IOException e) {
+					throw new UncheckedIOException("cannot read sky " + sky, e);
+				}
+			} else if (args[i].equals("-coordinator") && i + 1 < args.length) {
+				port = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-spawn") && i + 1 < args.length) {
+				spawn = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-worker") && i + 1 < args.length) {
+				worker = args[++i];
+			} else if (args[i].equals("-once")) {
+				once = true;
+			} else if (args[i].equals("-cost")) {
+				costMap = true;
+			} else if (args[i].equals("-stats")) {
+				stats = true;
+			} else if (args[i].equals("-mesh") && i + 1 < args.length) {
+				workerArgs.add(args[i]);
+				workerArgs.add(args[i + 1]);
+				mesh = args[++i];
+			} else if (args[i].equals("-preview")) {
+				preview = true;
+			} else if (args[i].equals("-sequence") && i + 1 < args.length) {
+				frames = Integer.parseInt(args[++i]);
+			}
+		}
+
+		// render node, serves frames instead of making one
+		if (worker != null) {
+			int colon = worker.lastIndexOf(':');
+			cacheIrradiance = false;
+			loadScene();
+			Worker.run(worker.substring(0, colon),
+					Integer.parseInt(worker.substring(colon + 1)), once);
+			return;
+		}
+
+		if ((headless || costMap) && output == null) {
+			output = "render";
+		}
+		if (!headless) {
+			display = new Display(WIDTH, HEIGHT);
+		}
+
+		// animation, frames are written as they finish
+		if (frames > 0 && port < 0) {
+			loadScene(true);
+			Sequence.render(frames, output != null ? output : "render");
+			return;
+		}
 
 		// generate image
-		render();
-		// view();
+		Film film;
+		if (port >= 0) {
+			try {
+				film = Coordinator.render(port, spawn, workerArgs, display);
+			} catch (IOException e) {
+				e.printStackTrace();
+				return;
+			}
+		} else {
+			loadScene();
+			if (preview && display != null) {
+				Preview.run(display);
+			}
+
+			// first hits and costs of the final render only, not the preview
+			if (DENOISE) {
+				aux = new AuxBuffer(WIDTH, HEIGHT);
+			}
+			if (costMap) {
+				cost = new CostMap(WIDTH, HEIGHT);
+			}
+			film = PROGRESSIVE ? progressive() : render();
+		}
+		// film = view();
+
+		// filter noise
+		Film noisy = film;
+		if (aux != null) {
+			film = Denoiser.denoise(film, aux);
+			if (display != null) {
+				film.show(display, 0, 0, WIDTH, HEIGHT);
+			}
+		}
+		if (stats && Telemetry.ENABLED && port < 0) {
+			System.out.println(Telemetry.summary());
+		}
+		if (!PATH_TRACE && cacheIrradiance && port < 0) {
+			System.out.println(irradiance[MAX_BOUNCES - 1].size()
+					+ " irradiance records at the first hit");
+		}
+
+		// save image
+		if (output != null) {
+			try {
+				ImageFile.writePNG(film, output + ".png");
+				ImageFile.writePFM(film, output + ".pfm");
+				if (aux != null) {
+					ImageFile.writePFM(noisy, output + ".noisy.pfm");
+					ImageFile.writePFM(aux.normalFilm(),
+							output + ".normal.pfm");
+					ImageFile.writePFM(aux.depthFilm(), output + ".depth.pfm");
+					ImageFile.writePFM(aux.albedoFilm(),
+							output + ".albedo.pfm");
+				}
+				if (cost != null) {
+					cost.write(output);
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Load the meshes of the scene concurrently and build the scene
+	 * hierarchy over them
+	 */
+	static void loadScene() {
+		loadScene(false);
 	}
 
 	/**
-	 * Generate high quality image from light-mesh collisions
+	 * Load the meshes of the scene concurrently and build the scene
+	 * hierarchy over them
+	 * 
+	 * @param movable true to load the mesh ready to be moved by animate
 	 */
-	public static void render() {
+	static void loadScene(boolean movable) {
+		CompletableFuture<TriMesh> cube = CompletableFuture.supplyAsync(
+				() -> new TriMesh(mesh, MESH_SCALE, MESH_ROT, MESH_TRANS,
+						movable));
+		CompletableFuture<TriMesh> plane = CompletableFuture
+				.supplyAsync(() -> new TriMesh("plane.obj"));
+		scene = new Scene();
+		model = cube.join();
+		scene.add(model);
+		scene.add(plane.join());
+		scene.build();
+	}
+
+	/**
+	 * Move the meshes to a frame of the animation made by -sequence, one
+	 * full turn of the mesh about the y axis over all frames. The mesh and
+	 * scene hierarchies are refit in place.
+	 * 
+	 * @param frame  frame to move to, from 0
+	 * @param frames number of frames
+	 * @return true if the hierarchy of the mesh had to be rebuilt
+	 */
+	static boolean animate(int frame, int frames) {
+		double angle = 2 * Math.PI * frame / frames;
+		boolean rebuilt = model.setTransform(MESH_SCALE,
+				MESH_ROT.add(new Vector3(0, angle, 0)), MESH_TRANS);
+		scene.update();
+		return rebuilt;
+	}
+
+	/**
+	 * Generate high quality image from light-mesh collisions. The image is
+	 * split into tiles that are rendered in parallel, starting from the
+	 * center of the frame.
+	 * 
+	 * @return film holding the final image
+	 */
+	public static Film render() {
 		// data to send rays from camera
-		double[][] camRotMat = Vector3.getRotMat(CAM_ROT);
-		double step = 2 * Math.tan(FOV) / WIDTH;
-		Vector3 camRay;
+		double[][] camRotMat = Vector3.getRotMat(camRot);
+		Film film = new Film(WIDTH, HEIGHT);
 
-		// primary collision info
-		Vector3 hit = new Vector3(0, 0, 0);
-		Vector3 tuv = new Vector3(0, 0, 0);
-		Vector3 n = new Vector3(0, 0, 0);
-		Vector3 t1 = new Vector3(0, 0, 0);
-		Vector3 t2 = new Vector3(0, 0, 0);
+		// render tiles on a work stealing pool
+		Telemetry.startPass();
+		forEachTile(pool, (i0, j0) -> {
+			tile(film, i0, j0, camRotMat);
 
-		// color generating info
-		int color = 0;
-		double totalColor = 0;
+			// update image
+			if (display != null) {
+				film.show(display, j0, i0, j0 + TILE_SIZE, i0 + TILE_SIZE);
+			}
+		});
+		Telemetry.endPass(1);
+		return film;
+	}
+
+	/**
+	 * Generate high quality image in passes. Each pass adds one sample per
+	 * pixel to an HDR film and shows the running average, so a preview is
+	 * ready after the first pass. Stops once SPP samples per pixel have been
+	 * spent, after TIME_LIMIT, or once the image has converged. With adaptive
+	 * sampling, passes after MIN_SAMPLES skip pixels that have converged, so
+	 * the budget goes to the noisy parts of the image.
+	 * 
+	 * @return film holding the final image
+	 */
+	public static Film progressive() {
+		// data to send rays from camera
+		double[][] camRotMat = Vector3.getRotMat(camRot);
+		Film film = new Film(WIDTH, HEIGHT);
+		long start = System.currentTimeMillis();
+
+		// sample budget for whole image
+		long budget = (long) SPP * WIDTH * HEIGHT;
+		LongAdder used = new LongAdder();
+
+		// render passes on a work stealing pool
+		for (int pass = 1; used.sum() < budget; pass++) {
+			long before = used.sum();
+			Telemetry.startPass();
+			forEachTile(pool,
+					(i0, j0) -> used.add(passTile(film, i0, j0, camRotMat)));
+			Telemetry.endPass(pass);
+
+			// update image
+			if (display != null) {
+				film.show(display, 0, 0, WIDTH, HEIGHT);
+			}
+
+			// stop early once time is up or image has converged
+			long time = System.currentTimeMillis() - start;
+			if (TIME_LIMIT > 0 && time >= TIME_LIMIT) {
+				break;
+			}
+			if (ADAPTIVE) {
+				if (used.sum() == before) {
+					break; // every pixel has converged
+				}
+			} else if (pass >= MIN_SAMPLES && film.getError() < TARGET_ERROR) {
+				break;
+			}
+		}
+		return film;
+	}
+
+	/**
+	 * Run a task for every tile of the image and wait for all of them. Tiles
+	 * are queued in spiral order so the center of the frame finishes first.
+	 * 
+	 * @param pool work stealing pool to run tiles on
+	 * @param tile task given the first row and column of a tile
+	 */
+	static void forEachTile(ForkJoinPool pool,
+			BiConsumer<Integer, Integer> tile) {
+		// tiles in spiral order
+		int rows = (HEIGHT + TILE_SIZE - 1) / TILE_SIZE;
+		int cols = (WIDTH + TILE_SIZE - 1) / TILE_SIZE;
+		int[][] order = Buckets.spiral(rows, cols);
+
+		// queue tiles
+		ArrayList<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>();
+		for (int k = 0; k < order.length; k++) {
+			int i0 = order[k][0] * TILE_SIZE;
+			int j0 = order[k][1] * TILE_SIZE;
+			tasks.add(pool.submit(
+					() -> Telemetry.tile(i0, j0, () -> tile.accept(i0, j0))));
+		}
+
+		// wait for all tiles
+		for (int k = 0; k < tasks.size(); k++) {
+			tasks.get(k).join();
+		}
+	}
+
+	/**
+	 * Render one tile of the image with a fixed number of samples per pixel
+	 * 
+	 * @param film      film to add samples to
+	 * @param i0        first row of tile
+	 * @param j0        first column of tile
+	 * @param camRotMat camera rotation matrix
+	 */
+	private static void renderTile(Film film, int i0, int j0,
+			double[][] camRotMat) {
+		// primary collision info, followed by one ray for each bounce
+		Ray[] rays = threadRays.get();
+		Sampler sampler = threadSampler.get();
+		double[] color = new double[3];
 
 		// loop through pixels
-		for (int i = 0; i < HEIGHT; i++) {
-			for (int j = 0; j < WIDTH; j++) {
+		int iEnd = Math.min(i0 + TILE_SIZE, HEIGHT);
+		int jEnd = Math.min(j0 + TILE_SIZE, WIDTH);
+		for (int i = i0; i < iEnd; i++) {
+			for (int j = j0; j < jEnd; j++) {
+
+				// one path per sample, jittered inside the pixel
+				if (PATH_TRACE) {
+					for (int k = 0; k < SPP; k++) {
+						samplePixel(film, j, i, rays, sampler, color,
+								camRotMat);
+					}
+				}
 
 				// loop through anti-aliasing samples
-				Vector3 pixelColor = new Vector3(0, 0, 0);
-				for (int ip = 0; ip < AA_SAMPLES; ip++) {
-					for (int jp = 0; jp < AA_SAMPLES; jp++) {
-
-						// direction of ray for pixel ij
-						// for anti-aliasing, subsample with ip,jp
-						camRay = new Vector3(
-								// iterate horizontally
-								step * (j - (WIDTH / 2))
-										+ (step / (2 * AA_SAMPLES))
-												* (2 * jp - (AA_SAMPLES - 1)),
-								// iterate vertically
-								step * ((HEIGHT / 2) - i)
-										+ (step / (2 * AA_SAMPLES))
-												* (2 * ip - (AA_SAMPLES - 1)),
-								-1).mul(camRotMat).norm();
-
-						// if camRay intersects with any mesh
-						if (collision(CAM_LOC, camRay, hit, tuv, n, t1, t2)) {
-
-							// scatter light from point of collision
-							totalColor = luminance(hit, tuv, n, t1, t2,
-									MAX_BOUNCES, SAMPLES);
-
-							// paint to screen
-							color = (int) (255 * totalColor);
-							if (color > 255 || color < 0) {
-								color = Math.max(0, color);
-								color = Math.min(255, color);
+				else {
+					for (int ip = 0; ip < AA_SAMPLES; ip++) {
+						for (int jp = 0; jp < AA_SAMPLES; jp++) {
+							// for anti-aliasing, jitter inside subpixel ip,jp
+							if (cost != null) {
+								cost.start(rays[0]);
+							}
+							sampler.start(j, i, film.getCount(j, i));
+							double x = (jp + sampler.next()) / AA_SAMPLES;
+							double y = (ip + sampler.next()) / AA_SAMPLES;
+							camRay(rays[0], j - 0.5 + x, i - 0.5 + y,
+									camRotMat);
+							boolean hit = sample(rays, sampler, color);
+							film.add(j, i, color[0], color[1], color[2]);
+							if (aux != null) {
+								aux.add(j, i, rays[0], hit);
+							}
+							if (cost != null) {
+								cost.stop(j, i, rays[0]);
 							}
-							pixelColor = pixelColor
-									.add(new Vector3(color, color, color));
 						}
+					}
+				}
+			}
+		}
+		flush(film, rays, sampler, color);
+	}
+
+	/**
+	 * Render one tile to full quality, with adaptive sampling if it is on.
+	 * A tile comes out the same wherever it is rendered.
+	 * 
+	 * @param film      film to add samples to
+	 * @param i0        first row of tile
+	 * @param j0        first column of tile
+	 * @param camRotMat camera rotation matrix
+	 */
+	static void tile(Film film, int i0, int j0, double[][] camRotMat) {
+		if (ADAPTIVE) {
+			adaptiveTile(film, i0, j0, camRotMat);
+		} else {
+			renderTile(film, i0, j0, camRotMat);
+		}
+	}
+
+	/**
+	 * Add one jittered sample to every pixel of a tile. With adaptive
+	 * sampling, pixels that have converged are skipped.
+	 * 
+	 * @param film      film to add samples to
+	 * @param i0        first row of tile
+	 * @param j0        first column of tile
+	 * @param camRotMat camera rotation matrix
+	 * @return number of samples added
+	 */
+	private static int passTile(Film film, int i0, int j0,
+			double[][] camRotMat) {
+		// primary collision info, followed by one ray for each bounce
+		Ray[] rays = threadRays.get();
+		Sampler sampler = threadSampler.get();
+		double[] color = new double[3];
+		int numSamples = 0;
 
-						// if no collision, display sky
-						else {
-							pixelColor = pixelColor
-									.add(new Vector3(201, 226, 255));
+		// loop through pixels
+		int iEnd = Math.min(i0 + TILE_SIZE, HEIGHT);
+		int jEnd = Math.min(j0 + TILE_SIZE, WIDTH);
+		for (int i = i0; i < iEnd; i++) {
+			for (int j = j0; j < jEnd; j++) {
+				if (!ADAPTIVE || !converged(film, j, i)) {
+					samplePixel(film, j, i, rays, sampler, color,
+								camRotMat);
+					numSamples++;
+				}
+			}
+		}
+		flush(film, rays, sampler, color);
+		return numSamples;
+	}
+
+	/**
+	 * Render one tile with adaptive sampling. Every pixel gets MIN_SAMPLES,
+	 * then the rest of the tile's budget of SPP samples per pixel is handed
+	 * out BATCH at a time to pixels whose error is still above TARGET_ERROR.
+	 * Flat regions such as the sky stop early.
+	 * 
+	 * @param film      film to add samples to
+	 * @param i0        first row of tile
+	 * @param j0        first column of tile
+	 * @param camRotMat camera rotation matrix
+	 */
+	private static void adaptiveTile(Film film, int i0, int j0,
+			double[][] camRotMat) {
+		// primary collision info, followed by one ray for each bounce
+		Ray[] rays = threadRays.get();
+		Sampler sampler = threadSampler.get();
+		double[] color = new double[3];
+
+		// sample budget for tile
+		int iEnd = Math.min(i0 + TILE_SIZE, HEIGHT);
+		int jEnd = Math.min(j0 + TILE_SIZE, WIDTH);
+		long budget = (long) SPP * (iEnd - i0) * (jEnd - j0);
+
+		// minimum samples everywhere
+		for (int i = i0; i < iEnd; i++) {
+			for (int j = j0; j < jEnd; j++) {
+				for (int k = 0; k < MIN_SAMPLES; k++) {
+					samplePixel(film, j, i, rays, sampler, color,
+								camRotMat);
+				}
+				budget -= MIN_SAMPLES;
+			}
+		}
+		flush(film, rays, sampler, color);
+
+		// extra samples where the error is still high
+		boolean active = true;
+		while (active && budget > 0) {
+			active = false;
+			for (int i = i0; i < iEnd && budget > 0; i++) {
+				for (int j = j0; j < jEnd && budget > 0; j++) {
+					if (!converged(film, j, i)) {
+						for (int k = 0; k < BATCH; k++) {
+							samplePixel(film, j, i, rays, sampler, color,
+								camRotMat);
 						}
+						budget -= BATCH;
+						active = true;
 					}
 				}
+			}
+			flush(film, rays, sampler, color);
+		}
+	}
+
+	/**
+	 * Add one jittered sample to a pixel. The random numbers of the sample
+	 * only depend on the pixel and how many samples it already has.
+	 * 
+	 * With packets, the camera ray is only queued and the sample is added
+	 * once the packet is full or flush is called. The image is the same
+	 * either way.
+	 * 
+	 * @param film      film to add sample to
+	 * @param x         column of pixel
+	 * @param y         row of pixel
+	 * @param rays      camera ray, followed by one ray for each bounce
+	 * @param sampler   random numbers of this thread
+	 * @param color     scratch space for sample color
+	 * @param camRotMat camera rotation matrix
+	 */
+	static void samplePixel(Film film, int x, int y, Ray[] rays,
+			Sampler sampler, double[] color, double[][] camRotMat) {
+		if (!USE_PACKETS) {
+			if (cost != null) {
+				cost.start(rays[0]);
+			}
+			sampler.start(x, y, film.getCount(x, y));
+			camRay(rays[0], x + sampler.next() - 0.5,
+					y + sampler.next() - 0.5, camRotMat);
+			boolean hit = sample(rays, sampler, color);
+			film.add(x, y, color[0], color[1], color[2]);
+			if (aux != null) {
+				aux.add(x, y, rays[0], hit);
+			}
+			if (cost != null) {
+				cost.stop(x, y, rays[0]);
+			}
+			return;
+		}
+
+		// queued samples of the same pixel come first
+		PacketTracer packet = PacketTracer.get();
+		int l = packet.size++;
+		int index = film.getCount(x, y);
+		for (int k = 0; k < l; k++) {
+			if (packet.x[k] == x && packet.y[k] == y) {
+				index++;
+			}
+		}
+		packet.x[l] = x;
+		packet.y[l] = y;
+		packet.index[l] = index;
+		sampler.start(x, y, index);
+		camRay(packet.rays[l], x + sampler.next() - 0.5,
+				y + sampler.next() - 0.5, camRotMat);
+
+		if (packet.size == PacketTracer.SIZE) {
+			flush(film, rays, sampler, color);
+		}
+	}
+
+	/**
+	 * Trace the queued camera rays as one packet and add their samples, in
+	 * the order they were queued. Does nothing without packets.
+	 * 
+	 * @param film    film to add samples to
+	 * @param rays    camera ray, followed by one ray for each bounce
+	 * @param sampler random numbers of this thread
+	 * @param color   scratch space for sample color
+	 */
+	static void flush(Film film, Ray[] rays, Sampler sampler,
+			double[] color) {
+		if (!USE_PACKETS) {
+			return;
+		}
+		PacketTracer packet = PacketTracer.get();
+		if (packet.size == 0) {
+			return;
+		}
+		// tracing the packet costs each of its pixels the same
+		if (cost != null) {
+			cost.start(rays[0]);
+		}
+		packet.intersect(scene);
+		if (cost != null) {
+			cost.share(packet.x, packet.y, packet.size, rays[0]);
+		}
+
+		for (int l = 0; l < packet.size; l++) {
+			// pick up the sample's random numbers after the jitter
+			int x = packet.x[l], y = packet.y[l];
+			if (cost != null) {
+				cost.start(rays[0]);
+			}
+			sampler.start(x, y, packet.index[l]);
+			sampler.next();
+			sampler.next();
+			rays[0].set(packet.rays[l]);
+			shade(rays, packet.hit[l], sampler, color);
+			film.add(x, y, color[0], color[1], color[2]);
+			if (aux != null) {
+				aux.add(x, y, rays[0], packet.hit[l]);
+			}
+			if (cost != null) {
+				cost.stop(x, y, rays[0]);
+			}
+		}
+		packet.size = 0;
+	}
+
+	/**
+	 * Render one tile of a preview. At scale 1 every pixel gets one more
+	 * jittered sample. At larger scales one sample is taken at the center of
+	 * each scale by scale block of pixels and added to the whole block,
+	 * with the random numbers of the given sample index.
+	 * 
+	 * @param film      film to add samples to
+	 * @param scale     width and height of a block in pixels, a power of 2
+	 * @param index     sample index of blocks, so frames differ in noise
+	 * @param i0        first row of tile
+	 * @param j0        first column of tile
+	 * @param camRotMat camera rotation matrix
+	 * @param stop      checked before each row, the rest of the tile is
+	 *                  skipped once it is true
+	 */
+	static void previewTile(Film film, int scale, int index, int i0,
+			int j0, double[][] camRotMat, BooleanSupplier stop) {
+		// primary collision info, followed by one ray for each bounce
+		Ray[] rays = threadRays.get();
+		Sampler sampler = threadSampler.get();
+		double[] color = new double[3];
+
+		// loop through blocks
+		int iEnd = Math.min(i0 + TILE_SIZE, HEIGHT);
+		int jEnd = Math.min(j0 + TILE_SIZE, WIDTH);
+		for (int i = i0; i < iEnd && !stop.getAsBoolean(); i += scale) {
+			for (int j = j0; j < jEnd; j += scale) {
+				if (scale == 1) {
+					samplePixel(film, j, i, rays, sampler, color, camRotMat);
+					continue;
+				}
+				sampler.start(j, i, index);
+				camRay(rays[0], j + (scale - 1) / 2d, i + (scale - 1) / 2d,
+						camRotMat);
+				sample(rays, sampler, color);
+				for (int y = i; y < Math.min(i + scale, iEnd); y++) {
+					for (int x = j; x < Math.min(j + scale, jEnd); x++) {
+						film.add(x, y, color[0], color[1], color[2]);
+					}
+				}
+			}
+		}
+		flush(film, rays, sampler, color);
+	}
+
+	/**
+	 * Check if a pixel needs no more samples. A pixel has converged once it
+	 * has MIN_SAMPLES and its relative error is below TARGET_ERROR, or once
+	 * it has MAX_SAMPLES.
+	 */
+	private static boolean converged(Film film, int x, int y) {
+		int n = film.getCount(x, y);
+		return n >= MAX_SAMPLES
+				|| (n >= MIN_SAMPLES && film.getError(x, y) < TARGET_ERROR);
+	}
+
+	/**
+	 * Set up a ray from the camera through a point on the image
+	 * 
+	 * @param camRay    ray to set up
+	 * @param x         horizontal pixel coords, pixel centers are integers
+	 * @param y         vertical pixel coords, pixel centers are integers
+	 * @param camRotMat camera rotation matrix
+	 */
+	private static void camRay(Ray camRay, double x, double y,
+			double[][] camRotMat) {
+		if (Telemetry.ENABLED) {
+			camRay.stats.cameraRays++;
+		}
+		double step = 2 * Math.tan(FOV) / WIDTH;
+		camRay.o.set(camLoc);
+		camRay.d.set(
+				// iterate horizontally
+				step * (x - (WIDTH / 2)),
+				// iterate vertically
+				step * ((HEIGHT / 2) - y),
+				-1);
+		camRay.d.mulLocal(camRotMat).normLocal();
+	}
+
+	/**
+	 * Trace a camera ray and get the radiance it carries back to the camera
+	 * 
+	 * @param rays    camera ray, followed by one ray for each bounce
+	 * @param sampler random numbers of the sample
+	 * @param color   rgb radiance of sample is written here, 1 is white
+	 * @return true if the camera ray hit a mesh
+	 */
+	private static boolean sample(Ray[] rays, Sampler sampler,
+			double[] color) {
+		boolean hit = collision(rays[0]);
+		shade(rays, hit, sampler, color);
+		return hit;
+	}
+
+	/**
+	 * Get the radiance a traced camera ray carries back to the camera
+	 * 
+	 * @param rays    camera ray with its collision info, followed by one ray
+	 *                for each bounce
+	 * @param hit     true if the camera ray hit a mesh
+	 * @param sampler random numbers of the sample
+	 * @param color   rgb radiance of sample is written here, 1 is white
+	 */
+	private static void shade(Ray[] rays, boolean hit, Sampler sampler,
+			double[] color) {
 
-				// pixel color is avg of each sub-sample
-				pixelColor = pixelColor.mul(1d / (AA_SAMPLES * AA_SAMPLES));
-				display.set(j, i, (int) pixelColor.getX(),
-						(int) pixelColor.getY(), (int) pixelColor.getZ());
+		// if camRay intersects with any mesh
+		if (hit) {
+
+			// scatter light from point of collision
+			double totalColor = pathTrace ? trace(rays[0], rays[1], sampler)
+					: luminance(rays, 0, MAX_BOUNCES, SAMPLES, sampler);
+			color[0] = totalColor;
+			color[1] = totalColor;
+			color[2] = totalColor;
+		}
+
+		// if no collision, display sky
+		else {
+			color[0] = 201d / 255;
+			color[1] = 226d / 255;
+			color[2] = 1;
+		}
+	}
+
+	/**
+	 * Luminance at point hit in direction of the camera, estimated with a
+	 * single path. The path scatters once per bounce and keeps track of how
+	 * much light can still reach the camera (throughput). After RR_DEPTH
+	 * bounces, paths with low throughput are ended at random (russian
+	 * roulette) and survivors are weighted up so the estimate is unbiased.
+	 * 
+	 * With NEE, every bounce also sends a shadow ray towards the sky, picked
+	 * in proportion to its brightness so the sun is found almost every time
+	 * (next event estimation). Sky light found that way and sky light found
+	 * by scattered rays are both kept, weighted by the power heuristic
+	 * (multiple importance sampling), so neither is counted twice.
+	 * 
+	 * @param ray     collision info of point hit
+	 * @param scatter ray reused for each bounce and shadow ray
+	 * @param sampler random numbers of the path
+	 * @return luminance at point hit in direction of camera
+	 */
+	public static double trace(Ray ray, Ray scatter, Sampler sampler) {
+		double throughput = 1;
+		double radiance = 0;
+
+		for (int bounce = 0;; bounce++) {
+
+			// some light absorbed
+			throughput = throughput * Material.ALBEDO;
+
+			// light from a direction picked by brightness, if not blocked
+			if (NEE) {
+				double pdfSky = SkyLight.sample(scatter.d, sampler);
+				scatter.spawn(ray);
+				double pdfMat = Material.pdf(ray.n, scatter.d);
+				if (pdfSky > 0 && pdfMat > 0) {
+					if (Telemetry.ENABLED) {
+						scatter.stats.shadowRays++;
+					}
+					if (!occluded(scatter, Double.MAX_VALUE)) {
+						radiance = radiance + throughput
+								* SkyLight.getLight(scatter.d) * pdfMat / pdfSky
+								* misWeight(pdfSky, pdfMat);
+					}
+				}
 			}
-			display.repaint(); // update image
+
+			// scatter light in new direction
+			Material.scatter(ray.n, ray.t1, ray.t2, scatter.d, sampler);
+			scatter.spawn(ray);
+			if (Telemetry.ENABLED) {
+				scatter.stats.scatter(bounce);
+			}
+
+			// ray hits light
+			if (!collision(scatter)) {
+				double light = SkyLight.getLight(scatter.d);
+				if (NEE) {
+					light = light * misWeight(Material.pdf(ray.n, scatter.d),
+							SkyLight.pdf(scatter.d));
+				}
+				return radiance + throughput * light;
+			}
+
+			// contribution from scattered point follows inverse square law
+			throughput = throughput / ((GI_SCALE * ray.tuv.getX() + 1)
+					* (GI_SCALE * ray.tuv.getX() + 1));
+
+			// russian roulette
+			if (bounce + 1 >= RR_DEPTH) {
+				double survive = Math.min(throughput, 0.95);
+				if (sampler.next() >= survive) {
+					return radiance;
+				}
+				throughput = throughput / survive;
+			}
+
+			// continue path from scattered point
+			Ray next = ray;
+			ray = scatter;
+			scatter = next;
 		}
 	}
 
+	/**
+	 * Power heuristic weight of a sample taken with density pdf, when
+	 * another strategy with density other could also have taken it
+	 */
+	private static double misWeight(double pdf, double other) {
+		return pdf * pdf / (pdf * pdf + other * other);
+	}
+
 	/**
 	 * Sum of all contributions of light that collide with point hit and scatter
 	 * in the direction of the camera or an intermediate surface. This is a
 	 * recursive algorithm with a maximum ray depth of numBounces. After each
 	 * collision with a surface, the number of scattered rays is cut in half.
 	 * 
-	 * @param hit        the point on a surface in cartesian coordinates
-	 * @param tuv        the point in barycentric coordinates
-	 * @param n          the normal of the surface at point hit
-	 * @param t1         tangent 1 of the surface at point hit
-	 * @param t2         tangent 2 of the surface at point hit
+	 * With cacheIrradiance, the light arriving at hit is interpolated from
+	 * points nearby where it was worked out before, and only worked out
+	 * fresh, with OVERSAMPLE times more rays, where none are close enough.
+	 * 
+	 * @param rays       one ray for each bounce, reused between samples
+	 * @param level      rays[level] holds the collision info of point hit
 	 * @param numBounces the maximum number of remaining bounces
+	 * @param sampler    random numbers of the sample
 	 * @return luminance at point hit in direction of camera or surface
 	 */
-	public static double luminance(Vector3 hit, Vector3 tuv, Vector3 n,
-			Vector3 t1, Vector3 t2, int numBounces, int samples) {
+	public static double luminance(Ray[] rays, int level, int numBounces,
+			int samples, Sampler sampler) {
 
 		// reached end of recursive limit
 		if (numBounces < 1) {
 			return 0;
 		}
 
-		// data to add up light from each sample
-		Vector3 scatter = new Vector3(0, 0, 0);
-		double totalLuminance = 0;
+		// point of collision
+		Ray ray = rays[level];
 
-		// info for secondary light bounces
-		// point s is found by scattering and colliding rays from hit
-		Vector3 hitS = new Vector3(0, 0, 0);
-		Vector3 tuvS = new Vector3(0, 0, 0);
-		Vector3 nS = new Vector3(0, 0, 0);
-		Vector3 t1S = new Vector3(0, 0, 0);
-		Vector3 t2S = new Vector3(0, 0, 0);
-		double luminanceS = 0; // luminance at s in direction of hit
+		// average light arriving at hit, from the sky and from other
+		// surfaces
+		double[] light = ray.light;
+		light[IrradianceCache.SKY] = 0;
+		light[IrradianceCache.BOUNCE] = 0;
+		if (cacheIrradiance) {
+			IrradianceCache cache = irradiance[numBounces - 1];
+			if (!cache.lookup(ray.hit, ray.n, light)) {
+				if (ray.gather == null || ray.gather.rays != rays) {
+					ray.gather = new Gather(rays, level);
+				}
+				ray.gather.set(numBounces, samples, sampler);
+				cache.add(scene, ray, rays[level + 1],
+						IrradianceCache.OVERSAMPLE * samples, sampler,
+						ray.gather, light);
+			}
+		} else {
+			// scatter light mutliple times and sum contribution at hit
+			Ray scatter = rays[level + 1];
+			double[] part = ray.part;
+			for (int k = 0; k < samples; k++) {
+				Material.scatter(ray.n, ray.t1, ray.t2, scatter.d, sampler);
+				scatter.spawn(ray);
+				incoming(rays, level, numBounces, samples, sampler, part);
+				light[IrradianceCache.SKY] += part[IrradianceCache.SKY];
+				light[IrradianceCache.BOUNCE] += part[IrradianceCache.BOUNCE];
+			}
+			light[IrradianceCache.SKY] /= samples;
+			light[IrradianceCache.BOUNCE] /= samples;
+		}
 
-		// scatter light mutliple times and sum contribution at hit
-		for (int k = 0; k < samples; k++) {
+		// contribution from scattered points follows inverse square law
+		// some light absorbed - include mesh color here
+		// TODO: adjust for color
+		return Material.ALBEDO * (light[IrradianceCache.SKY]
+				+ light[IrradianceCache.BOUNCE]
+						/ ((GI_SCALE * ray.tuv.getX() + 1)
+								* (GI_SCALE * ray.tuv.getX() + 1)));
+	}
 
-			// scatter light in new direction
-			scatter = Material.scatter(n, t1, t2);
-			luminanceS = 0;
+	/**
+	 * Gathers light along the rays of a new irradiance record for luminance.
+	 * Each ray of a thread keeps one for its bounce, so making a record does
+	 * not allocate a callback.
+	 */
+	static class Gather implements IrradianceCache.Incoming {
+		final Ray[] rays;
+		private final int level;
+		private int numBounces, samples;
+		private Sampler sampler;
 
-			// if hits mesh, add contribution from mesh
-			if (collision(hit, scatter, hitS, tuvS, nS, t1S, t2S)) {
+		/**
+		 * @param rays  one ray for each bounce of the thread
+		 * @param level rays[level] holds the point of the records
+		 */
+		Gather(Ray[] rays, int level) {
+			this.rays = rays;
+			this.level = level;
+		}
 
-				// get light contribution from direction s (scattered ray)
-				// contribution from scattered point follows inverse square law
-				luminanceS = luminance(hitS, tuvS, nS, t1S, t2S, numBounces - 1,
-						samples / 2)
-						/ ((GI_SCALE * tuv.getX() + 1)
-								* (GI_SCALE * tuv.getX() + 1));
+		/**
+		 * Set the arguments of luminance for the next record
+		 */
+		void set(int numBounces, int samples, Sampler sampler) {
+			this.numBounces = numBounces;
+			this.samples = samples;
+			this.sampler = sampler;
+		}
 
-				// add luminance from the secondary mesh collision
-				totalLuminance = totalLuminance + luminanceS;
-			}
+		@Override
+		public double trace(Ray scatter, double[] light) {
+			return incoming(rays, level, numBounces, samples, sampler, light);
+		}
+	}
 
-			// ray hits light
-			else {
-				// contribution from light source
-				// some light absorbed - include mesh color here
-				totalLuminance = totalLuminance + SkyLight.getLight(scatter);
+	/**
+	 * Helper method for luminance. Light carried back along a scattered ray,
+	 * straight from the sky or from the surface it hits.
+	 * 
+	 * @param rays       one ray for each bounce, rays[level + 1] is set up
+	 *                   and spawned from rays[level]
+	 * @param level      rays[level] holds the collision info of point hit
+	 * @param numBounces the maximum number of remaining bounces at hit
+	 * @param samples    number of scattered rays at hit
+	 * @param sampler    random numbers of the sample
+	 * @param light      sky and bounce light are written here
+	 * @return distance to the surface hit, infinity if the sky is seen
+	 */
+	private static double incoming(Ray[] rays, int level, int numBounces,
+			int samples, Sampler sampler, double[] light) {
+		Ray scatter = rays[level + 1];
+		if (Telemetry.ENABLED) {
+			scatter.stats.scatter(level);
+		}
+		light[IrradianceCache.SKY] = 0;
+		light[IrradianceCache.BOUNCE] = 0;
+
+		// last bounce only needs to know if the sky is visible, unless the
+		// cache needs the distance
+		if (numBounces == 1 && !cacheIrradiance) {
+			if (!occluded(scatter, Double.MAX_VALUE)) {
+				light[IrradianceCache.SKY] = SkyLight.getLight(scatter.d);
 			}
+			return Double.POSITIVE_INFINITY;
+		}
+
+		// if hits mesh, get light contribution from the secondary collision
+		if (collision(scatter)) {
+			light[IrradianceCache.BOUNCE] = luminance(rays, level + 1,
+					numBounces - 1, samples / 2, sampler);
+			return scatter.tuv.getX();
 		}
 
-		// return luminance at point hit
-		totalLuminance = totalLuminance * 0.8; // TODO: adjust for color
-		return totalLuminance / samples;
+		// ray hits light
+		light[IrradianceCache.SKY] = SkyLight.getLight(scatter.d);
+		return Double.POSITIVE_INFINITY;
 	}
 
 	/**
 	 * Generate a quick, low quality image to test the scene
+	 * 
+	 * @return film holding the image
 	 */
-	public static void view() {
+	public static Film view() {
 		// generate camera rotation matrix
-		double[][] camRotMat = Vector3.getRotMat(CAM_ROT);
+		double[][] camRotMat = Vector3.getRotMat(camRot);
+		Film film = new Film(WIDTH, HEIGHT);
 
 		// calculate value for each pixel
-		double step = 2 * Math.tan(FOV) / WIDTH;
-		Vector3 camRay;
-		Vector3 hit = new Vector3(0, 0, 0);
-		Vector3 tuv = new Vector3(0, 0, 0);
-		Vector3 n = new Vector3(0, 0, 0);
-		Vector3 t1 = new Vector3(0, 0, 0);
-		Vector3 t2 = new Vector3(0, 0, 0);
-		int color = 0;
+		Ray camRay = new Ray();
+		double color = 0;
 
 		// loop through pixels
 		for (int j = 0; j < HEIGHT; j++) {
 			for (int i = 0; i < WIDTH; i++) {
 				
 				// direction of ray for pixel ij
-				camRay = new Vector3(
-						step * (i - (WIDTH / 2)),
-						step * ((HEIGHT / 2) - j),
-						-1).mul(camRotMat).norm();
+				camRay(camRay, i, j, camRotMat);
 
 				// check intersection (any object in scene)
-				if (collision(CAM_LOC, camRay, hit, tuv, n, t1, t2)) {
-					color = (int) Math.round(camRay.dot(n) * -255);
-					display.set(i, j, color, color, color);
+				if (collision(camRay)) {
+					color = -camRay.d.dot(camRay.n);
+					film.add(i, j, color, color, color);
 				} else {
-					display.set(i, j, 201, 226, 255);
+					film.add(i, j, 201d / 255, 226d / 255, 1);
 				}
 				
 			}
-			display.repaint(); // update image
+
+			// update image
+			if (display != null) {
+				film.show(display, 0, j, WIDTH, j + 1);
+			}
 		}
-		
+		return film;
 	}
 
 	/**
 	 * Check meshes in scene for ray intersection. The closest intersection is
 	 * where the light will collide and scatter.
 	 * 
-	 * @param o   origin of ray
-	 * @param d   direction of ray
-	 * @param hit collision coords
-	 * @param tuv barycentric coords
-	 * @param n   normal
+	 * @param ray ray to trace, collision info is written here
 	 * @return false if no intersection
 	 */
-	private static boolean collision(Vector3 o, Vector3 d, Vector3 hit,
-			Vector3 tuv, Vector3 n, Vector3 t1, Vector3 t2) {
-
-		// store intersection info of current triangle
-		double dist = Double.MAX_VALUE;
-		Vector3 hitC = new Vector3(0, 0, 0);
-		Vector3 tuvC = new Vector3(0, 0, 0);
-		Vector3 nC = new Vector3(0, 0, 0);
-		Vector3 t1C = new Vector3(0, 0, 0);
-		Vector3 t2C = new Vector3(0, 0, 0);
-
-		// check all objects in scene
-		for (int i = 0; i < scene.size(); i++) {
-			// if there is a closer collision
-			if (scene.get(i).meshInt(o, d, hitC, tuvC, nC, t1C, t2C)
-					&& tuvC.getX() < dist) {
-				// update intersection info
-				dist = tuvC.getX();
-				hit.set(hitC);
-				tuv.set(tuvC);
-				n.set(nC);
-				t1.set(t1C);
-				t2.set(t2C);
-			}
-		}
-		return dist < Double.MAX_VALUE;
+	private static boolean collision(Ray ray) {
+		return scene.intersect(ray);
+	}
+	/**
+	 * Check meshes in scene for anything blocking the ray before tMax. Use
+	 * this instead of collision when only visibility is needed.
+	 * 
+	 * @param ray  ray to trace, collision info is not written
+	 * @param tMax ignore collisions farther than this
+	 * @return true if the ray is blocked
+	 */
+	private static boolean occluded(Ray ray, double tMax) {
+		return scene.occluded(ray, tMax);
 	}
 }
\ No newline at end of file
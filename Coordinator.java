@@ -0,0 +1,404 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Renders a frame on worker processes, usually one per render node (see
+ * Worker). The coordinator listens on a port and workers connect to it.
+ * Tiles are handed out in spiral order, each worker getting one per render
+ * thread, and finished tiles are copied into the film as they come back.
+ *
+ * A tile comes out the same on any worker, so tiles can be moved freely.
+ * Workers gather light without the irradiance cache for this, since its
+ * records would depend on the tiles a worker rendered before.
+ * Tiles of a worker that disconnects or goes silent are handed to the
+ * others. Once a tile has taken SLOW times longer than the median tile,
+ * an idle worker gets a copy as well, and whichever copy finishes first
+ * is kept.
+ *
+ * Messages are ints over a plain socket:
+ *
+ * worker: MAGIC VERSION settings threads, then RESULT or HEARTBEAT
+ * coordinator: TILE index i0 j0, and END once the frame is done
+ *
+ * @author Jeremy Parker Yang
+ *
+ */
+public class Coordinator {
+
+	// protocol
+	final static int MAGIC = 0x54494C45; // "TILE"
+	final static int VERSION = 1; // change when messages change
+	final static int TILE = 1; // render a tile: index, first row, column
+	final static int END = 2; // frame is done
+	final static int RESULT = 3; // tile index, byte count, film region
+	final static int HEARTBEAT = 4; // worker is still there
+
+	// scheduling
+	final static int PORT = 7077; // default port
+	final static long HEARTBEAT_MS = 1000; // ms between heartbeats
+	final static int TIMEOUT = 10000; // ms of silence before dropping a worker
+	final static double SLOW = 3; // copy tiles slower than this times median
+	final static long MIN_SLOW = 2000; // ms, never copy tiles faster than this
+	final static int COPIES = 2; // most workers rendering one tile
+
+	// image
+	private final Film film = new Film(Camera.WIDTH, Camera.HEIGHT);
+	private final Display display;
+
+	// tiles in spiral order
+	private final int[][] tiles;
+	private final boolean[] done;
+	private final int[] copies; // number of workers rendering each tile
+	private final long[] started; // ms when each tile was handed out
+	private final ArrayList<Long> times = new ArrayList<>(); // ms per tile
+	private int remaining;
+
+	// connected workers
+	private final ArrayList<Socket> sockets = new ArrayList<>();
+
+	// hash of the contents of the mesh and sky files, see settings
+	private static Integer files;
+
+	/**
+	 * @param display display to show finished tiles on, null for none
+	 */
+	private Coordinator(Display display) {
+		this.display = display;
+		int rows = (Camera.HEIGHT + Camera.TILE_SIZE - 1) / Camera.TILE_SIZE;
+		int cols = (Camera.WIDTH + Camera.TILE_SIZE - 1) / Camera.TILE_SIZE;
+		tiles = Buckets.spiral(rows, cols);
+		done = new boolean[tiles.length];
+		copies = new int[tiles.length];
+		started = new long[tiles.length];
+		remaining = tiles.length;
+	}
+
+	/**
+	 * Render a frame on workers and wait for it
+	 *
+	 * @param port    port to listen on for workers
+	 * @param spawn   number of worker processes to start on this machine
+	 * @param args    extra options for spawned workers, such as -sky
+	 * @param display display to show finished tiles on, null for none
+	 * @return film holding the final image
+	 */
+	public static Film render(int port, int spawn, List<String> args,
+			Display display) throws IOException {
+		Coordinator c = new Coordinator(display);
+		settings(); // fail before waiting if the scene files are unreadable
+		ArrayList<Process> local = new ArrayList<>();
+		try (ServerSocket server = new ServerSocket(port)) {
+			System.out.println("waiting for workers on port " + port);
+
+			// workers can join at any time
+			Thread accept = new Thread(() -> c.accept(server));
+			accept.setDaemon(true);
+			accept.start();
+			for (int k = 0; k < spawn; k++) {
+				local.add(spawn(port, args));
+			}
+
+			// wait for every tile
+			synchronized (c) {
+				while (c.remaining > 0) {
+					try {
+						c.wait();
+					} catch (InterruptedException e) {
+						e.printStackTrace();
+						break;
+					}
+				}
+			}
+		} finally {
+			c.close();
+			for (Process p : local) {
+				try {
+					if (!p.waitFor(TIMEOUT, TimeUnit.MILLISECONDS)) {
+						p.destroy();
+					}
+				} catch (InterruptedException e) {
+					p.destroy();
+				}
+			}
+		}
+		return c.film;
+	}
+
+	/**
+	 * Settings that change the pixels of a tile, and the contents of the
+	 * mesh and sky files. Workers with other settings or files are turned
+	 * away so a frame is never mixed.
+	 *
+	 * @throws UncheckedIOException if the mesh or sky cannot be read
+	 */
+	static int settings() {
+		return Objects.hash(Camera.WIDTH, Camera.HEIGHT, Camera.TILE_SIZE,
+				Camera.AA_SAMPLES, Camera.SAMPLES, Camera.MAX_BOUNCES,
+				Camera.GI_SCALE, Camera.PATH_TRACE, Camera.SPP,
+				Camera.RR_DEPTH, Camera.NEE, Camera.SAMPLER, Camera.SEED,
+				Camera.ADAPTIVE, Camera.MIN_SAMPLES, Camera.MAX_SAMPLES,
+				Camera.BATCH, Camera.TARGET_ERROR, Camera.FOV,
+				Camera.CAM_LOC.getX(), Camera.CAM_LOC.getY(),
+				Camera.CAM_LOC.getZ(), Camera.CAM_ROT.getX(),
+				Camera.CAM_ROT.getY(), Camera.CAM_ROT.getZ(), Triangle.SINGLE,
+				Camera.MESH_SCALE.getX(), Camera.MESH_SCALE.getY(),
+				Camera.MESH_SCALE.getZ(), Camera.MESH_ROT.getX(),
+				Camera.MESH_ROT.getY(), Camera.MESH_ROT.getZ(),
+				Camera.MESH_TRANS.getX(), Camera.MESH_TRANS.getY(),
+				Camera.MESH_TRANS.getZ(), files());
+	}
+
+	/**
+	 * Helper method for settings. Hash of the contents of the mesh, the
+	 * plane and the sky image, read once. Paths are left out, so workers
+	 * can keep their copies anywhere.
+	 */
+	private static synchronized int files() {
+		if (files == null) {
+			files = Objects.hash(Arrays.hashCode(digest(Camera.mesh)),
+					Arrays.hashCode(digest("plane.obj")),
+					Arrays.hashCode(digest(Camera.sky)));
+		}
+		return files;
+	}
+
+	/**
+	 * Helper method for files. SHA-256 digest of a file.
+	 *
+	 * @param fileName file to read, null for none
+	 * @return digest, empty for no file
+	 */
+	private static byte[] digest(String fileName) {
+		if (fileName == null) {
+			return new byte[0];
+		}
+		try (InputStream in = Files.newInputStream(Paths.get(fileName))) {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			byte[] buf = new byte[1 << 16];
+			for (int n = in.read(buf); n >= 0; n = in.read(buf)) {
+				md.update(buf, 0, n);
+			}
+			return md.digest();
+		} catch (IOException e) {
+			throw new UncheckedIOException("cannot read " + fileName, e);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Start a worker process on this machine with the same class path and
+	 * JVM options
+	 */
+	private static Process spawn(int port, List<String> args)
+			throws IOException {
+		ArrayList<String> cmd = new ArrayList<>();
+		cmd.add(System.getProperty("java.home") + "/bin/java");
+		cmd.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+		cmd.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"),
+				"Camera", "-worker", "localhost:" + port, "-once"));
+		cmd.addAll(args);
+		return new ProcessBuilder(cmd).inheritIO().start();
+	}
+
+	/**
+	 * Serve each worker that connects on its own thread
+	 */
+	private void accept(ServerSocket server) {
+		while (true) {
+			try {
+				Socket socket = server.accept();
+				synchronized (this) {
+					sockets.add(socket);
+				}
+				Thread t = new Thread(() -> serve(socket));
+				t.setDaemon(true);
+				t.start();
+			} catch (IOException e) {
+				return; // server closed
+			}
+		}
+	}
+
+	/**
+	 * Hand out tiles to one worker and collect its results until the frame
+	 * is done or the worker is lost
+	 */
+	private void serve(Socket socket) {
+		String name = socket.getRemoteSocketAddress().toString();
+		ArrayList<Integer> mine = new ArrayList<>(); // tiles sent to worker
+		try {
+			socket.setSoTimeout(TIMEOUT);
+			DataInputStream in = new DataInputStream(
+					new BufferedInputStream(socket.getInputStream()));
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(socket.getOutputStream()));
+
+			// check worker renders the same frame
+			if (in.readInt() != MAGIC || in.readInt() != VERSION
+					|| in.readInt() != settings()) {
+				System.err.println(name + ": other version or settings");
+				return;
+			}
+			int threads = in.readInt();
+			System.out.println(name + ": joined with " + threads + " threads");
+
+			while (true) {
+				// keep one tile per thread in flight
+				synchronized (this) {
+					if (remaining == 0) {
+						break;
+					}
+					while (mine.size() < threads) {
+						int t = next(mine);
+						if (t < 0) {
+							break;
+						}
+						mine.add(t);
+						out.writeInt(TILE);
+						out.writeInt(t);
+						out.writeInt(tiles[t][0] * Camera.TILE_SIZE);
+						out.writeInt(tiles[t][1] * Camera.TILE_SIZE);
+					}
+				}
+				out.flush();
+
+				// heartbeats come every second, so tiles are handed out
+				// again soon after other workers fail
+				int msg = in.readInt();
+				if (msg == RESULT) {
+					int t = in.readInt();
+					byte[] data = new byte[in.readInt()];
+					in.readFully(data);
+					mine.remove((Integer) t);
+					finish(t, data);
+				} else if (msg != HEARTBEAT) {
+					throw new IOException("unknown message " + msg);
+				}
+			}
+			out.writeInt(END);
+			out.flush();
+		} catch (IOException e) {
+			synchronized (this) {
+				if (remaining > 0) {
+					System.err.println(name + ": lost, " + e);
+				}
+			}
+		} finally {
+			// tiles of a lost worker go to the others
+			synchronized (this) {
+				for (int t : mine) {
+					copies[t]--;
+				}
+				sockets.remove(socket);
+				notifyAll();
+			}
+			try {
+				socket.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Helper method for serve. Pick the next tile for a worker: the first
+	 * tile nobody has, else a slow tile the worker does not have yet.
+	 *
+	 * @param mine tiles the worker already has
+	 * @return index of tile, -1 if there is nothing to do
+	 */
+	private int next(ArrayList<Integer> mine) {
+		long now = System.currentTimeMillis();
+		for (int t = 0; t < tiles.length; t++) {
+			if (!done[t] && copies[t] == 0) {
+				copies[t]++;
+				started[t] = now;
+				return t;
+			}
+		}
+
+		// copy tiles that take much longer than usual
+		if (times.isEmpty()) {
+			return -1;
+		}
+		long[] sorted = times.stream().mapToLong(Long::longValue).sorted()
+				.toArray();
+		long slow = Math.max(MIN_SLOW,
+				(long) (SLOW * sorted[sorted.length / 2]));
+		for (int t = 0; t < tiles.length; t++) {
+			if (!done[t] && copies[t] < COPIES && !mine.contains(t)
+					&& now - started[t] > slow) {
+				copies[t]++;
+				return t;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Helper method for serve. Copy a finished tile into the film unless
+	 * another worker finished it first.
+	 */
+	private synchronized void finish(int t, byte[] data) throws IOException {
+		copies[t]--;
+		if (done[t]) {
+			return;
+		}
+		done[t] = true;
+		remaining--;
+		times.add(System.currentTimeMillis() - started[t]);
+
+		int i0 = tiles[t][0] * Camera.TILE_SIZE;
+		int j0 = tiles[t][1] * Camera.TILE_SIZE;
+		film.readRegion(new DataInputStream(new ByteArrayInputStream(data)),
+				j0, i0, j0 + Camera.TILE_SIZE, i0 + Camera.TILE_SIZE);
+		if (display != null) {
+			film.show(display, j0, i0, j0 + Camera.TILE_SIZE,
+					i0 + Camera.TILE_SIZE);
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Wait for every worker to be told the frame is done, which happens on
+	 * its next heartbeat. Workers that do not answer are cut off.
+	 */
+	private synchronized void close() {
+		long end = System.currentTimeMillis() + 2 * HEARTBEAT_MS;
+		for (long left = end - System.currentTimeMillis();
+				!sockets.isEmpty() && left > 0;
+				left = end - System.currentTimeMillis()) {
+			try {
+				wait(left);
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+		for (Socket socket : sockets) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
@@ -0,0 +1,195 @@
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Per pixel cost of a render: wall time, rays traced and triangle tests,
+ * summed over every sample of the pixel. Saved as false color images next
+ * to the render, so expensive regions such as grazing rays or pixels near
+ * the sun stand out. Ray and test counts come from the Telemetry counters
+ * and stay zero when telemetry is off.
+ *
+ * Pixels may be written from different threads as long as each pixel is
+ * only written by one at a time, like Film.
+ *
+ * @author Jeremy Parker Yang
+ *
+ */
+public class CostMap {
+
+	// channels, and the file name suffix of each
+	final static int TIME = 0; // ns
+	final static int RAYS = 1;
+	final static int TESTS = 2;
+	final static String[] NAMES = { "time", "rays", "tests" };
+
+	// brightest color goes to this fraction of pixels, so one slow pixel
+	// (such as one that waited for the JIT) does not darken the rest
+	final static double TOP = 0.999;
+
+	// false color ramp from cheap to expensive, rgb
+	private final static double[][] RAMP = { { 0, 0, 0 }, { 0.35, 0, 0.6 },
+			{ 0.85, 0.1, 0.2 }, { 1, 0.55, 0 }, { 1, 1, 0.2 }, { 1, 1, 1 } };
+
+	// image size
+	private final int width;
+	private final int height;
+
+	// per pixel totals, one for each channel
+	private final long[] cost;
+
+	// per thread start of the current sample: ns, rays, triangle tests
+	private final ThreadLocal<long[]> mark = ThreadLocal
+			.withInitial(() -> new long[3]);
+
+	/**
+	 * Create a new empty cost map with size width by height
+	 *
+	 * @param width  in pixels
+	 * @param height in pixels
+	 */
+	public CostMap(int width, int height) {
+		this.width = width;
+		this.height = height;
+		cost = new long[3 * width * height];
+	}
+
+	/**
+	 * Start measuring a sample on the current thread
+	 *
+	 * @param ray any ray of the thread, for its counters
+	 */
+	public void start(Ray ray) {
+		long[] m = mark.get();
+		Telemetry.Counters c = ray.stats;
+		m[RAYS] = c == null ? 0 : c.rays() - c.cameraRays;
+		m[TESTS] = c == null ? 0 : c.triTests;
+		m[TIME] = System.nanoTime();
+	}
+
+	/**
+	 * Add the cost since start to a pixel, along with its camera ray
+	 *
+	 * @param ray any ray of the thread, for its counters
+	 */
+	public void stop(int x, int y, Ray ray) {
+		long now = System.nanoTime();
+		long[] m = mark.get();
+		Telemetry.Counters c = ray.stats;
+		int p = 3 * (x + y * width);
+		cost[p + TIME] += now - m[TIME];
+		if (c != null) {
+			cost[p + RAYS] += 1 + c.rays() - c.cameraRays - m[RAYS];
+			cost[p + TESTS] += c.triTests - m[TESTS];
+		}
+	}
+
+	/**
+	 * Split the cost since start evenly between pixels, such as the cost of
+	 * tracing a packet of camera rays
+	 *
+	 * @param x   column of each pixel
+	 * @param y   row of each pixel
+	 * @param n   number of pixels
+	 * @param ray any ray of the thread, for its counters
+	 */
+	public void share(int[] x, int[] y, int n, Ray ray) {
+		long now = System.nanoTime();
+		long[] m = mark.get();
+		Telemetry.Counters c = ray.stats;
+		long time = now - m[TIME];
+		long tests = c == null ? 0 : c.triTests - m[TESTS];
+		for (int l = 0; l < n; l++) {
+			int p = 3 * (x[l] + y[l] * width);
+			cost[p + TIME] += (time + l) / n;
+			cost[p + TESTS] += (tests + l) / n;
+		}
+	}
+
+	/**
+	 * Total cost of a pixel
+	 *
+	 * @param c TIME, RAYS or TESTS
+	 */
+	public long get(int x, int y, int c) {
+		return cost[3 * (x + y * width) + c];
+	}
+
+	/**
+	 * Largest total of a channel over all pixels
+	 *
+	 * @param c TIME, RAYS or TESTS
+	 */
+	public long getMax(int c) {
+		long max = 0;
+		for (int p = c; p < cost.length; p += 3) {
+			max = Math.max(max, cost[p]);
+		}
+		return max;
+	}
+
+	/**
+	 * One channel as false colors on a log scale, from black for the
+	 * cheapest pixel to white for the most expensive ones (see TOP)
+	 *
+	 * @param c TIME, RAYS or TESTS
+	 * @return film holding one sample of color per pixel
+	 */
+	public Film falseColor(int c) {
+		// range of scale
+		long[] sorted = new long[width * height];
+		for (int p = 0; p < sorted.length; p++) {
+			sorted[p] = cost[3 * p + c];
+		}
+		Arrays.sort(sorted);
+		double lo = Math.log1p(sorted[0]);
+		double hi = Math.log1p(sorted[(int) (TOP * (sorted.length - 1))]);
+		double scale = hi > lo ? (RAMP.length - 1) / (hi - lo) : 0;
+
+		Film film = new Film(width, height);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				// position on ramp
+				double f = (Math.log1p(get(x, y, c)) - lo) * scale;
+				f = Math.max(0, Math.min(f, RAMP.length - 1));
+				int i = Math.min((int) f, RAMP.length - 2);
+				f = f - i;
+				film.add(x, y, RAMP[i][0] + f * (RAMP[i + 1][0] - RAMP[i][0]),
+						RAMP[i][1] + f * (RAMP[i + 1][1] - RAMP[i][1]),
+						RAMP[i][2] + f * (RAMP[i + 1][2] - RAMP[i][2]));
+			}
+		}
+		return film;
+	}
+
+	/**
+	 * Raw totals as a film: microseconds, rays and triangle tests in the
+	 * red, green and blue channels
+	 *
+	 * @return film holding one sample per pixel
+	 */
+	public Film toFilm() {
+		Film film = new Film(width, height);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				film.add(x, y, get(x, y, TIME) / 1e3, get(x, y, RAYS),
+						get(x, y, TESTS));
+			}
+		}
+		return film;
+	}
+
+	/**
+	 * Write name.time.png, name.rays.png and name.tests.png in false color
+	 * and the raw totals to name.cost.pfm
+	 *
+	 * @param name file name without extension
+	 */
+	public void write(String name) throws IOException {
+		for (int c = 0; c < NAMES.length; c++) {
+			ImageFile.writePNG(falseColor(c), name + "." + NAMES[c] + ".png");
+		}
+		ImageFile.writePFM(toFilm(), name + ".cost.pfm");
+		System.out.printf("most in one pixel: %.3f ms, %d rays, %d tests%n",
+				getMax(TIME) / 1e6, getMax(RAYS), getMax(TESTS));
+	}
+}
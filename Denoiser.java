@@ -0,0 +1,266 @@
+import java.util.stream.IntStream;
+
+/**
+ * Edge avoiding a-trous wavelet filter (Dammertz et al. 2010) with the
+ * variance guided weights of SVGF (Schied et al. 2017). Each pass blurs the
+ * image with a 5x5 B-spline kernel whose taps are spread twice as far as in
+ * the pass before, so five passes cover 61x61 pixels for the cost of 125
+ * taps per pixel. Every tap is weighted down where the first hit normal,
+ * depth or luminance differ from the center pixel, so the blur stays
+ * inside surfaces. Luminance is compared in standard errors, taken from
+ * the film, so noise is blurred away while real changes of brightness are
+ * kept. Of the two pixels compared, the less noisy one sets the error, so
+ * a clean lit pixel does not bleed into a noisy shadow next to it.
+ *
+ * Normals are the average of the pixel's samples and are shorter where
+ * the pixel is partly sky or covers an edge, so edge pixels are not
+ * blended with the pixels inside either surface.
+ *
+ * Radiance is divided by albedo before filtering and multiplied back
+ * after, so texture is not blurred with the noise. Rows are filtered in
+ * parallel.
+ *
+ * @author Jeremy Parker Yang
+ *
+ */
+public class Denoiser {
+
+	// filter settings
+	final static int PASSES = 5; // number of passes, each twice as wide
+	final static double SIGMA_L = 2; // luminance, in standard errors
+	final static double SIGMA_N = 128; // power of normal similarity
+	final static double SIGMA_Z = 1; // depth, in depth steps per pixel
+	final static double MIN_Z = 1e-3; // smallest depth step, times depth
+
+	// B3 spline kernel
+	private final static double[] KERNEL = { 1d / 16, 1d / 4, 3d / 8, 1d / 4,
+			1d / 16 };
+
+	// image size
+	private final int width;
+	private final int height;
+
+	// features
+	private final double[] normal; // xyz, averaged over samples
+	private final double[] depth;
+	private final double[] step; // depth change to the next pixel
+	private final double[] albedo; // rgb
+
+	// image being filtered and variance of its luminance
+	private double[] color; // rgb, divided by albedo
+	private double[] var;
+	private double[] blurVar; // var blurred by 3x3 gaussian
+
+	// output of current pass
+	private double[] nextColor;
+	private double[] nextVar;
+
+	/**
+	 * Filter a noisy image
+	 *
+	 * @param film image to filter, with variance per pixel
+	 * @param aux  first hit features of the same samples
+	 * @return film holding the filtered image, one sample per pixel
+	 */
+	public static Film denoise(Film film, AuxBuffer aux) {
+		Denoiser d = new Denoiser(film, aux);
+		for (int pass = 0; pass < PASSES; pass++) {
+			d.pass(1 << pass);
+		}
+		return d.toFilm();
+	}
+
+	/**
+	 * Helper method for denoise. Set up features and demodulated image.
+	 */
+	private Denoiser(Film film, AuxBuffer aux) {
+		width = film.getWidth();
+		height = film.getHeight();
+		int size = width * height;
+		normal = new double[3 * size];
+		depth = new double[size];
+		step = new double[size];
+		albedo = new double[3 * size];
+		color = new double[3 * size];
+		var = new double[size];
+		blurVar = new double[size];
+		nextColor = new double[3 * size];
+		nextVar = new double[size];
+
+		IntStream.range(0, height).parallel().forEach(y -> {
+			for (int x = 0; x < width; x++) {
+				int p = x + y * width;
+
+				// first hit
+				normal[3 * p] = aux.getNormal(x, y, 0);
+				normal[3 * p + 1] = aux.getNormal(x, y, 1);
+				normal[3 * p + 2] = aux.getNormal(x, y, 2);
+				depth[p] = aux.getDepth(x, y);
+
+				// radiance and its variance without albedo
+				double a = 0;
+				for (int c = 0; c < 3; c++) {
+					albedo[3 * p + c] = aux.getAlbedo(x, y, c);
+					color[3 * p + c] = albedo[3 * p + c] > 0
+							? film.get(x, y, c) / albedo[3 * p + c]
+							: film.get(x, y, c);
+					a += albedo[3 * p + c] / 3;
+				}
+				var[p] = film.getVariance(x, y) / Math.max(a * a, 1e-6);
+			}
+		});
+
+		// how fast depth changes across each pixel
+		IntStream.range(0, height).parallel().forEach(y -> {
+			for (int x = 0; x < width; x++) {
+				int p = x + y * width;
+				double z = depth[p];
+				double s = 0;
+				if (x + 1 < width && depth[p + 1] > 0) {
+					s = Math.max(s, Math.abs(depth[p + 1] - z));
+				}
+				if (x > 0 && depth[p - 1] > 0) {
+					s = Math.max(s, Math.abs(depth[p - 1] - z));
+				}
+				if (y + 1 < height && depth[p + width] > 0) {
+					s = Math.max(s, Math.abs(depth[p + width] - z));
+				}
+				if (y > 0 && depth[p - width] > 0) {
+					s = Math.max(s, Math.abs(depth[p - width] - z));
+				}
+				step[p] = Math.max(s, MIN_Z * z);
+			}
+		});
+	}
+
+	/**
+	 * Filter the image once
+	 *
+	 * @param spread distance between taps in pixels
+	 */
+	private void pass(int spread) {
+		IntStream.range(0, height).parallel().forEach(this::blurVar);
+		IntStream.range(0, height).parallel()
+				.forEach(y -> filter(y, spread));
+
+		// output becomes input of next pass
+		double[] c = color;
+		color = nextColor;
+		nextColor = c;
+		double[] v = var;
+		var = nextVar;
+		nextVar = v;
+	}
+
+	/**
+	 * Helper method for pass. Blur the variance of one row with a 3x3
+	 * gaussian, so one lucky sample does not stop the filter.
+	 */
+	private void blurVar(int y) {
+		for (int x = 0; x < width; x++) {
+			double sum = 0, weight = 0;
+			for (int dy = -1; dy <= 1; dy++) {
+				for (int dx = -1; dx <= 1; dx++) {
+					int qx = x + dx, qy = y + dy;
+					if (qx >= 0 && qx < width && qy >= 0 && qy < height) {
+						double w = (dx == 0 ? 2 : 1) * (dy == 0 ? 2 : 1);
+						sum += w * var[qx + qy * width];
+						weight += w;
+					}
+				}
+			}
+			blurVar[x + y * width] = sum / weight;
+		}
+	}
+
+	/**
+	 * Helper method for pass. Filter one row.
+	 *
+	 * @param spread distance between taps in pixels
+	 */
+	private void filter(int y, int spread) {
+		for (int x = 0; x < width; x++) {
+			int p = x + y * width;
+			double lp = luminance(p);
+			double vp = blurVar[p];
+			double nx = normal[3 * p], ny = normal[3 * p + 1],
+					nz = normal[3 * p + 2];
+			double z = depth[p];
+
+			double r = 0, g = 0, b = 0, v = 0, weight = 0;
+			for (int dy = -2; dy <= 2; dy++) {
+				int qy = y + dy * spread;
+				if (qy < 0 || qy >= height) {
+					continue;
+				}
+				for (int dx = -2; dx <= 2; dx++) {
+					int qx = x + dx * spread;
+					if (qx < 0 || qx >= width) {
+						continue;
+					}
+					int q = qx + qy * width;
+					double w = KERNEL[dx + 2] * KERNEL[dy + 2];
+
+					// edge stopping, the center is always kept
+					if (q != p) {
+						double cos = nx * normal[3 * q] + ny * normal[3 * q + 1]
+								+ nz * normal[3 * q + 2];
+						if (cos <= 0) {
+							continue;
+						}
+						double dist = spread * Math.sqrt(dx * dx + dy * dy);
+						double sigmaL = SIGMA_L
+								* Math.sqrt(Math.min(vp, blurVar[q])) + 1e-10;
+						w = w * Math.pow(cos, SIGMA_N)
+								* Math.exp(-Math.abs(z - depth[q])
+										/ (SIGMA_Z * step[p] * dist)
+										- Math.abs(lp - luminance(q)) / sigmaL);
+					}
+
+					r += w * color[3 * q];
+					g += w * color[3 * q + 1];
+					b += w * color[3 * q + 2];
+					v += w * w * var[q];
+					weight += w;
+				}
+			}
+			nextColor[3 * p] = r / weight;
+			nextColor[3 * p + 1] = g / weight;
+			nextColor[3 * p + 2] = b / weight;
+			nextVar[p] = v / (weight * weight);
+		}
+	}
+
+	/**
+	 * Helper method for filter. Luminance of pixel p of the image being
+	 * filtered.
+	 */
+	private double luminance(int p) {
+		return (color[3 * p] + color[3 * p + 1] + color[3 * p + 2]) / 3;
+	}
+
+	/**
+	 * Helper method for denoise. Multiply albedo back into the filtered
+	 * image.
+	 */
+	private Film toFilm() {
+		Film film = new Film(width, height);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int p = x + y * width;
+				film.add(x, y, remodulate(3 * p), remodulate(3 * p + 1),
+						remodulate(3 * p + 2));
+			}
+		}
+		return film;
+	}
+
+	/**
+	 * Helper method for toFilm. One channel of the image times albedo.
+	 *
+	 * @param i index of channel in color
+	 */
+	private double remodulate(int i) {
+		return albedo[i] > 0 ? color[i] * albedo[i] : color[i];
+	}
+}
@@ -1,4 +1,5 @@
 import java.awt.*;
+import java.awt.event.*;
 import java.awt.image.*;
 import javax.swing.*;
 
@@ -21,6 +22,13 @@ class Display {
 
 	private int width;
 
+	// input since last read, see Preview
+	private final boolean[] keys = new boolean[256]; // held down
+	private int mouseX, mouseY; // last position while dragging
+	private int dragX, dragY; // pixels dragged
+	private int wheel; // wheel notches, positive towards the user
+	private volatile int events; // count of all input events
+
 	/**
 	 * Create a new display with size width by height
 	 * 
@@ -47,8 +55,50 @@ class Display {
 			}
 		};
 
+		// mouse and keyboard
+		MouseAdapter mouse = new MouseAdapter() {
+			public void mousePressed(MouseEvent e) {
+				synchronized (Display.this) {
+					mouseX = e.getX();
+					mouseY = e.getY();
+				}
+				events++;
+			}
+
+			public void mouseDragged(MouseEvent e) {
+				synchronized (Display.this) {
+					dragX += e.getX() - mouseX;
+					dragY += e.getY() - mouseY;
+					mouseX = e.getX();
+					mouseY = e.getY();
+				}
+				events++;
+			}
+
+			public void mouseWheelMoved(MouseWheelEvent e) {
+				synchronized (Display.this) {
+					wheel += e.getWheelRotation();
+				}
+				events++;
+			}
+		};
+		panel.addMouseListener(mouse);
+		panel.addMouseMotionListener(mouse);
+		panel.addMouseWheelListener(mouse);
+		panel.addKeyListener(new KeyAdapter() {
+			public void keyPressed(KeyEvent e) {
+				setKey(e.getKeyCode(), true);
+			}
+
+			public void keyReleased(KeyEvent e) {
+				setKey(e.getKeyCode(), false);
+			}
+		});
+		panel.setFocusable(true);
+
 		frame.add(panel);
 		frame.validate();
+		panel.requestFocusInWindow();
 		for (int y = 0; y < height; y++)
 			for (int x = 0; x < width; x++)
 				data.setElem(x + y * width, 0x00000000);
@@ -84,4 +134,47 @@ class Display {
 		data.setElem(x + y * width, r << 16 | g << 8 | b);
 	}
 
-}
\ No newline at end of file
+	/**
+	 * Check if a key is held down
+	 * 
+	 * @param code key code from KeyEvent, such as KeyEvent.VK_W
+	 */
+	public synchronized boolean isKeyDown(int code) {
+		return code >= 0 && code < keys.length && keys[code];
+	}
+
+	/**
+	 * Read the mouse input since the last call and start counting again
+	 * 
+	 * @return pixels dragged right, pixels dragged down and wheel notches
+	 *         turned towards the user
+	 */
+	public synchronized int[] takeMouse() {
+		int[] mouse = { dragX, dragY, wheel };
+		dragX = 0;
+		dragY = 0;
+		wheel = 0;
+		return mouse;
+	}
+
+	/**
+	 * Number of input events so far, it changes whenever there is new
+	 * input
+	 */
+	public int getEvents() {
+		return events;
+	}
+
+	/**
+	 * Helper method for key listener
+	 */
+	private void setKey(int code, boolean down) {
+		synchronized (this) {
+			if (code >= 0 && code < keys.length) {
+				keys[code] = down;
+			}
+		}
+		events++;
+	}
+
+}
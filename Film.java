@@ -0,0 +1,227 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * High dynamic range accumulation buffer. Samples are added to a running sum
+ * for each pixel so the image can be shown, saved or checked for convergence
+ * at any time while rendering.
+ *
+ * @author Jeremy Parker Yang
+ *
+ */
+public class Film {
+
+	// smallest luminance used when measuring relative error
+	final static double MIN_LUM = 1d / 255;
+
+	// image size
+	private final int width;
+	private final int height;
+
+	// per pixel sums
+	private final double[] sum; // rgb
+	private final double[] sumSq; // squared luminance
+	private final int[] count; // number of samples
+
+	/**
+	 * Create a new black film with size width by height
+	 *
+	 * @param width  in pixels
+	 * @param height in pixels
+	 */
+	public Film(int width, int height) {
+		this.width = width;
+		this.height = height;
+		sum = new double[3 * width * height];
+		sumSq = new double[width * height];
+		count = new int[width * height];
+	}
+
+	/**
+	 * Create a copy of a film, with the same samples
+	 *
+	 * @param film film to copy
+	 */
+	public Film(Film film) {
+		width = film.width;
+		height = film.height;
+		sum = film.sum.clone();
+		sumSq = film.sumSq.clone();
+		count = film.count.clone();
+	}
+
+	/**
+	 * Add one sample to a pixel. Pixels may be written from different
+	 * threads as long as each pixel is only written by one at a time.
+	 *
+	 * @param x the x location of the pixel
+	 * @param y the y location of the pixel
+	 * @param r red radiance, 1 is white
+	 * @param g green radiance, 1 is white
+	 * @param b blue radiance, 1 is white
+	 */
+	public void add(int x, int y, double r, double g, double b) {
+		int p = x + y * width;
+		sum[3 * p] += r;
+		sum[3 * p + 1] += g;
+		sum[3 * p + 2] += b;
+		double lum = (r + g + b) / 3;
+		sumSq[p] += lum * lum;
+		count[p]++;
+	}
+
+	/**
+	 * Average radiance of a pixel
+	 *
+	 * @param c 0 for red, 1 for green, 2 for blue
+	 */
+	public double get(int x, int y, int c) {
+		int p = x + y * width;
+		return count[p] == 0 ? 0 : sum[3 * p + c] / count[p];
+	}
+
+	/**
+	 * Number of samples in a pixel
+	 */
+	public int getCount(int x, int y) {
+		return count[x + y * width];
+	}
+
+	/**
+	 * Relative standard error of the average luminance of a pixel
+	 */
+	public double getError(int x, int y) {
+		int p = x + y * width;
+		int n = count[p];
+		if (n < 2) {
+			return Double.MAX_VALUE;
+		}
+		double mean = (sum[3 * p] + sum[3 * p + 1] + sum[3 * p + 2]) / (3 * n);
+		double var = Math.max(0, (sumSq[p] - n * mean * mean) / (n - 1));
+		return Math.sqrt(var / n) / Math.max(mean, MIN_LUM);
+	}
+
+	/**
+	 * Variance of the average luminance of a pixel. With fewer than two
+	 * samples the error is taken to be as large as the average.
+	 */
+	public double getVariance(int x, int y) {
+		int p = x + y * width;
+		int n = count[p];
+		double mean = n == 0 ? 0
+				: (sum[3 * p] + sum[3 * p + 1] + sum[3 * p + 2]) / (3 * n);
+		if (n < 2) {
+			return mean * mean;
+		}
+		return Math.max(0, (sumSq[p] - n * mean * mean) / (n - 1)) / n;
+	}
+
+	/**
+	 * Mean relative standard error over all pixels
+	 */
+	public double getError() {
+		double total = 0;
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				total += Math.min(getError(x, y), 1);
+			}
+		}
+		return total / (width * height);
+	}
+
+	/**
+	 * Clamp pixel radiance to a 0:255 color value
+	 */
+	public int getColor(int x, int y, int c) {
+		int color = (int) (255 * get(x, y, c));
+		return Math.max(0, Math.min(255, color));
+	}
+
+	/**
+	 * Copy running average of a region to the display. The region is
+	 * clipped to the image.
+	 *
+	 * @param display display to update
+	 * @param x0      first column of region
+	 * @param y0      first row of region
+	 * @param x1      one past the last column of region
+	 * @param y1      one past the last row of region
+	 */
+	public void show(Display display, int x0, int y0, int x1, int y1) {
+		x1 = Math.min(x1, width);
+		y1 = Math.min(y1, height);
+		for (int y = y0; y < y1; y++) {
+			for (int x = x0; x < x1; x++) {
+				display.set(x, y, getColor(x, y, 0), getColor(x, y, 1),
+						getColor(x, y, 2));
+			}
+		}
+		display.repaint();
+	}
+
+	/**
+	 * Write the sums of a region, so another film can pick up exactly the
+	 * same samples with readRegion. The region is clipped to the image.
+	 *
+	 * @param out stream to write to
+	 * @param x0  first column of region
+	 * @param y0  first row of region
+	 * @param x1  one past the last column of region
+	 * @param y1  one past the last row of region
+	 */
+	public void writeRegion(DataOutput out, int x0, int y0, int x1, int y1)
+			throws IOException {
+		x1 = Math.min(x1, width);
+		y1 = Math.min(y1, height);
+		for (int y = y0; y < y1; y++) {
+			for (int x = x0; x < x1; x++) {
+				int p = x + y * width;
+				out.writeInt(count[p]);
+				out.writeDouble(sum[3 * p]);
+				out.writeDouble(sum[3 * p + 1]);
+				out.writeDouble(sum[3 * p + 2]);
+				out.writeDouble(sumSq[p]);
+			}
+		}
+	}
+
+	/**
+	 * Replace the sums of a region with ones saved by writeRegion
+	 *
+	 * @param in stream to read from
+	 * @param x0 first column of region
+	 * @param y0 first row of region
+	 * @param x1 one past the last column of region
+	 * @param y1 one past the last row of region
+	 */
+	public void readRegion(DataInput in, int x0, int y0, int x1, int y1)
+			throws IOException {
+		x1 = Math.min(x1, width);
+		y1 = Math.min(y1, height);
+		for (int y = y0; y < y1; y++) {
+			for (int x = x0; x < x1; x++) {
+				int p = x + y * width;
+				count[p] = in.readInt();
+				sum[3 * p] = in.readDouble();
+				sum[3 * p + 1] = in.readDouble();
+				sum[3 * p + 2] = in.readDouble();
+				sumSq[p] = in.readDouble();
+			}
+		}
+	}
+
+	/**
+	 * Image width in pixels
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * Image height in pixels
+	 */
+	public int getHeight() {
+		return height;
+	}
+}
@@ -0,0 +1,66 @@
+/**
+ * Halton sequence, the radical inverse of the sample index in a different
+ * prime base for each dimension. Each pixel runs through the same sequence,
+ * shifted by a random amount per pixel and dimension (Cranley-Patterson
+ * rotation) so neighboring pixels do not repeat the same pattern. Dimensions
+ * past the table of primes fall back to pseudo random numbers.
+ *
+ * @author Jeremy Parker Yang
+ *
+ */
+public class HaltonSampler extends Sampler {
+
+	// bases of the first dimensions
+	private final static int[] PRIMES = primes(64);
+
+	HaltonSampler(long seed) {
+		super(seed);
+	}
+
+	@Override
+	public double next() {
+		int d = dim++;
+		long h = hash(x, y, d);
+		if (d >= PRIMES.length) {
+			return toUnit(mix(h + index));
+		}
+		double u = radicalInverse(index, PRIMES[d]) + toUnit(h);
+		return u >= 1 ? u - 1 : u;
+	}
+
+	/**
+	 * Digits of i in base b, mirrored about the decimal point
+	 */
+	static double radicalInverse(int i, int b) {
+		double inv = 1d / b;
+		double k = inv;
+		double u = 0;
+		while (i > 0) {
+			u += k * (i % b);
+			i /= b;
+			k *= inv;
+		}
+		return u;
+	}
+
+	/**
+	 * Helper method for PRIMES. First n prime numbers.
+	 */
+	private static int[] primes(int n) {
+		int[] p = new int[n];
+		int count = 0;
+		for (int c = 2; count < n; c++) {
+			boolean prime = true;
+			for (int k = 0; k < count && p[k] * p[k] <= c; k++) {
+				if (c % p[k] == 0) {
+					prime = false;
+					break;
+				}
+			}
+			if (prime) {
+				p[count++] = c;
+			}
+		}
+		return p;
+	}
+}
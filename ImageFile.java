@@ -0,0 +1,243 @@
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Save a film to disk without needing a display. PNG files hold the clamped
+ * 0:255 image, PFM files hold the raw HDR radiance. HDR images can also be
+ * read back into a film, from PFM or Radiance RGBE (.hdr) files.
+ *
+ * @author Jeremy Parker Yang
+ *
+ */
+public class ImageFile {
+
+	/**
+	 * Write clamped image as PNG
+	 *
+	 * @param film     image to write
+	 * @param fileName .png file to write
+	 */
+	public static void writePNG(Film film, String fileName)
+			throws IOException {
+		int width = film.getWidth();
+		int height = film.getHeight();
+		BufferedImage image = new BufferedImage(width, height,
+				BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				image.setRGB(x, y, film.getColor(x, y, 0) << 16
+						| film.getColor(x, y, 1) << 8 | film.getColor(x, y, 2));
+			}
+		}
+		ImageIO.write(image, "png", new File(fileName));
+	}
+
+	/**
+	 * Write HDR radiance as little endian color PFM (portable float map).
+	 * Rows are stored bottom to top as the format requires.
+	 *
+	 * @param film     image to write
+	 * @param fileName .pfm file to write
+	 */
+	public static void writePFM(Film film, String fileName)
+			throws IOException {
+		int width = film.getWidth();
+		int height = film.getHeight();
+		try (OutputStream out = new BufferedOutputStream(
+				new FileOutputStream(fileName))) {
+			// header, negative scale means little endian
+			String header = "PF\n" + width + " " + height + "\n-1.0\n";
+			out.write(header.getBytes(StandardCharsets.US_ASCII));
+
+			// one row of floats at a time
+			ByteBuffer row = ByteBuffer.allocate(12 * width)
+					.order(ByteOrder.LITTLE_ENDIAN);
+			for (int y = height - 1; y >= 0; y--) {
+				row.clear();
+				for (int x = 0; x < width; x++) {
+					row.putFloat((float) film.get(x, y, 0));
+					row.putFloat((float) film.get(x, y, 1));
+					row.putFloat((float) film.get(x, y, 2));
+				}
+				out.write(row.array());
+			}
+		}
+	}
+
+	/**
+	 * Read an HDR image, one sample per pixel. The format is picked from
+	 * the file extension.
+	 *
+	 * @param fileName .pfm or .hdr file to read
+	 * @return film holding the image, row 0 at the top
+	 */
+	public static Film read(String fileName) throws IOException {
+		try (DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(fileName)))) {
+			if (fileName.toLowerCase().endsWith(".pfm")) {
+				return readPFM(in);
+			}
+			return readHDR(in);
+		}
+	}
+
+	/**
+	 * Helper method for read. Color (PF) or grey (Pf) portable float map.
+	 */
+	private static Film readPFM(DataInputStream in) throws IOException {
+		String type = readToken(in);
+		int channels = type.equals("PF") ? 3 : type.equals("Pf") ? 1 : 0;
+		if (channels == 0) {
+			throw new IOException("not a PFM file");
+		}
+		int width = Integer.parseInt(readToken(in));
+		int height = Integer.parseInt(readToken(in));
+		double scale = Double.parseDouble(readToken(in));
+		ByteOrder order = scale < 0 ? ByteOrder.LITTLE_ENDIAN
+				: ByteOrder.BIG_ENDIAN;
+
+		// rows are stored bottom to top
+		Film film = new Film(width, height);
+		byte[] bytes = new byte[4 * channels * width];
+		ByteBuffer row = ByteBuffer.wrap(bytes).order(order);
+		for (int y = height - 1; y >= 0; y--) {
+			in.readFully(bytes);
+			row.clear();
+			for (int x = 0; x < width; x++) {
+				double r = row.getFloat();
+				double g = channels == 3 ? row.getFloat() : r;
+				double b = channels == 3 ? row.getFloat() : r;
+				film.add(x, y, r, g, b);
+			}
+		}
+		return film;
+	}
+
+	/**
+	 * Helper method for read. Radiance RGBE image, flat or run length
+	 * encoded, with the usual -Y height +X width layout.
+	 */
+	private static Film readHDR(DataInputStream in) throws IOException {
+		// header ends with a blank line, then the size
+		String line = readLine(in);
+		if (!line.startsWith("#?")) {
+			throw new IOException("not a Radiance HDR file");
+		}
+		while (!line.isEmpty()) {
+			line = readLine(in);
+			if (line.startsWith("FORMAT=") && !line.equals(
+					"FORMAT=32-bit_rle_rgbe")) {
+				throw new IOException("unsupported " + line);
+			}
+		}
+		String[] size = readLine(in).trim().split("\\s+");
+		if (size.length != 4 || !size[0].equals("-Y")
+				|| !size[2].equals("+X")) {
+			throw new IOException("unsupported layout "
+					+ String.join(" ", size));
+		}
+		int height = Integer.parseInt(size[1]);
+		int width = Integer.parseInt(size[3]);
+
+		Film film = new Film(width, height);
+		byte[] rgbe = new byte[4 * width];
+		for (int y = 0; y < height; y++) {
+			readScanline(in, rgbe, width);
+			for (int x = 0; x < width; x++) {
+				int e = rgbe[4 * x + 3] & 0xff;
+				double k = e == 0 ? 0 : Math.scalb(1d, e - 136);
+				film.add(x, y, k * (rgbe[4 * x] & 0xff),
+						k * (rgbe[4 * x + 1] & 0xff),
+						k * (rgbe[4 * x + 2] & 0xff));
+			}
+		}
+		return film;
+	}
+
+	/**
+	 * Helper method for readHDR. One scanline of rgbe pixels.
+	 */
+	private static void readScanline(DataInputStream in, byte[] rgbe,
+			int width) throws IOException {
+		// flat scanline
+		in.readFully(rgbe, 0, 4);
+		if (width < 8 || width > 0x7fff || rgbe[0] != 2 || rgbe[1] != 2
+				|| (rgbe[2] & 0x80) != 0) {
+			in.readFully(rgbe, 4, 4 * width - 4);
+			return;
+		}
+		if (((rgbe[2] & 0xff) << 8 | (rgbe[3] & 0xff)) != width) {
+			throw new IOException("bad scanline width");
+		}
+
+		// run length encoded, each channel stored separately
+		for (int c = 0; c < 4; c++) {
+			int x = 0;
+			while (x < width) {
+				int n = in.readUnsignedByte();
+				if (n > 128) {
+					// run of one value
+					n -= 128;
+					if (x + n > width) {
+						throw new IOException("bad run length");
+					}
+					byte val = in.readByte();
+					for (int i = 0; i < n; i++) {
+						rgbe[4 * x++ + c] = val;
+					}
+				} else {
+					// literal values
+					if (n == 0 || x + n > width) {
+						throw new IOException("bad run length");
+					}
+					for (int i = 0; i < n; i++) {
+						rgbe[4 * x++ + c] = in.readByte();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Helper method for readPFM. Next whitespace separated token.
+	 */
+	private static String readToken(DataInputStream in) throws IOException {
+		StringBuilder token = new StringBuilder();
+		int c = in.readUnsignedByte();
+		while (Character.isWhitespace(c)) {
+			c = in.readUnsignedByte();
+		}
+
+		// a single whitespace byte ends the token
+		while (!Character.isWhitespace(c)) {
+			token.append((char) c);
+			c = in.readUnsignedByte();
+		}
+		return token.toString();
+	}
+
+	/**
+	 * Helper method for readHDR. Next line without the line break.
+	 */
+	private static String readLine(DataInputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int c = in.readUnsignedByte();
+		while (c != '\n') {
+			line.append((char) c);
+			c = in.readUnsignedByte();
+		}
+		return line.toString();
+	}
+}
@@ -0,0 +1,497 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Irradiance cache (Ward et al. 1988, A Ray Tracing Solution for Diffuse
+ * Interreflection). Every surface is Lambertian, so the light arriving at a
+ * point changes slowly across a surface. It is worked out with many rays at
+ * a few points (records), and everywhere else interpolated from the records
+ * nearby. Each record keeps how fast its light changes as the surface turns
+ * and moves (Ward and Heckbert 1992, Irradiance Gradients), so records can
+ * be spread farther apart and interpolation follows the light smoothly.
+ *
+ * A record is used at points within ACCURACY of it, measured by distance
+ * relative to the harmonic mean distance of the surfaces it sees, plus the
+ * change of normal. Records are kept in a hash grid with one level per cell
+ * size, each record in the level whose cells are as wide as the region it
+ * covers, so a lookup checks one cell per level. Cells are kept in an open
+ * addressed hash table keyed by a long, and hold arrays that are replaced
+ * whole when a record is added. Lookups take no locks and allocate
+ * nothing, and records are added under the cache's lock, which is rare
+ * next to working out a record. The records made depend on the order
+ * tiles are rendered in, so images vary slightly from run to run.
+ *
+ * Light is kept in two parts: straight from the sky, and scattered by other
+ * surfaces (see Camera.luminance). Light from the sky is also sampled by
+ * brightness, like the path tracer's next event estimation, so a small
+ * bright sun does not leave each record with its own level of noise. The
+ * sky part has no translational gradient: taken from the hemisphere rays
+ * alone it is too noisy near the sun. It only limits the record's radius,
+ * so records crowd around the edges of shadows.
+ *
+ * @author Jeremy Parker Yang
+ *
+ */
+public class IrradianceCache {
+
+	// parts of the light arriving at a point
+	final static int SKY = 0; // straight from the sky
+	final static int BOUNCE = 1; // scattered by other surfaces
+
+	// accuracy
+	final static double ACCURACY = 0.25; // largest error of a lookup, Ward's a
+	final static int OVERSAMPLE = 8; // rays of a record, times a sample's
+	final static int SKY_RAYS = 4; // rays of a record per ray to the sky
+	final static double MIN_RADIUS = 0.02; // closest records, scene units
+	final static double MAX_RADIUS = 2; // farthest records, scene units
+	final static double DEPTH = 0.05; // records in front of a point, radii
+
+	// hash grid, cells of level k are CELL * 2^k wide
+	private final static double CELL = 2 * ACCURACY * MIN_RADIUS;
+	private final static int LEVELS = 2 + (int) (Math.log(MAX_RADIUS
+			/ MIN_RADIUS) / Math.log(2));
+
+	// cells of the hash grid, see get and put
+	private final static int TABLE_SIZE = 1024; // starting slots, power of 2
+	private volatile AtomicReferenceArray<Cell> table =
+			new AtomicReferenceArray<>(TABLE_SIZE);
+	private int numCells; // guarded by this
+	private final LongAdder size = new LongAdder();
+
+	/**
+	 * Light arriving at a point from one direction
+	 */
+	interface Incoming {
+		/**
+		 * @param scatter ray leaving the point, set up and spawned
+		 * @param light   sky and bounce light along the ray are written here
+		 * @return distance to the surface hit, infinity if the sky is seen
+		 */
+		double trace(Ray scatter, double[] light);
+	}
+
+	/**
+	 * Light arriving at one point, with its gradients
+	 */
+	private static class Record {
+		final double px, py, pz; // position
+		final double nx, ny, nz; // normal
+		final double radius; // harmonic mean distance, clamped
+		final double[] light; // sky and bounce
+		final double[] rot; // xyz per part, change as the normal turns
+		final double[] trans; // xyz of bounce, change as the point moves
+
+		Record(Ray ray, double radius, double[] light, double[] rot,
+				double[] trans) {
+			px = ray.hit.getX();
+			py = ray.hit.getY();
+			pz = ray.hit.getZ();
+			nx = ray.n.getX();
+			ny = ray.n.getY();
+			nz = ray.n.getZ();
+			this.radius = radius;
+			this.light = light;
+			this.rot = rot;
+			this.trans = trans;
+		}
+	}
+
+	/**
+	 * Records of one cell of the hash grid
+	 */
+	private static class Cell {
+		final long key;
+		volatile Record[] records;
+
+		Cell(long key, Record[] records) {
+			this.key = key;
+			this.records = records;
+		}
+	}
+
+	/**
+	 * Make array of empty caches, one for each number of bounces left
+	 *
+	 * @param size number of caches
+	 */
+	public static IrradianceCache[] array(int size) {
+		IrradianceCache[] caches = new IrradianceCache[size];
+		for (int i = 0; i < size; i++) {
+			caches[i] = new IrradianceCache();
+		}
+		return caches;
+	}
+
+	/**
+	 * Interpolate the light arriving at a point from the records near it
+	 *
+	 * @param p     point on a surface
+	 * @param n     normal of surface
+	 * @param light average sky and bounce light over the cosine weighted
+	 *              hemisphere are written here
+	 * @return false if no record is close enough
+	 */
+	public boolean lookup(Vector3 p, Vector3 n, double[] light) {
+		double x = p.getX(), y = p.getY(), z = p.getZ();
+		double sky = 0, bounce = 0, weight = 0;
+		for (int level = 0; level < LEVELS; level++) {
+			double cell = CELL * (1 << level);
+			Record[] records = get(key(level, cell(x, cell), cell(y, cell),
+					cell(z, cell)));
+			if (records == null) {
+				continue;
+			}
+			for (Record r : records) {
+				// Ward's error, from distance and change of normal
+				double dx = x - r.px, dy = y - r.py, dz = z - r.pz;
+				double cos = n.getX() * r.nx + n.getY() * r.ny
+						+ n.getZ() * r.nz;
+				double error = Math.sqrt(dx * dx + dy * dy + dz * dz)
+						/ r.radius + Math.sqrt(Math.max(0, 1 - cos));
+				if (error >= ACCURACY) {
+					continue;
+				}
+
+				// records in front of the point may see other light
+				double depth = (dx * (n.getX() + r.nx) + dy * (n.getY() + r.ny)
+						+ dz * (n.getZ() + r.nz)) / 2;
+				if (depth < -DEPTH * r.radius) {
+					continue;
+				}
+
+				// weight falls to zero at the edge of the record
+				double w = 1 / Math.max(error, 1e-6) - 1 / ACCURACY;
+
+				// turn of normal, n_i x n, and move of point
+				double cx = r.ny * n.getZ() - r.nz * n.getY();
+				double cy = r.nz * n.getX() - r.nx * n.getZ();
+				double cz = r.nx * n.getY() - r.ny * n.getX();
+				sky += w * (r.light[SKY] + cx * r.rot[0] + cy * r.rot[1]
+						+ cz * r.rot[2]);
+				bounce += w * (r.light[BOUNCE] + cx * r.rot[3]
+						+ cy * r.rot[4] + cz * r.rot[5] + dx * r.trans[0]
+						+ dy * r.trans[1] + dz * r.trans[2]);
+				weight += w;
+			}
+		}
+		if (weight == 0) {
+			return false;
+		}
+		light[SKY] = Math.max(0, sky / weight);
+		light[BOUNCE] = Math.max(0, bounce / weight);
+		return true;
+	}
+
+	/**
+	 * Work out the light arriving at a point and keep it as a record. Rays
+	 * are stratified over the cosine weighted hemisphere, m rings by n
+	 * sectors with n about pi times m, which the gradients need. Sky light
+	 * found by them is weighted against sky light found by rays picked by
+	 * brightness, with the power heuristic.
+	 *
+	 * @param scene      scene to trace rays to the sky in
+	 * @param ray        collision info of the point
+	 * @param scatter    ray to trace each direction with
+	 * @param directions number of rays to trace
+	 * @param sampler    random numbers of the sample
+	 * @param incoming   traces one direction
+	 * @param light      average sky and bounce light over the cosine
+	 *                   weighted hemisphere are written here
+	 */
+	public void add(Scene scene, Ray ray, Ray scatter, int directions,
+			Sampler sampler, Incoming incoming, double[] light) {
+		int m = Math.max(1, (int) Math.round(Math.sqrt(directions
+				/ Math.PI)));
+		int n = Math.max(3, directions / m);
+		int skyRays = Math.max(1, directions / SKY_RAYS);
+		Vector3 nrm = ray.n, t1 = ray.t1, t2 = ray.t2;
+
+		// trace stratified directions, ring j and sector k at j + k * m
+		double[] sky = new double[m * n];
+		double[] bounce = new double[m * n];
+		double[] dist = new double[m * n];
+		double[] part = new double[2];
+		double[] rot = new double[6];
+		double inverse = 0; // sum of inverse distances
+		double direct = 0; // sky light, weighted against rays to the sky
+		for (int k = 0; k < n; k++) {
+			for (int j = 0; j < m; j++) {
+				double sin = Math.sqrt((j + sampler.next()) / m);
+				double cos = Math.sqrt(1 - sin * sin);
+				double phi = 2 * Math.PI * (k + sampler.next()) / n;
+				double k1 = sin * Math.cos(phi);
+				double k2 = sin * Math.sin(phi);
+				scatter.d.set(
+						nrm.getX() * cos + t1.getX() * k1 + t2.getX() * k2,
+						nrm.getY() * cos + t1.getY() * k1 + t2.getY() * k2,
+						nrm.getZ() * cos + t1.getZ() * k1 + t2.getZ() * k2);
+				scatter.d.normLocal();
+				scatter.spawn(ray);
+				int s = j + k * m;
+				dist[s] = Math.max(incoming.trace(scatter, part), MIN_RADIUS);
+				sky[s] = part[SKY];
+				bounce[s] = part[BOUNCE];
+				inverse += 1 / dist[s];
+				if (sky[s] > 0) {
+					direct += sky[s] * misWeight(cos / Math.PI * m * n,
+							SkyLight.pdf(scatter.d) * skyRays);
+				}
+
+				// rotational gradient, along the tangent at right angles to
+				// the direction, weighted by -tan(theta)
+				double tan = -sin / Math.max(cos, 1e-3);
+				double vx = -Math.sin(phi) * t1.getX()
+						+ Math.cos(phi) * t2.getX();
+				double vy = -Math.sin(phi) * t1.getY()
+						+ Math.cos(phi) * t2.getY();
+				double vz = -Math.sin(phi) * t1.getZ()
+						+ Math.cos(phi) * t2.getZ();
+				rot[0] += tan * sky[s] * vx;
+				rot[1] += tan * sky[s] * vy;
+				rot[2] += tan * sky[s] * vz;
+				rot[3] += tan * bounce[s] * vx;
+				rot[4] += tan * bounce[s] * vy;
+				rot[5] += tan * bounce[s] * vz;
+			}
+		}
+
+		// rays to the sky, picked by brightness
+		direct /= m * n;
+		for (int s = 0; s < skyRays; s++) {
+			double pdfSky = SkyLight.sample(scatter.d, sampler);
+			double pdfMat = Material.pdf(nrm, scatter.d);
+			if (pdfSky > 0 && pdfMat > 0) {
+				scatter.spawn(ray);
+				if (Telemetry.ENABLED) {
+					scatter.stats.shadowRays++;
+				}
+				if (!scene.occluded(scatter, Double.MAX_VALUE)) {
+					direct += SkyLight.getLight(scatter.d) * pdfMat / pdfSky
+							* misWeight(pdfSky * skyRays, pdfMat * m * n)
+							/ skyRays;
+				}
+			}
+		}
+
+		// averages, the gradients are taken from the stratified rays alone
+		light[SKY] = direct;
+		light[BOUNCE] = 0;
+		for (int s = 0; s < m * n; s++) {
+			light[BOUNCE] += bounce[s] / (m * n);
+		}
+		for (int c = 0; c < 6; c++) {
+			rot[c] /= m * n;
+		}
+		double[] skyTrans = new double[3];
+		double[] trans = new double[3];
+		gradient(sky, dist, m, n, t1, t2, skyTrans);
+		gradient(bounce, dist, m, n, t1, t2, trans);
+
+		// records seeing close surfaces or steep changes cover less
+		double radius = inverse > 0 ? m * n / inverse : MAX_RADIUS;
+		double total = light[SKY] + light[BOUNCE];
+		double gx = skyTrans[0] + trans[0], gy = skyTrans[1] + trans[1],
+				gz = skyTrans[2] + trans[2];
+		double g = Math.sqrt(gx * gx + gy * gy + gz * gz);
+		if (g > 0) {
+			radius = Math.min(radius, total / g);
+		}
+		radius = Math.max(MIN_RADIUS, Math.min(radius, MAX_RADIUS));
+
+		insert(new Record(ray, radius, new double[] { light[SKY],
+				light[BOUNCE] }, rot, trans));
+	}
+
+	/**
+	 * Helper method for add. Power heuristic weight of a sample taken by a
+	 * strategy with density pdf times its number of samples, when another
+	 * with density other times its samples could also have taken it
+	 */
+	private static double misWeight(double pdf, double other) {
+		return pdf * pdf / (pdf * pdf + other * other);
+	}
+
+	/**
+	 * Helper method for add. Translational gradient of one part of the light
+	 * (Ward and Heckbert 1992), from how the light changes between
+	 * neighboring cells of the hemisphere and how far the surfaces seen are.
+	 *
+	 * @param light light of each cell, ring j and sector k at j + k * m
+	 * @param dist  distance seen by each cell
+	 * @param m     number of rings
+	 * @param n     number of sectors
+	 * @param grad  xyz of gradient are written here
+	 */
+	private static void gradient(double[] light, double[] dist, int m, int n,
+			Vector3 t1, Vector3 t2, double[] grad) {
+		double gu = 0, gv = 0; // along t1 and t2
+		for (int k = 0; k < n; k++) {
+			double phi = 2 * Math.PI * (k + 0.5) / n; // center of sector
+			double edge = 2 * Math.PI * k / n; // edge with sector k - 1
+			int prev = (k + n - 1) % n;
+
+			// across the edges between rings, along the sector
+			double across = 0;
+			for (int j = 1; j < m; j++) {
+				double sin = Math.sqrt((double) j / m);
+				double cos2 = 1 - (double) j / m;
+				across += sin * cos2
+						/ Math.min(dist[j + k * m], dist[j - 1 + k * m])
+						* (light[j + k * m] - light[j - 1 + k * m]);
+			}
+			across *= 2 * Math.PI / n;
+			gu += across * Math.cos(phi);
+			gv += across * Math.sin(phi);
+
+			// across the edge with the sector before, at right angles to it
+			double side = 0;
+			for (int j = 0; j < m; j++) {
+				double sin = Math.sqrt((double) j / m);
+				double next = Math.sqrt((double) (j + 1) / m);
+				side += (next - sin)
+						/ Math.min(dist[j + k * m], dist[j + prev * m])
+						* (light[j + k * m] - light[j + prev * m]);
+			}
+			gu -= side * Math.sin(edge);
+			gv += side * Math.cos(edge);
+		}
+
+		// gradient of irradiance, divided by pi for the average
+		gu /= Math.PI;
+		gv /= Math.PI;
+		grad[0] = gu * t1.getX() + gv * t2.getX();
+		grad[1] = gu * t1.getY() + gv * t2.getY();
+		grad[2] = gu * t1.getZ() + gv * t2.getZ();
+	}
+
+	/**
+	 * Helper method for add. Put a record in every cell of its level that
+	 * it covers.
+	 */
+	private synchronized void insert(Record r) {
+		double reach = ACCURACY * r.radius;
+		int level = 0;
+		while (level < LEVELS - 1 && CELL * (1 << level) < 2 * reach) {
+			level++;
+		}
+		double cell = CELL * (1 << level);
+		for (long x = cell(r.px - reach, cell); x <= cell(r.px + reach,
+				cell); x++) {
+			for (long y = cell(r.py - reach, cell); y <= cell(r.py + reach,
+					cell); y++) {
+				for (long z = cell(r.pz - reach, cell); z <= cell(r.pz
+						+ reach, cell); z++) {
+					put(key(level, x, y, z), r);
+				}
+			}
+		}
+		size.increment();
+	}
+
+	/**
+	 * Helper method for lookup. Records of a cell, found by linear probing
+	 * without locks. A cell added meanwhile may be missed.
+	 *
+	 * @param key key of the cell
+	 * @return null if the cell has no records
+	 */
+	private Record[] get(long key) {
+		AtomicReferenceArray<Cell> t = table;
+		int mask = t.length() - 1;
+		for (int i = slot(key, mask);; i = (i + 1) & mask) {
+			Cell c = t.get(i);
+			if (c == null) {
+				return null;
+			} else if (c.key == key) {
+				return c.records;
+			}
+		}
+	}
+
+	/**
+	 * Helper method for insert. Add a record to a cell, making the cell if
+	 * it is new. The table is doubled once it is half full. Called with
+	 * the cache's lock held.
+	 */
+	private void put(long key, Record r) {
+		AtomicReferenceArray<Cell> t = table;
+		int mask = t.length() - 1;
+		int i = slot(key, mask);
+		for (Cell c; (c = t.get(i)) != null; i = (i + 1) & mask) {
+			if (c.key == key) {
+				Record[] records = Arrays.copyOf(c.records,
+						c.records.length + 1);
+				records[records.length - 1] = r;
+				c.records = records;
+				return;
+			}
+		}
+		t.set(i, new Cell(key, new Record[] { r }));
+		if (2 * ++numCells > t.length()) {
+			grow();
+		}
+	}
+
+	/**
+	 * Helper method for put. Move the cells to a table twice as large.
+	 * Lookups still reading the old table see the same cells.
+	 */
+	private void grow() {
+		AtomicReferenceArray<Cell> t = table;
+		AtomicReferenceArray<Cell> bigger = new AtomicReferenceArray<>(
+				2 * t.length());
+		int mask = bigger.length() - 1;
+		for (int k = 0; k < t.length(); k++) {
+			Cell c = t.get(k);
+			if (c != null) {
+				int i = slot(c.key, mask);
+				while (bigger.get(i) != null) {
+					i = (i + 1) & mask;
+				}
+				bigger.set(i, c);
+			}
+		}
+		table = bigger;
+	}
+
+	/**
+	 * Helper method for get and put. First slot to probe for a key.
+	 */
+	private static int slot(long key, int mask) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ h >>> 32) & mask;
+	}
+
+	/**
+	 * Index of the cell holding a coord
+	 */
+	private static long cell(double v, double cell) {
+		return (long) Math.floor(v / cell);
+	}
+
+	/**
+	 * Hash key of a cell. Far apart cells may share a key, which only costs
+	 * a few records checked for nothing.
+	 */
+	private static long key(int level, long x, long y, long z) {
+		return (long) level << 60 | (x & 0xfffff) << 40 | (y & 0xfffff) << 20
+				| (z & 0xfffff);
+	}
+
+	/**
+	 * Number of records made
+	 */
+	public long size() {
+		return size.sum();
+	}
+
+	/**
+	 * Remove every record, for when the scene changes
+	 */
+	public synchronized void clear() {
+		table = new AtomicReferenceArray<>(TABLE_SIZE);
+		numCells = 0;
+		size.reset();
+	}
+}
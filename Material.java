@@ -6,6 +6,9 @@
  */
 public class Material {
 
+	// fraction of light reflected by every surface
+	final static double ALBEDO = 0.8;
+
 //	private final double roughness;
 //	private final double reflectance;
 //	private final int colorR;
@@ -17,24 +20,40 @@ public class Material {
 	}
 
 	/**
-	 * Light scattering is random and follows a cosine distribution.
+	 * Light scattering is random and follows a cosine distribution. Uses the
+	 * next two dimensions of the sampler.
 	 * 
-	 * @param n  normal of surface
-	 * @param t1 tangent 1 of surface
-	 * @param t2 tangent 2 of surface
-	 * @return the direction of reflection
+	 * @param n       normal of surface
+	 * @param t1      tangent 1 of surface
+	 * @param t2      tangent 2 of surface
+	 * @param d       the direction of reflection is written here
+	 * @param sampler random numbers of the sample
 	 */
-	public static Vector3 scatter(Vector3 n, Vector3 t1, Vector3 t2) {
+	public static void scatter(Vector3 n, Vector3 t1, Vector3 t2, Vector3 d,
+			Sampler sampler) {
 
 		// generate direction from cosine distribution
-		double sin = Math.sqrt(Math.random());
+		double sin = Math.sqrt(sampler.next());
 		double cos = Math.sqrt(1 - sin * sin);
-		double phi = 2 * Math.PI * Math.random();
+		double phi = 2 * Math.PI * sampler.next();
+
+		double k1 = sin * Math.cos(phi);
+		double k2 = sin * Math.sin(phi);
 
-		Vector3 v1 = n.mul(cos);
-		Vector3 v2 = t1.mul(sin * Math.cos(phi));
-		Vector3 v3 = t2.mul(sin * Math.sin(phi));
+		d.set(n.getX() * cos + t1.getX() * k1 + t2.getX() * k2,
+				n.getY() * cos + t1.getY() * k1 + t2.getY() * k2,
+				n.getZ() * cos + t1.getZ() * k1 + t2.getZ() * k2);
+		d.normLocal();
+	}
 
-		return v1.add(v2).add(v3).norm();
+	/**
+	 * Probability density of scatter picking direction d, per unit solid
+	 * angle
+	 * 
+	 * @param n normal of surface
+	 * @param d direction of reflection
+	 */
+	public static double pdf(Vector3 n, Vector3 d) {
+		return Math.max(0, n.dot(d)) / Math.PI;
 	}
 }
@@ -0,0 +1,234 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Binary cache of preprocessed meshes. The transformed and packed triangles
+ * and the hierarchy over them are written once, then later loads memory map
+ * the file and copy the arrays out in bulk instead of parsing the .obj and
+ * rebuilding. Each cache file is named by a hash of the path, size and
+ * modification time of the source file, the transform and the precision of
+ * the geometry, so changing any of them makes a new entry. The source is
+ * never read to look an entry up.
+ *
+ * The cache is off unless the JVM is run with -Dmeshcache=true. Entries are
+ * kept in the user's cache directory (or -Dmeshcache.dir), and once they
+ * take more than MAX_SIZE bytes the least recently used are deleted.
+ *
+ * @author Jeremy Parker Yang
+ *
+ */
+public class MeshCache {
+
+	// cache parameters
+	final static boolean ENABLED = Boolean.getBoolean("meshcache");
+	final static Path DIR = dir();
+	final static long MAX_SIZE = 1L << 30; // bytes of all entries
+	final static int MAGIC = 0x4D455348; // "MESH"
+	final static int VERSION = 1; // change when the layout of a class changes
+
+	// bytes before the triangles: magic, version, key
+	private final static int HEADER = 8 + 32;
+
+	/**
+	 * Hash of a source file, the transform applied to it and the precision
+	 * it is stored in. The file is identified by its path, size and
+	 * modification time, its contents are not read.
+	 *
+	 * @param fileName .obj file to hash
+	 * @param scale    xyz scale constants
+	 * @param rot      xyz rotation angles
+	 * @param trans    xyz translation constants
+	 * @return 32 byte SHA-256 digest
+	 */
+	public static byte[] key(String fileName, Vector3 scale, Vector3 rot,
+			Vector3 trans) throws IOException {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+
+		// source file
+		Path source = Paths.get(fileName).toAbsolutePath().normalize();
+		md.update(source.toString().getBytes(StandardCharsets.UTF_8));
+
+		// size, modification time, transform and precision
+		ByteBuffer buf = ByteBuffer.allocate(11 * 8 + 1);
+		buf.putLong(Files.size(source));
+		buf.putLong(Files.getLastModifiedTime(source).toMillis());
+		for (Vector3 v : new Vector3[] { scale, rot, trans }) {
+			buf.putDouble(v.getX()).putDouble(v.getY()).putDouble(v.getZ());
+		}
+		buf.put((byte) (Triangle.SINGLE ? 4 : 8));
+		md.update(buf.array());
+		return md.digest();
+	}
+
+	/**
+	 * Load a cached mesh into the triangles and hierarchy of mesh
+	 *
+	 * @param mesh mesh to fill
+	 * @param key  key from key()
+	 * @return false if there is no valid cache entry
+	 */
+	static boolean load(TriMesh mesh, byte[] key) {
+		Path path = path(key);
+		if (!Files.isRegularFile(path)) {
+			return false;
+		}
+		try (FileChannel ch = FileChannel.open(path,
+				StandardOpenOption.READ)) {
+			MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0,
+					ch.size());
+			buf.order(ByteOrder.LITTLE_ENDIAN);
+
+			// check header
+			if (buf.remaining() < HEADER || buf.getInt() != MAGIC
+					|| buf.getInt() != VERSION) {
+				return false;
+			}
+			for (int i = 0; i < key.length; i++) {
+				if (buf.get() != key[i]) {
+					return false;
+				}
+			}
+
+			mesh.tris = TriArray.read(buf);
+			mesh.bvh = BVH.read(buf);
+
+			// mark as used, see trim
+			Files.setLastModifiedTime(path,
+					FileTime.fromMillis(System.currentTimeMillis()));
+			return true;
+		} catch (IOException | RuntimeException e) {
+			// truncated or unreadable entry, rebuild it
+			return false;
+		}
+	}
+
+	/**
+	 * Write the triangles and hierarchy of a mesh to the cache. The file is
+	 * written under a temporary name and moved into place, so other runs
+	 * never see a partial entry. It is written from the heap rather than
+	 * mapped, since a mapped file cannot be moved on every platform until
+	 * the mapping is collected. An entry that is in use and cannot be
+	 * replaced is left as it is.
+	 *
+	 * @param mesh mesh to save
+	 * @param key  key from key()
+	 */
+	static void save(TriMesh mesh, byte[] key) throws IOException {
+		long size = HEADER + mesh.tris.bytes() + mesh.bvh.bytes();
+		if (size > Integer.MAX_VALUE) {
+			return; // too big to load in one piece
+		}
+
+		Path path = path(key);
+		Files.createDirectories(path.getParent());
+		Path tmp = Files.createTempFile(path.getParent(), "mesh", ".tmp");
+		try {
+			ByteBuffer buf = ByteBuffer.allocate((int) size);
+			buf.order(ByteOrder.LITTLE_ENDIAN);
+			buf.putInt(MAGIC);
+			buf.putInt(VERSION);
+			buf.put(key);
+			mesh.tris.write(buf);
+			mesh.bvh.write(buf);
+			buf.flip();
+			try (FileChannel ch = FileChannel.open(tmp,
+					StandardOpenOption.WRITE)) {
+				while (buf.hasRemaining()) {
+					ch.write(buf);
+				}
+				ch.force(false);
+			}
+			try {
+				Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException e) {
+				// old entry still mapped by a load, keep it
+			}
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+		trim();
+	}
+
+	/**
+	 * Helper method for save. Delete the least recently used entries until
+	 * all of them take at most MAX_SIZE bytes. Entries another run deletes
+	 * at the same time, or that are still mapped and cannot be deleted, are
+	 * skipped.
+	 */
+	private static void trim() throws IOException {
+		ArrayList<Path> entries = new ArrayList<Path>();
+		try (Stream<Path> list = Files.list(DIR)) {
+			list.filter(p -> p.toString().endsWith(".mesh"))
+					.forEach(entries::add);
+		}
+		long total = 0;
+		ArrayList<long[]> info = new ArrayList<long[]>(); // time, size, index
+		for (int i = 0; i < entries.size(); i++) {
+			try {
+				long size = Files.size(entries.get(i));
+				info.add(new long[] {
+						Files.getLastModifiedTime(entries.get(i)).toMillis(),
+						size, i });
+				total += size;
+			} catch (IOException e) {
+				// deleted meanwhile
+			}
+		}
+		info.sort(Comparator.comparingLong(e -> e[0]));
+		for (int i = 0; i < info.size() && total > MAX_SIZE; i++) {
+			try {
+				Files.deleteIfExists(entries.get((int) info.get(i)[2]));
+				total -= info.get(i)[1];
+			} catch (IOException e) {
+				// in use, try the next one
+			}
+		}
+	}
+
+	/**
+	 * Helper method for load and save. Cache file of a key.
+	 */
+	private static Path path(byte[] key) {
+		StringBuilder name = new StringBuilder();
+		for (byte b : key) {
+			name.append(String.format("%02x", b));
+		}
+		return DIR.resolve(name.append(".mesh").toString());
+	}
+
+	/**
+	 * Helper method for DIR. Directory of the cache, -Dmeshcache.dir if set,
+	 * else under XDG_CACHE_HOME or ~/.cache.
+	 */
+	private static Path dir() {
+		String dir = System.getProperty("meshcache.dir");
+		if (dir != null) {
+			return Paths.get(dir);
+		}
+		String home = System.getenv("XDG_CACHE_HOME");
+		Path base = home != null && !home.isEmpty() ? Paths.get(home)
+				: Paths.get(System.getProperty("user.home"), ".cache");
+		return base.resolve("physical-rendering-engine").resolve("meshcache");
+	}
+}
@@ -0,0 +1,387 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Fast reader for the vertices and faces of an .obj file. The file is memory
+ * mapped and split into chunks at line breaks. Chunks are parsed in parallel
+ * straight from bytes into primitive arrays, with no per token strings, and
+ * then joined. Faces with more than three vertices are split into a fan of
+ * triangles.
+ *
+ * @author Jeremy Parker Yang
+ *
+ */
+public class ObjReader {
+
+	// parse parameters
+	final static long CHUNK_SIZE = 1 << 22; // target bytes per chunk
+	final static long MAX_CHUNK = 1 << 30; // mapped regions must fit an int
+
+	// powers of ten that are exact as doubles
+	private final static double[] POW10 = new double[23];
+	static {
+		POW10[0] = 1;
+		for (int i = 1; i < POW10.length; i++) {
+			POW10[i] = POW10[i - 1] * 10;
+		}
+	}
+
+	// xyz of each vertex
+	public double[] verts;
+	public int numVerts;
+
+	// 0 based vertex indices of each triangle
+	public int[] faces;
+	public int numFaces;
+
+	/**
+	 * Read vertices and triangles from file
+	 *
+	 * @param fileName .obj file to read
+	 */
+	public ObjReader(String fileName) throws IOException {
+		try (FileChannel ch = FileChannel.open(Paths.get(fileName),
+				StandardOpenOption.READ)) {
+			long[] bounds = split(ch);
+			int numChunks = bounds.length - 1;
+
+			// parse chunks in parallel
+			Chunk[] chunks = new Chunk[numChunks];
+			IOException[] error = new IOException[1];
+			IntStream.range(0, numChunks).parallel().forEach(c -> {
+				try {
+					MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY,
+							bounds[c], bounds[c + 1] - bounds[c]);
+					chunks[c] = new Chunk();
+					chunks[c].parse(buf);
+				} catch (IOException e) {
+					error[0] = e;
+				}
+			});
+			if (error[0] != null) {
+				throw error[0];
+			}
+
+			// check numbers, lines are counted across chunks
+			int line = 1;
+			for (Chunk chunk : chunks) {
+				if (chunk.badLine >= 0) {
+					throw new IOException(fileName + ":" + (line
+							+ chunk.badLine) + ": vertex without a number");
+				}
+				line += chunk.lines;
+			}
+
+			// offset of each chunk in joined arrays
+			int[] vertOff = new int[numChunks + 1];
+			int[] faceOff = new int[numChunks + 1];
+			for (int c = 0; c < numChunks; c++) {
+				vertOff[c + 1] = vertOff[c] + chunks[c].numVerts;
+				faceOff[c + 1] = faceOff[c] + chunks[c].numFaces;
+			}
+			numVerts = vertOff[numChunks];
+			numFaces = faceOff[numChunks];
+			verts = new double[3 * numVerts];
+			faces = new int[3 * numFaces];
+
+			// join chunks in parallel
+			IntStream.range(0, numChunks).parallel().forEach(c -> {
+				Chunk chunk = chunks[c];
+				System.arraycopy(chunk.verts, 0, verts, 3 * vertOff[c],
+						3 * chunk.numVerts);
+				System.arraycopy(chunk.faces, 0, faces, 3 * faceOff[c],
+						3 * chunk.numFaces);
+
+				// relative indices count back from the vertices before them
+				for (int k = 0; k < chunk.numRel; k++) {
+					faces[3 * faceOff[c] + chunk.rel[k]] += vertOff[c];
+				}
+			});
+		}
+
+		// check indices
+		for (int i = 0; i < 3 * numFaces; i++) {
+			if (faces[i] < 0 || faces[i] >= numVerts) {
+				throw new IOException(fileName + ": bad vertex index "
+						+ (faces[i] + 1));
+			}
+		}
+	}
+
+	/**
+	 * Helper method for constructor. Split file into chunks that start at
+	 * the beginning of a line.
+	 *
+	 * @return start of each chunk, followed by the file size
+	 */
+	private static long[] split(FileChannel ch) throws IOException {
+		long size = ch.size();
+		int numChunks = (int) Math.max(1, size / CHUNK_SIZE);
+		numChunks = (int) Math.max(numChunks,
+				(size + MAX_CHUNK - 1) / MAX_CHUNK);
+		long[] bounds = new long[numChunks + 1];
+		bounds[numChunks] = size;
+
+		// move each boundary to just after the next line break
+		ByteBuffer buf = ByteBuffer.allocate(4096);
+		for (int c = 1; c < numChunks; c++) {
+			long pos = Math.max(bounds[c - 1], c * (size / numChunks));
+			boolean found = false;
+			while (!found && pos < size) {
+				buf.clear();
+				int n = ch.read(buf, pos);
+				for (int i = 0; i < n; i++) {
+					if (buf.get(i) == '\n') {
+						pos += i + 1;
+						found = true;
+						break;
+					}
+				}
+				if (!found) {
+					pos += Math.max(n, 0);
+				}
+			}
+			bounds[c] = Math.min(pos, size);
+		}
+		return bounds;
+	}
+
+	/**
+	 * Vertices and faces parsed from one chunk of the file
+	 */
+	private static class Chunk {
+
+		// vertices in chunk
+		double[] verts = new double[3 * 1024];
+		int numVerts = 0;
+
+		// triangles in chunk, indices are 0 based
+		int[] faces = new int[3 * 1024];
+		int numFaces = 0;
+
+		// positions in faces of relative indices, which are local to chunk
+		int[] rel = new int[16];
+		int numRel = 0;
+
+		// lines in chunk, and first line with a coordinate that is not a
+		// number, -1 if there is none
+		int lines = 0;
+		int badLine = -1;
+
+		// current position in buffer
+		private ByteBuffer buf;
+		private int pos;
+		private int end;
+
+		// vertex indices of the polygon being read
+		private int[] poly = new int[16];
+		private boolean[] polyRel = new boolean[16];
+
+		/**
+		 * Parse every line of a chunk
+		 */
+		void parse(ByteBuffer buf) {
+			this.buf = buf;
+			pos = 0;
+			end = buf.limit();
+
+			while (pos < end) {
+				skipSpaces();
+				if (pos + 1 < end && buf.get(pos + 1) <= ' ') {
+					byte type = buf.get(pos);
+					if (type == 'v') {
+						pos++;
+						readVertex();
+					} else if (type == 'f') {
+						pos++;
+						readFace();
+					}
+				}
+				skipLine();
+				lines++;
+			}
+			this.buf = null;
+		}
+
+		/**
+		 * Read x y z of a vertex line
+		 */
+		private void readVertex() {
+			if (3 * numVerts + 3 > verts.length) {
+				verts = Arrays.copyOf(verts, 2 * verts.length);
+			}
+			for (int k = 0; k < 3; k++) {
+				skipSpaces();
+				verts[3 * numVerts + k] = readDouble();
+			}
+			numVerts++;
+		}
+
+		/**
+		 * Read vertex indices of a face line, split into triangles
+		 */
+		private void readFace() {
+			int n = 0;
+			while (true) {
+				skipSpaces();
+				if (pos >= end || buf.get(pos) == '\n' || buf.get(pos) == '\r'
+						|| buf.get(pos) == '#') {
+					break;
+				}
+				if (n == poly.length) {
+					poly = Arrays.copyOf(poly, 2 * n);
+					polyRel = Arrays.copyOf(polyRel, 2 * n);
+				}
+
+				// only the vertex index of v/vt/vn is needed
+				int idx = readInt();
+				polyRel[n] = idx < 0;
+				poly[n++] = idx < 0 ? numVerts + idx : idx - 1;
+				while (pos < end && buf.get(pos) > ' ') {
+					pos++;
+				}
+			}
+
+			// fan of triangles around first vertex
+			for (int k = 1; k + 1 < n; k++) {
+				if (3 * numFaces + 3 > faces.length) {
+					faces = Arrays.copyOf(faces, 2 * faces.length);
+				}
+				addIndex(3 * numFaces, poly[0], polyRel[0]);
+				addIndex(3 * numFaces + 1, poly[k], polyRel[k]);
+				addIndex(3 * numFaces + 2, poly[k + 1], polyRel[k + 1]);
+				numFaces++;
+			}
+		}
+
+		/**
+		 * Store one index of a triangle, remembering relative ones
+		 */
+		private void addIndex(int at, int idx, boolean isRel) {
+			faces[at] = idx;
+			if (isRel) {
+				if (numRel == rel.length) {
+					rel = Arrays.copyOf(rel, 2 * numRel);
+				}
+				rel[numRel++] = at;
+			}
+		}
+
+		/**
+		 * Parse a signed integer
+		 */
+		private int readInt() {
+			boolean neg = false;
+			if (pos < end && (buf.get(pos) == '-' || buf.get(pos) == '+')) {
+				neg = buf.get(pos) == '-';
+				pos++;
+			}
+			int val = 0;
+			while (pos < end) {
+				int d = buf.get(pos) - '0';
+				if (d < 0 || d > 9) {
+					break;
+				}
+				val = 10 * val + d;
+				pos++;
+			}
+			return neg ? -val : val;
+		}
+
+		/**
+		 * Parse a decimal number. Numbers with up to 15 significant digits
+		 * and small exponents are computed exactly from an integer and a
+		 * power of ten, anything else falls back to Double.parseDouble. A
+		 * number without digits reads as 0 and marks the line as bad.
+		 */
+		private double readDouble() {
+			int start = pos;
+			boolean neg = false;
+			if (pos < end && (buf.get(pos) == '-' || buf.get(pos) == '+')) {
+				neg = buf.get(pos) == '-';
+				pos++;
+			}
+
+			// digits before and after the decimal point
+			long mant = 0;
+			int numDigits = 0;
+			int exp = 0;
+			boolean point = false;
+			boolean digits = false;
+			while (pos < end) {
+				byte c = buf.get(pos);
+				if (c >= '0' && c <= '9') {
+					digits = true;
+					if (numDigits < 18) {
+						mant = 10 * mant + (c - '0');
+						if (mant != 0) {
+							numDigits++;
+						}
+						if (point) {
+							exp--;
+						}
+					} else if (!point) {
+						exp++;
+					}
+					pos++;
+				} else if (c == '.' && !point) {
+					point = true;
+					pos++;
+				} else {
+					break;
+				}
+			}
+
+			if (!digits) {
+				if (badLine < 0) {
+					badLine = lines;
+				}
+				return 0;
+			}
+
+			// exponent
+			if (pos < end && (buf.get(pos) == 'e' || buf.get(pos) == 'E')) {
+				pos++;
+				exp += readInt();
+			}
+
+			// fast exact path
+			if (numDigits <= 15 && Math.abs(exp) < POW10.length) {
+				double val = exp < 0 ? mant / POW10[-exp] : mant * POW10[exp];
+				return neg ? -val : val;
+			}
+
+			// rare slow path
+			byte[] text = new byte[pos - start];
+			for (int i = 0; i < text.length; i++) {
+				text[i] = buf.get(start + i);
+			}
+			return Double.parseDouble(new String(text));
+		}
+
+		/**
+		 * Skip spaces and tabs
+		 */
+		private void skipSpaces() {
+			while (pos < end && (buf.get(pos) == ' ' || buf.get(pos) == '\t')) {
+				pos++;
+			}
+		}
+
+		/**
+		 * Skip to the start of the next line
+		 */
+		private void skipLine() {
+			while (pos < end && buf.get(pos) != '\n') {
+				pos++;
+			}
+			pos++;
+		}
+	}
+}
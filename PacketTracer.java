@@ -0,0 +1,567 @@
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Closest hit for a packet of coherent rays, such as the camera rays of one
+ * pixel or of neighboring pixels. Each ray is one SIMD lane, so every box
+ * and triangle test is done for the whole packet at once with the Vector
+ * API. A node is visited while any lane still enters it. Packets whose rays
+ * point into different octants, and leaves that only one lane reaches, are
+ * traced one ray at a time instead.
+ *
+ * The triangle test does the same arithmetic in the same order as
+ * Triangle.MTint, in float lanes for float geometry, so a packet finds
+ * exactly the hits single rays would.
+ * Needs --add-modules jdk.incubator.vector when compiling and running.
+ *
+ * @author Jeremy Parker Yang
+ *
+ */
+public class PacketTracer {
+
+	// widest vector of doubles on this CPU
+	final static VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+	final static int SIZE = SPECIES.length(); // rays per packet
+	final static VectorSpecies<Float> FLOATS = VectorSpecies.of(float.class,
+			VectorShape.forBitSize(32 * SIZE)); // one float per ray
+
+	// one tracer per render thread
+	private static ThreadLocal<PacketTracer> threadTracer = ThreadLocal
+			.withInitial(PacketTracer::new);
+
+	// rays of the packet, collision info is written here
+	public final Ray[] rays = Ray.array(SIZE);
+	public final boolean[] hit = new boolean[SIZE];
+	public int size; // number of rays in use
+
+	// pixel and sample index of each ray, kept for the caller
+	public final int[] x = new int[SIZE];
+	public final int[] y = new int[SIZE];
+	public final int[] index = new int[SIZE];
+
+	// per lane ray data
+	private final double[] ox = new double[SIZE];
+	private final double[] oy = new double[SIZE];
+	private final double[] oz = new double[SIZE];
+	private final double[] dx = new double[SIZE];
+	private final double[] dy = new double[SIZE];
+	private final double[] dz = new double[SIZE];
+	private final double[] ix = new double[SIZE];
+	private final double[] iy = new double[SIZE];
+	private final double[] iz = new double[SIZE];
+
+	// per lane closest hit
+	private final double[] tBest = new double[SIZE];
+	private final double[] uBest = new double[SIZE];
+	private final double[] vBest = new double[SIZE];
+	private final int[] triBest = new int[SIZE];
+	private final TriMesh[] meshBest = new TriMesh[SIZE];
+
+	// nodes still to visit, the lanes that enter them and where they do
+	private int[] sceneStack = new int[32];
+	private long[] sceneMask = new long[32];
+	private double[] sceneDist = new double[32 * SIZE];
+	private int[] meshStack = new int[64];
+	private long[] meshMask = new long[64];
+	private double[] meshDist = new double[64 * SIZE];
+
+	// counters of the thread, null without telemetry
+	private final Telemetry.Counters stats = rays[0].stats;
+
+	// ray vectors of the packet being traced
+	private DoubleVector vox, voy, voz, vdx, vdy, vdz, vix, viy, viz;
+	private FloatVector fdx, fdy, fdz; // directions for float geometry
+
+	/**
+	 * Packet tracer of the current thread
+	 */
+	public static PacketTracer get() {
+		return threadTracer.get();
+	}
+
+	/**
+	 * Find the closest collision of each ray in use. Collision info of a ray
+	 * is only written when it hits something, see hit.
+	 *
+	 * @param scene scene to trace
+	 */
+	public void intersect(Scene scene) {
+		int n = size;
+
+		// nothing to hit
+		if (scene.bvh().isEmpty()) {
+			for (int l = 0; l < n; l++) {
+				hit[l] = false;
+			}
+			return;
+		}
+
+		// rays that point different ways do not share nodes
+		if (!coherent(n)) {
+			for (int l = 0; l < n; l++) {
+				hit[l] = scene.intersect(rays[l]);
+			}
+			return;
+		}
+
+		load(n);
+		long active = n == 64 ? -1L : (1L << n) - 1;
+
+		// walk scene hierarchy, a node is visited while any lane enters it
+		BVH bvh = scene.bvh();
+		reserve(bvh.stackSize() + 1, 0);
+		int[] stack = sceneStack;
+		long[] stackMask = sceneMask;
+		double[] stackDist = sceneDist;
+		stack[0] = 0;
+		stackMask[0] = enter(bvh, 0, active, stackDist, 0);
+		int sp = 1;
+		while (sp > 0) {
+			// skip lanes that found a closer hit since the node was pushed
+			int node = stack[--sp];
+			long mask = closer(stackMask[sp], stackDist, sp * SIZE);
+			if (mask == 0) {
+				continue;
+			}
+			if (bvh.count(node) > 0) {
+				int end = bvh.first(node) + bvh.count(node);
+				for (int i = bvh.first(node); i < end; i++) {
+					meshInt(scene.get(i), mask);
+				}
+			} else {
+				sp = push(bvh, bvh.first(node), mask, stack, stackMask,
+						stackDist, sp);
+			}
+		}
+
+		// write collision info
+		for (int l = 0; l < n; l++) {
+			hit[l] = meshBest[l] != null;
+			if (hit[l]) {
+				Ray ray = rays[l];
+				double t = tBest[l];
+				TriArray tris = meshBest[l].tris;
+				ray.tuv.set(t, uBest[l], vBest[l]);
+				tris.getPoint(triBest[l], uBest[l], vBest[l], ray.hit);
+				tris.getFrame(triBest[l], ray.n, ray.t1, ray.t2);
+			}
+		}
+	}
+
+	/**
+	 * Helper method for intersect. Closest hits inside one mesh for the
+	 * lanes in mask.
+	 */
+	private void meshInt(TriMesh mesh, long active) {
+		BVH bvh = mesh.bvh;
+		if (bvh.isEmpty()) {
+			return;
+		}
+		double[] geo = mesh.tris.geo;
+		float[] fgeo = mesh.tris.fgeo;
+		reserve(0, bvh.stackSize() + 1);
+		int[] stack = meshStack;
+		long[] stackMask = meshMask;
+		double[] stackDist = meshDist;
+		stack[0] = 0;
+		stackMask[0] = enter(bvh, 0, active, stackDist, 0);
+		if (Telemetry.ENABLED) {
+			stats.meshTests += Long.bitCount(active);
+			stats.meshRejects += Long.bitCount(active & ~stackMask[0]);
+		}
+		int sp = 1;
+		while (sp > 0) {
+			int node = stack[--sp];
+			long mask = closer(stackMask[sp], stackDist, sp * SIZE);
+			if (mask == 0) {
+				continue;
+			}
+			if (bvh.count(node) > 0) {
+				int end = bvh.first(node) + bvh.count(node);
+				if (Telemetry.ENABLED) {
+					stats.triTests += Long.bitCount(mask) * bvh.count(node);
+				}
+				if (Long.bitCount(mask) == 1) {
+					// one lane left, a single ray test is cheaper
+					int l = Long.numberOfTrailingZeros(mask);
+					Ray ray = rays[l];
+					for (int i = bvh.first(node); i < end; i++) {
+						if (Triangle.SINGLE
+								? Triangle.MTint(fgeo, i, ray.o, ray.d,
+										tBest[l], ray.hit, ray.tuv)
+								: Triangle.MTint(geo, i, ray.o, ray.d,
+										tBest[l], ray.hit, ray.tuv)) {
+							tBest[l] = ray.tuv.getX();
+							uBest[l] = ray.tuv.getY();
+							vBest[l] = ray.tuv.getZ();
+							triBest[l] = i;
+							meshBest[l] = mesh;
+							if (Telemetry.ENABLED) {
+								stats.triHits++;
+							}
+						}
+					}
+				} else if (Triangle.SINGLE) {
+					for (int i = bvh.first(node); i < end; i++) {
+						triangle(fgeo, i, mask, mesh);
+					}
+				} else {
+					for (int i = bvh.first(node); i < end; i++) {
+						triangle(geo, i, mask, mesh);
+					}
+				}
+			} else {
+				sp = push(bvh, bvh.first(node), mask, stack, stackMask,
+						stackDist, sp);
+			}
+		}
+	}
+
+	/**
+	 * Helper method for meshInt. Moller-Trumbore test of one triangle
+	 * against every lane in mask, same steps as Triangle.MTint.
+	 */
+	private void triangle(double[] geo, int i, long active, TriMesh mesh) {
+		int g = Triangle.GEO * i;
+		VectorMask<Double> m = VectorMask.fromLong(SPECIES, active);
+
+		// back facing triangles do not intersect
+		DoubleVector dn = vdx.mul(geo[g + Triangle.N])
+				.add(vdy.mul(geo[g + Triangle.N + 1]))
+				.add(vdz.mul(geo[g + Triangle.N + 2]));
+		m = m.andNot(dn.compare(VectorOperators.GT, 0));
+		if (!m.anyTrue()) {
+			return;
+		}
+
+		double e1x = geo[g + Triangle.E1], e1y = geo[g + Triangle.E1 + 1],
+				e1z = geo[g + Triangle.E1 + 2];
+		double e2x = geo[g + Triangle.E2], e2y = geo[g + Triangle.E2 + 1],
+				e2z = geo[g + Triangle.E2 + 2];
+
+		// t = o - a
+		DoubleVector tx = vox.sub(geo[g + Triangle.A]);
+		DoubleVector ty = voy.sub(geo[g + Triangle.A + 1]);
+		DoubleVector tz = voz.sub(geo[g + Triangle.A + 2]);
+
+		// p = d x e2
+		DoubleVector px = vdy.mul(e2z).sub(vdz.mul(e2y));
+		DoubleVector py = vdz.mul(e2x).sub(vdx.mul(e2z));
+		DoubleVector pz = vdx.mul(e2y).sub(vdy.mul(e2x));
+
+		DoubleVector k = DoubleVector.broadcast(SPECIES, 1d)
+				.div(px.mul(e1x).add(py.mul(e1y)).add(pz.mul(e1z)));
+		DoubleVector u = k.mul(px.mul(tx).add(py.mul(ty)).add(pz.mul(tz)));
+		m = m.and(u.compare(VectorOperators.GE, 0))
+				.and(u.compare(VectorOperators.LE, 1));
+		if (!m.anyTrue()) {
+			return;
+		}
+
+		// q = t x e1
+		DoubleVector qx = ty.mul(e1z).sub(tz.mul(e1y));
+		DoubleVector qy = tz.mul(e1x).sub(tx.mul(e1z));
+		DoubleVector qz = tx.mul(e1y).sub(ty.mul(e1x));
+
+		DoubleVector v = k.mul(qx.mul(vdx).add(qy.mul(vdy)).add(qz.mul(vdz)));
+		m = m.and(v.compare(VectorOperators.GE, 0))
+				.and(u.add(v).compare(VectorOperators.LE, 1));
+		if (!m.anyTrue()) {
+			return;
+		}
+
+		// ignore hits behind the origin and farther hits
+		DoubleVector t = k.mul(qx.mul(e2x).add(qy.mul(e2y)).add(qz.mul(e2z)));
+		DoubleVector best = DoubleVector.fromArray(SPECIES, tBest, 0);
+		m = m.and(t.compare(VectorOperators.GT, 0))
+				.and(t.compare(VectorOperators.LT, best));
+		if (!m.anyTrue()) {
+			return;
+		}
+
+		// keep closer hits
+		t.intoArray(tBest, 0, m);
+		u.intoArray(uBest, 0, m);
+		v.intoArray(vBest, 0, m);
+		if (Telemetry.ENABLED) {
+			stats.triHits += m.trueCount();
+		}
+		for (long bits = m.toLong(); bits != 0; bits &= bits - 1) {
+			int l = Long.numberOfTrailingZeros(bits);
+			triBest[l] = i;
+			meshBest[l] = mesh;
+		}
+	}
+
+	/**
+	 * Helper method for meshInt. Test of one triangle stored in float
+	 * against every lane in mask, same steps as the float Triangle.MTint.
+	 */
+	private void triangle(float[] geo, int i, long active, TriMesh mesh) {
+		int g = Triangle.GEO * i;
+		VectorMask<Float> m = VectorMask.fromLong(FLOATS, active);
+
+		// back facing triangles do not intersect
+		FloatVector dn = fdx.mul(geo[g + Triangle.N])
+				.add(fdy.mul(geo[g + Triangle.N + 1]))
+				.add(fdz.mul(geo[g + Triangle.N + 2]));
+		m = m.andNot(dn.compare(VectorOperators.GT, 0));
+		if (!m.anyTrue()) {
+			return;
+		}
+
+		float e1x = geo[g + Triangle.E1], e1y = geo[g + Triangle.E1 + 1],
+				e1z = geo[g + Triangle.E1 + 2];
+		float e2x = geo[g + Triangle.E2], e2y = geo[g + Triangle.E2 + 1],
+				e2z = geo[g + Triangle.E2 + 2];
+
+		// t = o - a, taken in double
+		FloatVector tx = toFloat(vox.sub(geo[g + Triangle.A]));
+		FloatVector ty = toFloat(voy.sub(geo[g + Triangle.A + 1]));
+		FloatVector tz = toFloat(voz.sub(geo[g + Triangle.A + 2]));
+
+		// p = d x e2
+		FloatVector px = fdy.mul(e2z).sub(fdz.mul(e2y));
+		FloatVector py = fdz.mul(e2x).sub(fdx.mul(e2z));
+		FloatVector pz = fdx.mul(e2y).sub(fdy.mul(e2x));
+
+		FloatVector k = FloatVector.broadcast(FLOATS, 1f)
+				.div(px.mul(e1x).add(py.mul(e1y)).add(pz.mul(e1z)));
+		FloatVector u = k.mul(px.mul(tx).add(py.mul(ty)).add(pz.mul(tz)));
+		m = m.and(u.compare(VectorOperators.GE, 0))
+				.and(u.compare(VectorOperators.LE, 1));
+		if (!m.anyTrue()) {
+			return;
+		}
+
+		// q = t x e1
+		FloatVector qx = ty.mul(e1z).sub(tz.mul(e1y));
+		FloatVector qy = tz.mul(e1x).sub(tx.mul(e1z));
+		FloatVector qz = tx.mul(e1y).sub(ty.mul(e1x));
+
+		FloatVector v = k.mul(qx.mul(fdx).add(qy.mul(fdy)).add(qz.mul(fdz)));
+		m = m.and(v.compare(VectorOperators.GE, 0))
+				.and(u.add(v).compare(VectorOperators.LE, 1));
+		if (!m.anyTrue()) {
+			return;
+		}
+
+		// ignore hits behind the origin and farther hits
+		FloatVector t = k.mul(qx.mul(e2x).add(qy.mul(e2y)).add(qz.mul(e2z)));
+		m = m.and(t.compare(VectorOperators.GT, 0));
+		DoubleVector td = toDouble(t);
+		VectorMask<Double> md = VectorMask.fromLong(SPECIES, m.toLong())
+				.and(td.compare(VectorOperators.LT,
+						DoubleVector.fromArray(SPECIES, tBest, 0)));
+		if (!md.anyTrue()) {
+			return;
+		}
+
+		// keep closer hits
+		td.intoArray(tBest, 0, md);
+		toDouble(u).intoArray(uBest, 0, md);
+		toDouble(v).intoArray(vBest, 0, md);
+		if (Telemetry.ENABLED) {
+			stats.triHits += md.trueCount();
+		}
+		for (long bits = md.toLong(); bits != 0; bits &= bits - 1) {
+			int l = Long.numberOfTrailingZeros(bits);
+			triBest[l] = i;
+			meshBest[l] = mesh;
+		}
+	}
+
+	/**
+	 * Helper method for the float triangle test. Round lanes to float.
+	 */
+	private static FloatVector toFloat(DoubleVector v) {
+		return (FloatVector) v.convertShape(VectorOperators.D2F, FLOATS, 0);
+	}
+
+	/**
+	 * Helper method for the float triangle test. Widen lanes to double.
+	 */
+	private static DoubleVector toDouble(FloatVector v) {
+		return (DoubleVector) v.convertShape(VectorOperators.F2D, SPECIES, 0);
+	}
+
+	/**
+	 * Helper method for traversal. Test both children of an interior node
+	 * and push the ones any lane enters, the nearer one on top as seen by
+	 * the first lane that enters both.
+	 *
+	 * @return new stack size
+	 */
+	private int push(BVH bvh, int left, long mask, int[] stack,
+			long[] stackMask, double[] stackDist, int sp) {
+		long maskL = enter(bvh, left, mask, stackDist, sp * SIZE);
+		long maskR = enter(bvh, left + 1, mask, stackDist, (sp + 1) * SIZE);
+		if (maskL == 0 && maskR == 0) {
+			return sp;
+		} else if (maskR == 0) {
+			stack[sp] = left;
+			stackMask[sp] = maskL;
+			return sp + 1;
+		} else if (maskL == 0) {
+			// move right child down to the free slot
+			System.arraycopy(stackDist, (sp + 1) * SIZE, stackDist, sp * SIZE,
+					SIZE);
+			stack[sp] = left + 1;
+			stackMask[sp] = maskR;
+			return sp + 1;
+		}
+
+		// right child is on top, swap if the left one is nearer
+		long both = maskL & maskR;
+		int l = Long.numberOfTrailingZeros(both != 0 ? both : maskL);
+		int offL = sp * SIZE + l, offR = (sp + 1) * SIZE + l;
+		if (stackDist[offL] <= stackDist[offR]) {
+			DoubleVector distL = DoubleVector.fromArray(SPECIES, stackDist,
+					sp * SIZE);
+			DoubleVector.fromArray(SPECIES, stackDist, (sp + 1) * SIZE)
+					.intoArray(stackDist, sp * SIZE);
+			distL.intoArray(stackDist, (sp + 1) * SIZE);
+			stack[sp] = left + 1;
+			stackMask[sp] = maskR;
+			stack[sp + 1] = left;
+			stackMask[sp + 1] = maskL;
+		} else {
+			stack[sp] = left;
+			stackMask[sp] = maskL;
+			stack[sp + 1] = left + 1;
+			stackMask[sp + 1] = maskR;
+		}
+		return sp + 2;
+	}
+
+	/**
+	 * Helper method for traversal. Lanes of mask that enter a node closer
+	 * than their closest hit, same test as BVH.entry.
+	 *
+	 * @param dist where each lane enters the node is written here
+	 * @param off  index of first lane in dist
+	 */
+	private long enter(BVH bvh, int node, long active, double[] dist,
+			int off) {
+		int b = 6 * node;
+		DoubleVector txmin = DoubleVector.broadcast(SPECIES, bvh.bound(b))
+				.sub(vox).mul(vix);
+		DoubleVector txmax = DoubleVector.broadcast(SPECIES, bvh.bound(b + 3))
+				.sub(vox).mul(vix);
+		DoubleVector tymin = DoubleVector.broadcast(SPECIES, bvh.bound(b + 1))
+				.sub(voy).mul(viy);
+		DoubleVector tymax = DoubleVector.broadcast(SPECIES, bvh.bound(b + 4))
+				.sub(voy).mul(viy);
+		DoubleVector tzmin = DoubleVector.broadcast(SPECIES, bvh.bound(b + 2))
+				.sub(voz).mul(viz);
+		DoubleVector tzmax = DoubleVector.broadcast(SPECIES, bvh.bound(b + 5))
+				.sub(voz).mul(viz);
+
+		DoubleVector tmin = txmin.min(txmax).max(tymin.min(tymax))
+				.max(tzmin.min(tzmax));
+		DoubleVector tmax = txmin.max(txmax).min(tymin.max(tymax))
+				.min(tzmin.max(tzmax));
+		DoubleVector best = DoubleVector.fromArray(SPECIES, tBest, 0);
+		tmin.intoArray(dist, off);
+
+		VectorMask<Double> miss = tmax.compare(VectorOperators.LT, 0)
+				.or(tmin.compare(VectorOperators.GT, tmax))
+				.or(tmin.compare(VectorOperators.GT, best));
+		if (Telemetry.ENABLED) {
+			stats.boxTests += Long.bitCount(active);
+			stats.boxRejects += Long.bitCount(active & miss.toLong());
+		}
+		return active & ~miss.toLong();
+	}
+
+	/**
+	 * Helper method for traversal. Lanes of mask that enter a node no
+	 * farther than their closest hit.
+	 *
+	 * @param dist where each lane enters the node
+	 * @param off  index of first lane in dist
+	 */
+	private long closer(long active, double[] dist, int off) {
+		DoubleVector best = DoubleVector.fromArray(SPECIES, tBest, 0);
+		return active & ~DoubleVector.fromArray(SPECIES, dist, off)
+				.compare(VectorOperators.GT, best).toLong();
+	}
+
+	/**
+	 * Helper method for intersect. Check that the first n rays point into
+	 * the same octant.
+	 */
+	private boolean coherent(int n) {
+		int octant = octant(rays[0].d);
+		for (int l = 1; l < n; l++) {
+			if (octant(rays[l].d) != octant) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Helper method for coherent. Signs of the components of d.
+	 */
+	private static int octant(Vector3 d) {
+		return (d.getX() < 0 ? 1 : 0) | (d.getY() < 0 ? 2 : 0)
+				| (d.getZ() < 0 ? 4 : 0);
+	}
+
+	/**
+	 * Helper method for intersect. Copy rays into lanes and reset hits.
+	 * Unused lanes repeat the first ray but are never active.
+	 */
+	private void load(int n) {
+		for (int l = 0; l < SIZE; l++) {
+			Ray ray = rays[l < n ? l : 0];
+			ox[l] = ray.o.getX();
+			oy[l] = ray.o.getY();
+			oz[l] = ray.o.getZ();
+			dx[l] = ray.d.getX();
+			dy[l] = ray.d.getY();
+			dz[l] = ray.d.getZ();
+			ix[l] = 1d / dx[l];
+			iy[l] = 1d / dy[l];
+			iz[l] = 1d / dz[l];
+			tBest[l] = l < n ? Double.MAX_VALUE : -1;
+			meshBest[l] = null;
+		}
+		vox = DoubleVector.fromArray(SPECIES, ox, 0);
+		voy = DoubleVector.fromArray(SPECIES, oy, 0);
+		voz = DoubleVector.fromArray(SPECIES, oz, 0);
+		vdx = DoubleVector.fromArray(SPECIES, dx, 0);
+		vdy = DoubleVector.fromArray(SPECIES, dy, 0);
+		vdz = DoubleVector.fromArray(SPECIES, dz, 0);
+		vix = DoubleVector.fromArray(SPECIES, ix, 0);
+		viy = DoubleVector.fromArray(SPECIES, iy, 0);
+		viz = DoubleVector.fromArray(SPECIES, iz, 0);
+		if (Triangle.SINGLE) {
+			fdx = toFloat(vdx);
+			fdy = toFloat(vdy);
+			fdz = toFloat(vdz);
+		}
+	}
+
+	/**
+	 * Helper method for traversal. Make sure the stacks can hold the given
+	 * number of nodes, 0 to leave a stack as it is.
+	 */
+	private void reserve(int sceneSize, int meshSize) {
+		if (sceneStack.length < sceneSize) {
+			sceneStack = new int[sceneSize];
+			sceneMask = new long[sceneSize];
+			sceneDist = new double[sceneSize * SIZE];
+		}
+		if (meshStack.length < meshSize) {
+			meshStack = new int[meshSize];
+			meshMask = new long[meshSize];
+			meshDist = new double[meshSize * SIZE];
+		}
+	}
+}
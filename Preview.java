@@ -0,0 +1,226 @@
+import java.awt.event.KeyEvent;
+
+/**
+ * Interactive preview for setting up a shot before the full render. The
+ * camera is moved with the keyboard and mouse on the display window:
+ *
+ * W A S D           move forward, left, back and right
+ * Q E               move down and up
+ * drag              turn the camera
+ * wheel             move forward and back in steps
+ * enter             end the preview and render from the current view
+ *
+ * Frames are path traced on all threads, whatever Camera.PATH_TRACE is set
+ * to. After the view changes, the first frame takes one sample for every
+ * scale by scale block of pixels, and each frame after that halves the
+ * block size until every pixel has a sample. From there on, full
+ * resolution passes add one sample per pixel until SPP. The scale is
+ * picked so the first frame takes about FRAME_MS, which keeps the frame
+ * rate steady while the camera moves. Any input stops the refinement being
+ * rendered, and a new view starts again from an empty film. Full
+ * resolution passes are rendered into a copy of the film that replaces it
+ * once the pass is done, so a pass cut short leaves nothing behind and is
+ * rendered again in full.
+ *
+ * @author Jeremy Parker Yang
+ *
+ */
+public class Preview {
+
+	// frame rate
+	final static long FRAME_MS = 50; // time of first frame after a change
+	final static int MAX_SCALE = 16; // coarsest frame, pixels per block side
+
+	// controls
+	final static double MOVE_SPEED = 2; // scene units per second
+	final static double TURN_SPEED = 0.005; // radians per pixel dragged
+	final static double WHEEL_STEP = 0.25; // scene units per wheel notch
+	final static double MAX_STEP = 0.1; // longest move in one frame, s
+
+	private final Display display;
+
+	// full resolution samples since the view last changed
+	private Film film;
+	private int passes;
+	private int frames; // frames rendered, seeds the blocks of a frame
+
+	// block size of the first frame after a change, and of the next frame,
+	// 0 once the film has SPP samples per pixel
+	private int scale = 8;
+	private int level;
+	private boolean first; // next frame is the first after a change
+
+	// input events when the current frame started, and whether the camera
+	// is being moved by keys held down
+	private int seen;
+	private boolean moving;
+
+	/**
+	 * @param display display to read input from and show frames on
+	 */
+	private Preview(Display display) {
+		this.display = display;
+	}
+
+	/**
+	 * Show the preview until enter is pressed. The camera is left where
+	 * the preview ended, so the next render is taken from there.
+	 *
+	 * @param display display to read input from and show frames on
+	 */
+	public static void run(Display display) {
+		Preview preview = new Preview(display);
+		Camera.pathTrace = true;
+		preview.loop();
+		Camera.pathTrace = Camera.PATH_TRACE;
+		System.out.printf("camera at (%.3f, %.3f, %.3f), rotation "
+				+ "(%.3f, %.3f, %.3f)%n", Camera.camLoc.getX(),
+				Camera.camLoc.getY(), Camera.camLoc.getZ(),
+				Camera.camRot.getX(), Camera.camRot.getY(),
+				Camera.camRot.getZ());
+	}
+
+	/**
+	 * Helper method for run. Move the camera and render frames until enter
+	 * is pressed.
+	 */
+	private void loop() {
+		restart();
+		long last = System.nanoTime();
+		while (!display.isKeyDown(KeyEvent.VK_ENTER)) {
+			long now = System.nanoTime();
+			if (move(Math.min((now - last) / 1e9, MAX_STEP))) {
+				restart();
+			}
+			last = now;
+
+			// nothing left to refine
+			if (level == 0) {
+				try {
+					Thread.sleep(FRAME_MS);
+				} catch (InterruptedException e) {
+					return;
+				}
+				continue;
+			}
+
+			// render a frame, blocks of lower levels are thrown away
+			seen = display.getEvents();
+			long start = System.nanoTime();
+			Film frame = level == 1 ? new Film(film) : new Film(Camera.WIDTH,
+					Camera.HEIGHT);
+			render(frame, level);
+			if (stopped()) {
+				continue; // read input, then render the frame again
+			}
+			if (level == 1) {
+				film = frame; // keep the samples of a finished pass
+			}
+			frame.show(display, 0, 0, Camera.WIDTH, Camera.HEIGHT);
+
+			// first frame after a change sets the scale of the next one
+			if (first) {
+				first = false;
+				long ms = (System.nanoTime() - start) / 1000000;
+				if (ms > FRAME_MS && scale < MAX_SCALE) {
+					scale *= 2;
+				} else if (ms < FRAME_MS / 4 && scale > 1) {
+					scale /= 2;
+				}
+			}
+
+			// refine
+			if (level > 1) {
+				level /= 2;
+			} else if (++passes >= Camera.SPP) {
+				level = 0;
+			}
+		}
+	}
+
+	/**
+	 * Helper method for loop. Start again from an empty film.
+	 */
+	private void restart() {
+		film = new Film(Camera.WIDTH, Camera.HEIGHT);
+		passes = 0;
+		level = scale;
+		first = true;
+	}
+
+	/**
+	 * Helper method for loop. Render one frame on all threads, stopping
+	 * early if there is new input.
+	 *
+	 * @param frame film to add samples to
+	 * @param size  width and height of a block in pixels
+	 */
+	private void render(Film frame, int size) {
+		double[][] camRotMat = Vector3.getRotMat(Camera.camRot);
+		int index = frames++;
+		Camera.forEachTile(Camera.pool, (i0, j0) -> Camera.previewTile(frame,
+				size, index, i0, j0, camRotMat, this::stopped));
+	}
+
+	/**
+	 * Helper method for loop. Move the camera by the input since the last
+	 * frame.
+	 *
+	 * @param dt seconds since the last frame
+	 * @return true if the camera moved
+	 */
+	private boolean move(double dt) {
+		// turn
+		int[] mouse = display.takeMouse();
+		Vector3 rot = Camera.camRot;
+		if (mouse[0] != 0 || mouse[1] != 0) {
+			double pitch = rot.getX() - TURN_SPEED * mouse[1];
+			pitch = Math.max(-Math.PI / 2, Math.min(pitch, Math.PI / 2));
+			rot = new Vector3(pitch, rot.getY() - TURN_SPEED * mouse[0],
+					rot.getZ());
+		}
+
+		// move along the view
+		double[][] rotMat = Vector3.getRotMat(rot);
+		Vector3 forward = new Vector3(0, 0, -1).mul(rotMat);
+		Vector3 right = new Vector3(1, 0, 0).mul(rotMat);
+		Vector3 up = new Vector3(0, 1, 0);
+		Vector3 dir = new Vector3(0, 0, 0);
+		if (display.isKeyDown(KeyEvent.VK_W)) {
+			dir = dir.add(forward);
+		}
+		if (display.isKeyDown(KeyEvent.VK_S)) {
+			dir = dir.sub(forward);
+		}
+		if (display.isKeyDown(KeyEvent.VK_D)) {
+			dir = dir.add(right);
+		}
+		if (display.isKeyDown(KeyEvent.VK_A)) {
+			dir = dir.sub(right);
+		}
+		if (display.isKeyDown(KeyEvent.VK_E)) {
+			dir = dir.add(up);
+		}
+		if (display.isKeyDown(KeyEvent.VK_Q)) {
+			dir = dir.sub(up);
+		}
+		moving = dir.dot(dir) > 0;
+		if (rot == Camera.camRot && !moving && mouse[2] == 0) {
+			return false;
+		}
+		Camera.camLoc = Camera.camLoc.add(dir.mul(MOVE_SPEED * dt))
+				.add(forward.mul(-WHEEL_STEP * mouse[2]));
+		Camera.camRot = rot;
+		return true;
+	}
+
+	/**
+	 * Check if the frame being rendered should stop, because there has been
+	 * input since it started or the camera is being moved. The first frame
+	 * after a change is quick and always finished, so there is something to
+	 * see while the camera moves.
+	 */
+	private boolean stopped() {
+		return !first && (moving || display.getEvents() != seen);
+	}
+}
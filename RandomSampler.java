@@ -0,0 +1,32 @@
+/**
+ * Independent pseudo random numbers from a SplitMix64 stream, the generator
+ * behind SplittableRandom. The state is a single long, so starting a stream
+ * for each sample costs nothing and allocates nothing.
+ *
+ * @author Jeremy Parker Yang
+ *
+ */
+public class RandomSampler extends Sampler {
+
+	// SplitMix64 step
+	private final static long GAMMA = 0x9e3779b97f4a7c15L;
+
+	private long state;
+
+	RandomSampler(long seed) {
+		super(seed);
+	}
+
+	@Override
+	public void start(int x, int y, int index) {
+		super.start(x, y, index);
+		state = hash(x, y, index);
+	}
+
+	@Override
+	public double next() {
+		dim++;
+		state += GAMMA;
+		return toUnit(mix(state));
+	}
+}
@@ -0,0 +1,107 @@
+/**
+ * Reusable ray query and collision record. A render thread keeps one ray per
+ * bounce and overwrites it for every query, so tracing and shading do not
+ * allocate.
+ *
+ * @author Jeremy Parker Yang
+ *
+ */
+public class Ray {
+
+	// how far spawned rays start off the surface, relative to the largest
+	// coord of the hit point, which is never taken to be below 1/32. Covers
+	// the rounding of float or double intersection tests (Wachter and
+	// Binder 2019, A Fast and Robust Method for Avoiding Self-Intersection)
+	final static double OFFSET = Triangle.SINGLE ? 0x1p-16 : 0x1p-44;
+	final static double OFFSET_MIN = 1d / 32;
+
+	// ray
+	public final Vector3 o = new Vector3(0, 0, 0); // origin
+	public final Vector3 d = new Vector3(0, 0, 0); // direction
+
+	// collision info
+	public final Vector3 hit = new Vector3(0, 0, 0); // collision coords
+	public final Vector3 tuv = new Vector3(0, 0, 0); // barycentric coords
+	public final Vector3 n = new Vector3(0, 0, 0); // normal
+	public final Vector3 t1 = new Vector3(0, 0, 0); // tangent 1
+	public final Vector3 t2 = new Vector3(0, 0, 0); // tangent 2
+
+	// counters of the thread that made the ray, null without telemetry
+	final Telemetry.Counters stats = Telemetry.ENABLED ? Telemetry.local()
+			: null;
+
+	// traversal stacks for scene and mesh hierarchies
+	int[] sceneStack = new int[32];
+	double[] sceneDist = new double[32];
+	int[] meshStack = new int[64];
+	double[] meshDist = new double[64];
+
+	// scratch of Camera.luminance at this bounce: light arriving at the
+	// hit, light along one scattered ray, and the callback that gathers
+	// light for a new irradiance record, made on first use
+	final double[] light = new double[2];
+	final double[] part = new double[2];
+	Camera.Gather gather;
+
+	/**
+	 * Make array of rays, one for each bounce of a path
+	 *
+	 * @param size number of rays
+	 */
+	public static Ray[] array(int size) {
+		Ray[] rays = new Ray[size];
+		for (int i = 0; i < size; i++) {
+			rays[i] = new Ray();
+		}
+		return rays;
+	}
+
+	/**
+	 * Start this ray at the collision of another ray, moved off the surface
+	 * to the side d points to so it can not hit that surface again. Set d
+	 * first.
+	 *
+	 * @param from ray with collision info
+	 */
+	public void spawn(Ray from) {
+		Vector3 p = from.hit, n = from.n;
+		double scale = Math.max(Math.max(Math.abs(p.getX()),
+				Math.abs(p.getY())), Math.max(Math.abs(p.getZ()), OFFSET_MIN));
+		double off = d.dot(n) < 0 ? -OFFSET * scale : OFFSET * scale;
+		o.set(p.getX() + off * n.getX(), p.getY() + off * n.getY(),
+				p.getZ() + off * n.getZ());
+	}
+
+	/**
+	 * Copy ray and collision info of another ray
+	 */
+	public void set(Ray ray) {
+		o.set(ray.o);
+		d.set(ray.d);
+		hit.set(ray.hit);
+		tuv.set(ray.tuv);
+		n.set(ray.n);
+		t1.set(ray.t1);
+		t2.set(ray.t2);
+	}
+
+	/**
+	 * Make sure the scene stack can hold size nodes
+	 */
+	void reserveScene(int size) {
+		if (sceneStack.length < size) {
+			sceneStack = new int[size];
+			sceneDist = new double[size];
+		}
+	}
+
+	/**
+	 * Make sure the mesh stack can hold size nodes
+	 */
+	void reserveMesh(int size) {
+		if (meshStack.length < size) {
+			meshStack = new int[size];
+			meshDist = new double[size];
+		}
+	}
+}
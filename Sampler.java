@@ -0,0 +1,99 @@
+/**
+ * Source of the random numbers used to render one sample of a pixel. Every
+ * sample starts a new stream seeded by the pixel and the sample index, and
+ * each call to next uses the next dimension of that stream, so an image is
+ * the same whatever thread renders which tile. Render threads keep their own
+ * sampler and nothing is shared between them.
+ *
+ * @author Jeremy Parker Yang
+ *
+ */
+public abstract class Sampler {
+
+	// kinds of sampler
+	final static int RANDOM = 0; // independent pseudo random numbers
+	final static int HALTON = 1; // Halton sequence, rotated per pixel
+	final static int SOBOL = 2; // Owen scrambled Sobol pairs
+	final static int BLUE_NOISE = 3; // Sobol, rotated by blue noise per pixel
+
+	// seed of every stream, change to get a different image
+	final long seed;
+
+	// current stream
+	int x;
+	int y;
+	int index;
+	int dim;
+
+	/**
+	 * @param seed seed of every stream
+	 */
+	Sampler(long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * Make a new sampler
+	 *
+	 * @param kind RANDOM, HALTON, SOBOL or BLUE_NOISE
+	 * @param seed seed of every stream
+	 */
+	public static Sampler create(int kind, long seed) {
+		switch (kind) {
+		case HALTON:
+			return new HaltonSampler(seed);
+		case SOBOL:
+			return new SobolSampler(seed);
+		case BLUE_NOISE:
+			return new BlueNoiseSampler(seed);
+		default:
+			return new RandomSampler(seed);
+		}
+	}
+
+	/**
+	 * Start the stream of a sample
+	 *
+	 * @param x     column of pixel
+	 * @param y     row of pixel
+	 * @param index number of samples the pixel already has
+	 */
+	public void start(int x, int y, int index) {
+		this.x = x;
+		this.y = y;
+		this.index = index;
+		dim = 0;
+	}
+
+	/**
+	 * Next dimension of the current sample
+	 *
+	 * @return number in [0, 1)
+	 */
+	public abstract double next();
+
+	/**
+	 * Mix bits of a value (the SplitMix64 finalizer)
+	 */
+	static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 * Hash of the seed, the pixel and a dimension
+	 */
+	long hash(int x, int y, int dim) {
+		long h = mix(seed + 0x9e3779b97f4a7c15L);
+		h = mix(h ^ ((long) x << 32 | (y & 0xffffffffL)));
+		return mix(h ^ dim);
+	}
+
+	/**
+	 * Top 53 bits of a value as a number in [0, 1)
+	 */
+	static double toUnit(long bits) {
+		return (bits >>> 11) * 0x1.0p-53;
+	}
+}
@@ -0,0 +1,258 @@
+import java.util.ArrayList;
+
+/**
+ * Set of meshes that rays can collide with. A top level bounding volume
+ * hierarchy over the mesh bounding boxes is walked nearest first, and the
+ * closest collision so far is passed into each mesh so farther meshes and
+ * nodes are skipped.
+ *
+ * @author Jeremy Parker Yang
+ *
+ */
+public class Scene {
+
+	// all meshes, in leaf order once built
+	private ArrayList<TriMesh> meshes = new ArrayList<TriMesh>();
+
+	// acceleration structure over meshes
+	private BVH bvh;
+	private double[] boxes; // box of each mesh, kept by update
+
+	/**
+	 * Add mesh to scene. The scene must be rebuilt before rendering.
+	 *
+	 * @param mesh mesh to add
+	 */
+	public void add(TriMesh mesh) {
+		meshes.add(mesh);
+		bvh = null;
+	}
+
+	/**
+	 * Build top level acceleration structure over all meshes
+	 */
+	public void build() {
+		int size = meshes.size();
+		double[] boxes = new double[6 * size];
+		for (int i = 0; i < size; i++) {
+			meshes.get(i).getBounds(boxes, 6 * i);
+		}
+		int[] order = new int[size];
+		BVH tree = new BVH(boxes, order);
+
+		// reorder meshes to match leaves
+		ArrayList<TriMesh> sorted = new ArrayList<TriMesh>(size);
+		for (int i = 0; i < size; i++) {
+			sorted.add(meshes.get(order[i]));
+		}
+		meshes = sorted;
+		bvh = tree;
+	}
+
+	/**
+	 * Fit the top level hierarchy to meshes that have moved, see
+	 * TriMesh.setTransform. It is built again instead once refitting has
+	 * made it BVH.REBUILD times worse than when it was built.
+	 */
+	public void update() {
+		int size = meshes.size();
+		if (boxes == null || boxes.length != 6 * size) {
+			boxes = new double[6 * size];
+		}
+		for (int i = 0; i < size; i++) {
+			meshes.get(i).getBounds(boxes, 6 * i);
+		}
+		if (bvh.refit(boxes) > BVH.REBUILD) {
+			build();
+		}
+	}
+
+	/**
+	 * Number of meshes in scene
+	 */
+	public int size() {
+		return meshes.size();
+	}
+
+	/**
+	 * Get a mesh from the scene
+	 */
+	public TriMesh get(int i) {
+		return meshes.get(i);
+	}
+
+	/**
+	 * Hierarchy over the meshes, null until build is called
+	 */
+	BVH bvh() {
+		return bvh;
+	}
+
+	/**
+	 * Check meshes in scene for ray intersection. The closest intersection is
+	 * where the light will collide and scatter.
+	 *
+	 * @param ray ray to trace, collision info is written here
+	 * @return false if no intersection
+	 */
+	public boolean intersect(Ray ray) {
+
+		// ray data shared by all box tests
+		Vector3 o = ray.o, d = ray.d;
+		double ox = o.getX(), oy = o.getY(), oz = o.getZ();
+		double ix = 1d / d.getX(), iy = 1d / d.getY(), iz = 1d / d.getZ();
+
+		// closest collision so far
+		double dist = Double.MAX_VALUE;
+
+		// nodes still to visit and their entry distances
+		ray.reserveScene(bvh.stackSize());
+		int[] stack = ray.sceneStack;
+		double[] stackDist = ray.sceneDist;
+		int sp = 0;
+
+		// counts for telemetry
+		int boxes = 1, rejects = 0;
+
+		// nothing to hit
+		if (bvh.isEmpty()) {
+			return false;
+		}
+
+		// check root
+		if (bvh.entry(0, ox, oy, oz, ix, iy, iz, dist) == Double.MAX_VALUE) {
+			if (Telemetry.ENABLED) {
+				ray.stats.boxTests++;
+				ray.stats.boxRejects++;
+			}
+			return false;
+		}
+		int node = 0;
+
+		while (true) {
+			if (bvh.count(node) > 0) {
+				// leaf: meshes only report collisions closer than dist
+				int end = bvh.first(node) + bvh.count(node);
+				for (int i = bvh.first(node); i < end; i++) {
+					if (meshes.get(i).meshInt(ray, dist)) {
+						dist = ray.tuv.getX();
+					}
+				}
+			} else {
+				// interior: visit the nearer child first
+				int left = bvh.first(node);
+				double tl = bvh.entry(left, ox, oy, oz, ix, iy, iz, dist);
+				double tr = bvh.entry(left + 1, ox, oy, oz, ix, iy, iz, dist);
+				if (Telemetry.ENABLED) {
+					boxes += 2;
+					rejects += (tl == Double.MAX_VALUE ? 1 : 0)
+							+ (tr == Double.MAX_VALUE ? 1 : 0);
+				}
+				if (tl != Double.MAX_VALUE && tr != Double.MAX_VALUE) {
+					if (tl <= tr) {
+						stack[sp] = left + 1;
+						stackDist[sp++] = tr;
+						node = left;
+					} else {
+						stack[sp] = left;
+						stackDist[sp++] = tl;
+						node = left + 1;
+					}
+					continue;
+				} else if (tl != Double.MAX_VALUE) {
+					node = left;
+					continue;
+				} else if (tr != Double.MAX_VALUE) {
+					node = left + 1;
+					continue;
+				}
+			}
+
+			// pop the next node that is still closer than the closest hit
+			do {
+				if (sp == 0) {
+					if (Telemetry.ENABLED) {
+						ray.stats.boxTests += boxes;
+						ray.stats.boxRejects += rejects;
+					}
+					return dist < Double.MAX_VALUE;
+				}
+				node = stack[--sp];
+			} while (stackDist[sp] > dist);
+		}
+	}
+
+	/**
+	 * Check meshes in scene for any intersection closer than tMax. The
+	 * search ends at the first mesh that blocks the ray, and no collision
+	 * info is written, so this is much cheaper than intersect for shadow
+	 * and visibility rays.
+	 *
+	 * @param ray  ray to trace
+	 * @param tMax ignore collisions farther than this
+	 * @return true if the ray is blocked before tMax
+	 */
+	public boolean occluded(Ray ray, double tMax) {
+
+		// ray data shared by all box tests
+		Vector3 o = ray.o, d = ray.d;
+		double ox = o.getX(), oy = o.getY(), oz = o.getZ();
+		double ix = 1d / d.getX(), iy = 1d / d.getY(), iz = 1d / d.getZ();
+
+		// nodes still to visit
+		ray.reserveScene(bvh.stackSize());
+		int[] stack = ray.sceneStack;
+		int sp = 0;
+
+		// counts for telemetry
+		int boxes = 1, rejects = 0;
+
+		// nothing to hit
+		if (bvh.isEmpty()) {
+			return false;
+		}
+
+		// check root
+		if (bvh.entry(0, ox, oy, oz, ix, iy, iz, tMax) == Double.MAX_VALUE) {
+			if (Telemetry.ENABLED) {
+				ray.stats.boxTests++;
+				ray.stats.boxRejects++;
+			}
+			return false;
+		}
+		stack[sp++] = 0;
+
+		boolean blocked = false;
+		while (sp > 0 && !blocked) {
+			int node = stack[--sp];
+			if (bvh.count(node) > 0) {
+				// leaf: any blocking mesh ends the search
+				int end = bvh.first(node) + bvh.count(node);
+				for (int i = bvh.first(node); i < end && !blocked; i++) {
+					blocked = meshes.get(i).occluded(ray, tMax);
+				}
+			} else {
+				// interior: visit every child the ray enters
+				int left = bvh.first(node);
+				boxes += 2;
+				if (bvh.entry(left, ox, oy, oz, ix, iy, iz,
+						tMax) != Double.MAX_VALUE) {
+					stack[sp++] = left;
+				} else {
+					rejects++;
+				}
+				if (bvh.entry(left + 1, ox, oy, oz, ix, iy, iz,
+						tMax) != Double.MAX_VALUE) {
+					stack[sp++] = left + 1;
+				} else {
+					rejects++;
+				}
+			}
+		}
+		if (Telemetry.ENABLED) {
+			ray.stats.boxTests += boxes;
+			ray.stats.boxRejects += rejects;
+		}
+		return blocked;
+	}
+}
@@ -0,0 +1,99 @@
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Renders an animation where only the transforms of meshes change, such as
+ * a turntable. Meshes stay loaded between frames: each frame moves them in
+ * place and refits their hierarchies (see Camera.animate), so setting up a
+ * frame costs about as much as transforming the vertices once. A hierarchy
+ * is only rebuilt once refitting has made it BVH.REBUILD times worse than
+ * when it was built. Irradiance caches are cleared every frame, since the
+ * light moves with the meshes. The render pool and the denoiser's buffer
+ * are kept for the whole sequence.
+ *
+ * Frames are written to name.0000.png and name.0000.pfm, counting up, on a
+ * writer thread while the next frame renders. At most one frame waits to
+ * be written, so memory does not grow with the length of the sequence.
+ *
+ * @author Jeremy Parker Yang
+ *
+ */
+public class Sequence {
+
+	/**
+	 * Render every frame and write it to disk
+	 *
+	 * @param frames number of frames
+	 * @param output name of frame files, without number and extension
+	 */
+	public static void render(int frames, String output) {
+		ExecutorService writer = Executors.newSingleThreadExecutor();
+		if (Camera.DENOISE) {
+			Camera.aux = new AuxBuffer(Camera.WIDTH, Camera.HEIGHT);
+		}
+		Future<?> written = CompletableFuture.completedFuture(null);
+		long start = System.nanoTime();
+		for (int frame = 0; frame < frames; frame++) {
+			// move meshes
+			long setup = System.nanoTime();
+			boolean rebuilt = Camera.animate(frame, frames);
+			for (IrradianceCache cache : Camera.irradiance) {
+				cache.clear();
+			}
+			if (Camera.aux != null) {
+				Camera.aux.clear();
+			}
+
+			// render
+			long render = System.nanoTime();
+			Film film = Camera.PROGRESSIVE ? Camera.progressive()
+					: Camera.render();
+			if (Camera.aux != null) {
+				film = Denoiser.denoise(film, Camera.aux);
+			}
+			System.out.printf("frame %d: setup %.2f ms%s, render %.2f s%n",
+					frame, (render - setup) / 1e6, rebuilt ? " (rebuilt)" : "",
+					(System.nanoTime() - render) / 1e9);
+
+			// write while the next frame renders
+			await(written);
+			Film done = film;
+			String name = String.format("%s.%04d", output, frame);
+			written = writer.submit(() -> write(done, name));
+		}
+		await(written);
+		writer.shutdown();
+		System.out.printf("%d frames in %.2f s%n", frames,
+				(System.nanoTime() - start) / 1e9);
+	}
+
+	/**
+	 * Helper method for render. Save one frame.
+	 *
+	 * @param film image of the frame
+	 * @param name name of files, without extension
+	 */
+	private static void write(Film film, String name) {
+		try {
+			ImageFile.writePNG(film, name + ".png");
+			ImageFile.writePFM(film, name + ".pfm");
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Helper method for render. Wait for a frame to be written.
+	 */
+	private static void await(Future<?> written) {
+		try {
+			written.get();
+		} catch (InterruptedException | ExecutionException e) {
+			e.printStackTrace();
+		}
+	}
+}
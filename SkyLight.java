@@ -1,32 +1,273 @@
+import java.io.IOException;
+
 /**
- * Get contribution of sky light from a given direction
- * 
+ * Get contribution of sky light from a given direction. The sky is stored as
+ * a latitude-longitude table of radiance, baked from a built in sun and sky
+ * or loaded from an HDR image, so a lookup is one table read however the sky
+ * was made. A 2D cumulative distribution over the table lets bright regions
+ * such as the sun be sampled directly.
+ *
  * @author Jeremy Parker Yang
  *
  */
 public class SkyLight {
 
+	// direction towards the sun
+	private final static Vector3 SUN = new Vector3(-0.2, .9, .7).norm(); //y = .2
+
+	// built in sky
+	final static double SKY = .12; // light from every direction
+	final static double SUN_LIGHT = 300; //15
+	final static double SUN_COS = .95; // cos of the angular radius of the sun
+	final static int MAP_WIDTH = 1024; // texels around the horizon
+	final static int MAP_HEIGHT = 512; // texels from straight up to down
+
+	// radiance table, row 0 is straight up (+y), column 0 faces -x
+	private static int width;
+	private static int height;
+	private static double[] map;
+
+	// texel edges: cos of theta for each row, cos and sin of phi per column
+	private static double[] rowCos; // height + 1 values
+	private static double[] colCos; // width + 1 values
+	private static double[] colSin;
+
+	// sampling tables, weights are radiance times texel solid angle
+	private static double[] rowCdf; // height + 1 values
+	private static double[] colCdf; // width + 1 values per row
+	private static double total; // sum of weights
+
+	static {
+		bake();
+	}
+
 	public SkyLight() {
 
 	}
 
 	/**
 	 * Calculates the light contribution from this direction. Uses spherical
-	 * polar coordinates where phi is the angle from x towards y and theta is
-	 * the angle from z towards x.
-	 * 
+	 * polar coordinates where theta is the angle down from y and phi is the
+	 * angle from x towards z.
+	 *
 	 * @param d direction in cartesian coordinates
 	 * @return contribution from light
 	 */
 	public static double getLight(Vector3 d) {
+		return map[texel(d)];
+	}
+
+	/**
+	 * Pick a direction at random, in proportion to the light coming from it.
+	 * A texel is picked from the sampling tables, then a direction is picked
+	 * uniformly over the solid angle of the texel.
+	 *
+	 * @param d       the direction is written here
+	 * @param sampler random numbers of the sample, uses 4 dimensions
+	 * @return probability density of the direction, per unit solid angle
+	 */
+	public static double sample(Vector3 d, Sampler sampler) {
+
+		// pick texel
+		int row = find(rowCdf, 0, height, sampler.next());
+		int col = find(colCdf, row * (width + 1), width, sampler.next());
+
+		// uniform in cos theta is uniform in solid angle
+		double y = rowCos[row]
+				- sampler.next() * (rowCos[row] - rowCos[row + 1]);
+		double sin = Math.sqrt(Math.max(0, 1 - y * y));
+
+		// turn edge of column by a small angle, no need for full sin, cos
+		double a = 2 * Math.PI / width * sampler.next();
+		double a2 = a * a;
+		double ca = 1 - a2 / 2 * (1 - a2 / 12 * (1 - a2 / 30));
+		double sa = a * (1 - a2 / 6 * (1 - a2 / 20 * (1 - a2 / 42)));
+		double cos = colCos[col] * ca - colSin[col] * sa;
+		double sinPhi = colSin[col] * ca + colCos[col] * sa;
+
+		d.set(-sin * cos, y, -sin * sinPhi);
+		return map[col + row * width] / total;
+	}
+
+	/**
+	 * Probability density of sample picking direction d, per unit solid
+	 * angle. This is simply the radiance divided by the total.
+	 *
+	 * @param d direction in cartesian coordinates
+	 */
+	public static double pdf(Vector3 d) {
+		return map[texel(d)] / total;
+	}
+
+	/**
+	 * Replace the sky with an HDR image in latitude-longitude layout. The top
+	 * row of the image is straight up. Color is averaged to luminance.
+	 *
+	 * @param fileName .hdr or .pfm file to read
+	 */
+	public static void load(String fileName) throws IOException {
+		Film image = ImageFile.read(fileName);
+		int w = image.getWidth();
+		int h = image.getHeight();
+		double[] m = new double[w * h];
+		for (int y = 0; y < h; y++) {
+			for (int x = 0; x < w; x++) {
+				m[x + y * w] = (image.get(x, y, 0) + image.get(x, y, 1)
+						+ image.get(x, y, 2)) / 3;
+			}
+		}
+		setMap(m, w, h);
+	}
+
+	/**
+	 * Bake the built in sun and sky into the table, sampled at the center of
+	 * each texel
+	 */
+	public static void bake() {
+		double[] m = new double[MAP_WIDTH * MAP_HEIGHT];
+		for (int row = 0; row < MAP_HEIGHT; row++) {
+			double theta = Math.PI * (row + 0.5) / MAP_HEIGHT;
+			double sin = Math.sin(theta);
+			double y = Math.cos(theta);
+			for (int col = 0; col < MAP_WIDTH; col++) {
+				double phi = 2 * Math.PI * (col + 0.5) / MAP_WIDTH;
+				double x = -sin * Math.cos(phi);
+				double z = -sin * Math.sin(phi);
+
+				// this is an arbitrary function that could be changed later
+				//-0.2, .2, .7
+				//-0.7, .9, .75
+				double cos = x * SUN.getX() + y * SUN.getY() + z * SUN.getZ();
+				m[col + row * MAP_WIDTH] = cos < SUN_COS ? SKY : SUN_LIGHT;
+			}
+		}
+		setMap(m, MAP_WIDTH, MAP_HEIGHT);
+	}
 
-		// this is an arbitrary function that could be changed later
-		//-0.2, .2, .7
-		//-0.7, .9, .75
-		Vector3 a = d.norm().sub(new Vector3(-0.2, .9, .7).norm()); //y = .2
-		if (a.dot(a) > .1) {
-			return .12;
+	/**
+	 * Helper method for load and bake. Use a new table and build its edge
+	 * and sampling tables.
+	 */
+	private static void setMap(double[] m, int w, int h) {
+		double[] rc = new double[h + 1];
+		for (int row = 0; row <= h; row++) {
+			rc[row] = Math.cos(Math.PI * row / h);
+		}
+		double[] cc = new double[w + 1];
+		double[] cs = new double[w + 1];
+		for (int col = 0; col <= w; col++) {
+			cc[col] = Math.cos(2 * Math.PI * col / w);
+			cs[col] = Math.sin(2 * Math.PI * col / w);
+		}
+
+		// running sums of weights, every texel in a row has the same area
+		double[] rows = new double[h + 1];
+		double[] cols = new double[(w + 1) * h];
+		for (int row = 0; row < h; row++) {
+			double area = 2 * Math.PI / w * (rc[row] - rc[row + 1]);
+			int off = row * (w + 1);
+			for (int col = 0; col < w; col++) {
+				cols[off + col + 1] = cols[off + col] + m[col + row * w] * area;
+			}
+			rows[row + 1] = rows[row] + cols[off + w];
+			normalize(cols, off, w);
+		}
+		double sum = rows[h];
+		normalize(rows, 0, h);
+
+		// publish once complete
+		rowCos = rc;
+		colCos = cc;
+		colSin = cs;
+		rowCdf = rows;
+		colCdf = cols;
+		total = sum;
+		width = w;
+		height = h;
+		map = m;
+	}
+
+	/**
+	 * Helper method for setMap. Scale a running sum to end at 1, or make it
+	 * uniform if it is all 0.
+	 */
+	private static void normalize(double[] cdf, int off, int n) {
+		double sum = cdf[off + n];
+		for (int i = 1; i <= n; i++) {
+			cdf[off + i] = sum > 0 ? cdf[off + i] / sum : (double) i / n;
+		}
+	}
+
+	/**
+	 * Helper method for sample. Index of the interval of a cdf holding u.
+	 */
+	private static int find(double[] cdf, int off, int n, double u) {
+		int lo = 0;
+		int hi = n - 1;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (cdf[off + mid] <= u) {
+				lo = mid;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return lo;
+	}
+
+	/**
+	 * Helper method for lookups. Index of the texel holding direction d. The
+	 * texel is guessed with a fast atan, then moved across an edge if the
+	 * guess was off, so the result agrees exactly with sample.
+	 */
+	private static int texel(Vector3 d) {
+		double x = d.getX(), y = d.getY(), z = d.getZ();
+		double r = Math.sqrt(x * x + z * z);
+		double y1 = y / Math.sqrt(r * r + y * y);
+
+		// row, edges are at rowCos
+		int row = (int) (height / Math.PI * atan2(r, y));
+		row = Math.max(0, Math.min(height - 1, row));
+		if (y1 > rowCos[row] && row > 0) {
+			row--;
+		} else if (y1 <= rowCos[row + 1] && row < height - 1) {
+			row++;
+		}
+
+		// column, edges are at colCos, colSin
+		double phi = atan2(-z, -x);
+		if (phi < 0) {
+			phi += 2 * Math.PI;
+		}
+		int col = Math.min(width - 1, (int) (width / (2 * Math.PI) * phi));
+		if (colCos[col] * -z - colSin[col] * -x < 0) {
+			col = col > 0 ? col - 1 : width - 1;
+		} else if (colCos[col + 1] * -z - colSin[col + 1] * -x >= 0) {
+			col = col < width - 1 ? col + 1 : 0;
+		}
+		return col + row * width;
+	}
+
+	/**
+	 * Helper method for texel. Polynomial atan2, good to about 1e-5 radians,
+	 * which is much less than a texel.
+	 */
+	private static double atan2(double y, double x) {
+		double ax = Math.abs(x), ay = Math.abs(y);
+		double max = Math.max(ax, ay);
+		if (max == 0) {
+			return 0;
+		}
+		double a = Math.min(ax, ay) / max;
+		double s = a * a;
+		double t = ((-0.0464964749 * s + 0.15931422) * s - 0.327622764) * s * a
+				+ a;
+		if (ay > ax) {
+			t = Math.PI / 2 - t;
+		}
+		if (x < 0) {
+			t = Math.PI - t;
 		}
-		return 300; //15
+		return y < 0 ? -t : t;
 	}
 }
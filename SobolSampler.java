@@ -0,0 +1,78 @@
+/**
+ * Sobol points with hash based Owen scrambling (Burley 2020). Dimensions are
+ * taken two at a time from the first two Sobol dimensions, a (0,2) sequence.
+ * Each pair gets its own scramble and its own shuffle of the sample order, so
+ * pairs are independent of each other while every pair stays stratified for
+ * any number of samples.
+ *
+ * @author Jeremy Parker Yang
+ *
+ */
+public class SobolSampler extends Sampler {
+
+	// generator matrix of the second Sobol dimension, one column per bit
+	private final static int[] DIRECTIONS = new int[32];
+	static {
+		DIRECTIONS[0] = 1 << 31;
+		for (int i = 1; i < 32; i++) {
+			DIRECTIONS[i] = DIRECTIONS[i - 1] ^ (DIRECTIONS[i - 1] >>> 1);
+		}
+	}
+
+	// second value of the current pair
+	private double second;
+
+	SobolSampler(long seed) {
+		super(seed);
+	}
+
+	@Override
+	public double next() {
+		int d = dim++;
+		if ((d & 1) == 1) {
+			return second;
+		}
+
+		// shuffle the samples, then scramble each dimension of the pair
+		long h = pairSeed(d >> 1);
+		int i = scramble(index, (int) h);
+		int u0 = scramble(Integer.reverse(i), (int) (h >>> 32));
+		int u1 = scramble(sobol(i), (int) mix(h));
+		second = (u1 & 0xffffffffL) * 0x1.0p-32;
+		return (u0 & 0xffffffffL) * 0x1.0p-32;
+	}
+
+	/**
+	 * Seed of a pair of dimensions. Every pixel gets its own.
+	 */
+	long pairSeed(int pair) {
+		return hash(x, y, pair);
+	}
+
+	/**
+	 * Second Sobol dimension of point i
+	 */
+	static int sobol(int i) {
+		int v = 0;
+		for (int bit = 0; i != 0; bit++, i >>>= 1) {
+			if ((i & 1) != 0) {
+				v ^= DIRECTIONS[bit];
+			}
+		}
+		return v;
+	}
+
+	/**
+	 * Nested uniform (Owen) scramble of the bits of v, from the most
+	 * significant bit down
+	 */
+	static int scramble(int v, int seed) {
+		v = Integer.reverse(v);
+		v += seed;
+		v ^= v * 0x6c50b47c;
+		v ^= v * 0xb82f1e52;
+		v ^= v * 0xc7afe638;
+		v ^= v * 0x8d22f6e6;
+		return Integer.reverse(v);
+	}
+}
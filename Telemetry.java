@@ -0,0 +1,456 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.Timespan;
+
+/**
+ * Counters and timers of the renderer: rays of each kind, box and triangle
+ * tests, and time per tile and per pass. Each thread counts into its own
+ * Counters, reached through its rays, so counting is a plain add with no
+ * sharing between threads. Totals are summed when they are read. Counters
+ * of threads that have ended, such as those of finished render pools, are
+ * folded into one retired total and dropped, so they do not pile up.
+ *
+ * Totals are published as an MXBean (see TelemetryMXBean), and as JFR
+ * events: one per tile and per pass, and a throughput event every second
+ * while a recording is on.
+ *
+ * Set COMPILED to false to compile out all counters, or run with
+ * -Dtelemetry.off=true to turn them off. Either way ENABLED is a static
+ * final the JIT treats as a constant, so the counting code is dropped.
+ *
+ * @author Jeremy Parker Yang
+ *
+ */
+public class Telemetry implements TelemetryMXBean {
+
+	final static boolean COMPILED = true; // false to compile out all counters
+	final static boolean ENABLED = COMPILED
+			&& !Boolean.getBoolean("telemetry.off");
+	final static int BOUNCES = 8; // bounces counted apart, the last is shared
+	final static String NAME = "render:type=Telemetry"; // JMX name
+	final static int MAX_PASSES = 1000; // pass times kept, the last ones
+
+	// counters of every live thread that has made a ray, and the sum of
+	// threads that have ended
+	private final static ConcurrentLinkedQueue<Counters> threads =
+			new ConcurrentLinkedQueue<>();
+	private final static Counters retired = new Counters(null);
+	private static ThreadLocal<Counters> threadCounters = ThreadLocal
+			.withInitial(() -> {
+				retire();
+				Counters c = new Counters(Thread.currentThread());
+				threads.add(c);
+				return c;
+			});
+
+	// ms of the last MAX_PASSES passes, and ns when counting started
+	private final static ArrayDeque<Long> passes = new ArrayDeque<>();
+	private static volatile long since = System.nanoTime();
+
+	// rays and ns at the start of the current pass
+	private static long passRays, passStart;
+
+	// totals at the last throughput event
+	private static long lastRays, lastTests, lastTime = since;
+
+	static {
+		if (ENABLED) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().registerMBean(
+						new Telemetry(), new ObjectName(NAME));
+			} catch (JMException e) {
+				e.printStackTrace();
+			}
+			FlightRecorder.addPeriodicEvent(ThroughputEvent.class,
+					Telemetry::throughput);
+		}
+	}
+
+	/**
+	 * Counters of one thread. Only the thread itself writes them. Readers
+	 * on other threads may see them a little out of date.
+	 */
+	static class Counters {
+		final Thread owner; // null for sums
+		final String thread;
+		long cameraRays;
+		final long[] scatterRays = new long[BOUNCES];
+		long shadowRays;
+		long boxTests, boxRejects; // inside mesh hierarchies
+		long meshTests, meshRejects; // meshes traced, root box missed
+		long triTests, triHits;
+		long busy; // ns spent rendering tiles
+		long tileRays; // rays traced while rendering tiles
+
+		Counters(Thread owner) {
+			this.owner = owner;
+			thread = owner != null ? owner.getName() : "total";
+		}
+
+		/**
+		 * Count a scattered ray
+		 *
+		 * @param bounce 0 for rays scattered from the camera ray's hit
+		 */
+		void scatter(int bounce) {
+			scatterRays[Math.min(bounce, BOUNCES - 1)]++;
+		}
+
+		/**
+		 * Count a ray traced through one mesh
+		 *
+		 * @param boxes   box tests, 1 for the root
+		 * @param rejects box tests that missed
+		 * @param tests   triangle tests
+		 * @param hits    triangle tests that found a closer hit
+		 */
+		void mesh(int boxes, int rejects, int tests, int hits) {
+			meshTests++;
+			if (boxes == rejects) {
+				meshRejects++;
+			}
+			boxTests += boxes;
+			boxRejects += rejects;
+			triTests += tests;
+			triHits += hits;
+		}
+
+		/**
+		 * Camera, scattered and shadow rays
+		 */
+		long rays() {
+			long rays = cameraRays + shadowRays;
+			for (long r : scatterRays) {
+				rays += r;
+			}
+			return rays;
+		}
+
+		/**
+		 * Add the counts of another thread to these
+		 */
+		void add(Counters c) {
+			cameraRays += c.cameraRays;
+			for (int b = 0; b < BOUNCES; b++) {
+				scatterRays[b] += c.scatterRays[b];
+			}
+			shadowRays += c.shadowRays;
+			boxTests += c.boxTests;
+			boxRejects += c.boxRejects;
+			meshTests += c.meshTests;
+			meshRejects += c.meshRejects;
+			triTests += c.triTests;
+			triHits += c.triHits;
+			busy += c.busy;
+			tileRays += c.tileRays;
+		}
+
+		/**
+		 * Set every count to 0
+		 */
+		void clear() {
+			cameraRays = 0;
+			Arrays.fill(scatterRays, 0);
+			shadowRays = 0;
+			boxTests = 0;
+			boxRejects = 0;
+			meshTests = 0;
+			meshRejects = 0;
+			triTests = 0;
+			triHits = 0;
+			busy = 0;
+			tileRays = 0;
+		}
+	}
+
+	/**
+	 * Counters of the current thread, rays keep a reference to them
+	 */
+	static Counters local() {
+		return threadCounters.get();
+	}
+
+	/**
+	 * Render a tile and record how long it took
+	 *
+	 * @param i0     first row of tile
+	 * @param j0     first column of tile
+	 * @param render renders the tile on the current thread
+	 */
+	static void tile(int i0, int j0, Runnable render) {
+		if (!ENABLED) {
+			render.run();
+			return;
+		}
+		Counters c = local();
+		long rays = c.rays();
+		TileEvent event = new TileEvent();
+		event.begin();
+		long start = System.nanoTime();
+		render.run();
+		c.busy += System.nanoTime() - start;
+		c.tileRays += c.rays() - rays;
+		if (event.shouldCommit()) {
+			event.row = i0;
+			event.column = j0;
+			event.rays = c.rays() - rays;
+			event.commit();
+		}
+	}
+
+	/**
+	 * Start timing a pass over the image. Passes are run one at a time.
+	 */
+	static void startPass() {
+		if (ENABLED) {
+			passRays = total().rays();
+			passStart = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Record the pass started last
+	 *
+	 * @param pass number of pass, from 1
+	 */
+	static void endPass(int pass) {
+		if (!ENABLED) {
+			return;
+		}
+		long time = System.nanoTime() - passStart;
+		synchronized (passes) {
+			passes.addLast(time / 1000000);
+			if (passes.size() > MAX_PASSES) {
+				passes.removeFirst(); // long previews and sequences
+			}
+		}
+		PassEvent event = new PassEvent();
+		if (event.shouldCommit()) {
+			event.pass = pass;
+			event.rays = total().rays() - passRays;
+			event.time = time;
+			event.commit();
+		}
+	}
+
+	/**
+	 * One line summary of the counts so far
+	 */
+	static String summary() {
+		Telemetry t = new Telemetry();
+		return String.format("%d rays, %.3f Mrays/s, %.1f tests per ray",
+				t.getRays(), t.getRaysPerSecond() / 1e6, t.getTestsPerRay());
+	}
+
+	/**
+	 * Sum of the counters of all threads
+	 */
+	private static Counters total() {
+		retire();
+		Counters total = new Counters(null);
+		synchronized (retired) {
+			total.add(retired);
+		}
+		for (Counters c : threads) {
+			total.add(c);
+		}
+		return total;
+	}
+
+	/**
+	 * Fold the counters of threads that have ended into retired and drop
+	 * them. A thread that has ended writes nothing more, and seeing it end
+	 * makes all of its counts visible.
+	 */
+	private static void retire() {
+		synchronized (retired) {
+			Iterator<Counters> it = threads.iterator();
+			while (it.hasNext()) {
+				Counters c = it.next();
+				if (!c.owner.isAlive()) {
+					retired.add(c);
+					it.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Emit a throughput event, called by JFR once a period
+	 */
+	private static synchronized void throughput() {
+		Counters total = total();
+		long now = System.nanoTime();
+		long rays = total.rays() - lastRays;
+		long tests = total.triTests - lastTests;
+		ThroughputEvent event = new ThroughputEvent();
+		event.raysPerSecond = now > lastTime ? rays * 1e9 / (now - lastTime)
+				: 0;
+		event.testsPerRay = rays > 0 ? (double) tests / rays : 0;
+		event.commit();
+		lastRays = total.rays();
+		lastTests = total.triTests;
+		lastTime = now;
+	}
+
+	@Override
+	public long getCameraRays() {
+		return total().cameraRays;
+	}
+
+	@Override
+	public long[] getScatterRays() {
+		return total().scatterRays;
+	}
+
+	@Override
+	public long getShadowRays() {
+		return total().shadowRays;
+	}
+
+	@Override
+	public long getRays() {
+		return total().rays();
+	}
+
+	@Override
+	public double getRaysPerSecond() {
+		long time = System.nanoTime() - since;
+		return time > 0 ? getRays() * 1e9 / time : 0;
+	}
+
+	@Override
+	public long getBoxTests() {
+		return total().boxTests;
+	}
+
+	@Override
+	public long getBoxRejects() {
+		return total().boxRejects;
+	}
+
+	@Override
+	public long getMeshTests() {
+		return total().meshTests;
+	}
+
+	@Override
+	public long getMeshRejects() {
+		return total().meshRejects;
+	}
+
+	@Override
+	public long getTriangleTests() {
+		return total().triTests;
+	}
+
+	@Override
+	public long getTriangleHits() {
+		return total().triHits;
+	}
+
+	@Override
+	public double getTestsPerRay() {
+		Counters total = total();
+		long rays = total.rays();
+		return rays > 0 ? (double) total.triTests / rays : 0;
+	}
+
+	@Override
+	public Map<String, Double> getThreadRaysPerSecond() {
+		LinkedHashMap<String, Double> map = new LinkedHashMap<>();
+		for (Counters c : threads) {
+			if (c.busy > 0) {
+				map.put(c.thread, c.tileRays * 1e9 / c.busy);
+			}
+		}
+		return map;
+	}
+
+	@Override
+	public long[] getPassTimes() {
+		synchronized (passes) {
+			return passes.stream().mapToLong(Long::longValue).toArray();
+		}
+	}
+
+	@Override
+	public void reset() {
+		// counts added while resetting may be lost
+		synchronized (retired) {
+			retired.clear();
+			for (Counters c : threads) {
+				c.clear();
+			}
+		}
+		synchronized (passes) {
+			passes.clear();
+		}
+		synchronized (Telemetry.class) {
+			lastRays = 0;
+			lastTests = 0;
+			lastTime = System.nanoTime();
+		}
+		since = System.nanoTime();
+	}
+
+	@Name("render.Tile")
+	@Label("Render Tile")
+	@Category("Renderer")
+	@Description("One tile rendered by one thread")
+	static class TileEvent extends Event {
+		@Label("First Row")
+		int row;
+
+		@Label("First Column")
+		int column;
+
+		@Label("Rays")
+		long rays;
+	}
+
+	@Name("render.Pass")
+	@Label("Render Pass")
+	@Category("Renderer")
+	@Description("One pass over every tile of the image")
+	static class PassEvent extends Event {
+		@Label("Pass")
+		int pass;
+
+		@Label("Rays")
+		long rays;
+
+		@Label("Time")
+		@Timespan
+		long time;
+	}
+
+	@Name("render.Throughput")
+	@Label("Render Throughput")
+	@Category("Renderer")
+	@Description("Rays traced since the last throughput event")
+	@Period("1 s")
+	static class ThroughputEvent extends Event {
+		@Label("Rays per Second")
+		double raysPerSecond;
+
+		@Label("Triangle Tests per Ray")
+		double testsPerRay;
+	}
+}
@@ -0,0 +1,88 @@
+import java.util.Map;
+
+/**
+ * Render counters as seen over JMX, under the name render:type=Telemetry.
+ * Counts are totals since the last reset, summed over all render threads.
+ *
+ * @author Jeremy Parker Yang
+ *
+ */
+public interface TelemetryMXBean {
+
+	/**
+	 * @return rays sent from the camera, one per sample
+	 */
+	long getCameraRays();
+
+	/**
+	 * @return scattered rays of each bounce, the last entry counts every
+	 *         bounce from there on
+	 */
+	long[] getScatterRays();
+
+	/**
+	 * @return shadow rays sent towards the sky
+	 */
+	long getShadowRays();
+
+	/**
+	 * @return camera, scattered and shadow rays
+	 */
+	long getRays();
+
+	/**
+	 * @return rays per second since the last reset
+	 */
+	double getRaysPerSecond();
+
+	/**
+	 * @return ray-box tests inside mesh hierarchies
+	 */
+	long getBoxTests();
+
+	/**
+	 * @return ray-box tests that missed
+	 */
+	long getBoxRejects();
+
+	/**
+	 * @return meshes a ray was traced through
+	 */
+	long getMeshTests();
+
+	/**
+	 * @return meshes whose bounding box the ray missed
+	 */
+	long getMeshRejects();
+
+	/**
+	 * @return ray-triangle tests
+	 */
+	long getTriangleTests();
+
+	/**
+	 * @return ray-triangle tests that found a hit closer than any before
+	 */
+	long getTriangleHits();
+
+	/**
+	 * @return triangle tests per ray
+	 */
+	double getTestsPerRay();
+
+	/**
+	 * @return rays per second of each render thread while rendering tiles
+	 */
+	Map<String, Double> getThreadRaysPerSecond();
+
+	/**
+	 * @return ms taken by each of the last Telemetry.MAX_PASSES passes
+	 *         since the last reset
+	 */
+	long[] getPassTimes();
+
+	/**
+	 * Start counting from zero
+	 */
+	void reset();
+}
@@ -0,0 +1,197 @@
+import java.nio.ByteBuffer;
+import java.util.stream.IntStream;
+
+/**
+ * Triangles of a mesh stored in flat primitive arrays indexed by triangle id.
+ * Data needed by every intersection test (point, edges, normal) is kept
+ * together in one array and the tangent frame, only needed once a hit is
+ * found, is kept in another.
+ *
+ * With Triangle.SINGLE the geometry is stored in float, which halves the
+ * memory every intersection test reads. Triangles are still set up in
+ * double and rounded once. The tangent frame, only read once per hit, stays
+ * in double.
+ *
+ * @author Jeremy Parker Yang
+ *
+ */
+public class TriArray {
+
+	// packed triangle data, layout given by Triangle
+	double[] geo; // null with Triangle.SINGLE
+	float[] fgeo; // geo in float, null without Triangle.SINGLE
+	double[] frame;
+
+	// geo in double while setting up with Triangle.SINGLE, kept by set
+	// for the meshes that move every frame
+	private double[] scratch;
+
+	// number of triangles stored
+	private int size;
+
+	/**
+	 * Pack triangles from shared vertices. Triangles are set up in
+	 * parallel.
+	 *
+	 * @param verts    xyz of each vertex
+	 * @param faces    0 based vertex indices of each triangle
+	 * @param numFaces number of triangles
+	 */
+	public TriArray(double[] verts, int[] faces, int numFaces) {
+		size = numFaces;
+		frame = new double[Triangle.FRAME * size];
+		set(verts, faces);
+		scratch = null; // static meshes only need fgeo
+	}
+
+	/**
+	 * Set up every triangle again from vertices that have moved, keeping
+	 * the arrays and the order of the triangles. Triangles are set up in
+	 * parallel. With Triangle.SINGLE they are set up in a double array that
+	 * is kept for the next call.
+	 *
+	 * @param verts xyz of each vertex
+	 * @param faces 0 based vertex indices of each triangle, in the order
+	 *              the triangles are stored
+	 */
+	public void set(double[] verts, int[] faces) {
+		double[] g = geo != null ? geo
+				: scratch != null ? scratch : new double[Triangle.GEO * size];
+		IntStream.range(0, size).parallel()
+				.forEach(i -> Triangle.set(g, frame, i, verts, faces[3 * i],
+						faces[3 * i + 1], faces[3 * i + 2]));
+		if (Triangle.SINGLE) {
+			scratch = g;
+			if (fgeo == null) {
+				fgeo = new float[g.length];
+			}
+			for (int i = 0; i < g.length; i++) {
+				fgeo[i] = (float) g[i];
+			}
+		} else {
+			geo = g;
+		}
+	}
+
+	/**
+	 * Read triangles saved with write
+	 *
+	 * @param buf buffer positioned at the saved triangles, advanced past them
+	 */
+	static TriArray read(ByteBuffer buf) {
+		TriArray tris = new TriArray(new double[0], new int[0], 0);
+		tris.size = buf.getInt();
+		tris.frame = new double[Triangle.FRAME * tris.size];
+		if (Triangle.SINGLE) {
+			tris.fgeo = new float[Triangle.GEO * tris.size];
+			buf.asFloatBuffer().get(tris.fgeo);
+			buf.position(buf.position() + 4 * tris.fgeo.length);
+		} else {
+			tris.geo = new double[Triangle.GEO * tris.size];
+			buf.asDoubleBuffer().get(tris.geo);
+			buf.position(buf.position() + 8 * tris.geo.length);
+		}
+		buf.asDoubleBuffer().get(tris.frame);
+		buf.position(buf.position() + 8 * tris.frame.length);
+		return tris;
+	}
+
+	/**
+	 * Save the packed triangles
+	 *
+	 * @param buf buffer with at least bytes() remaining, advanced past them
+	 */
+	void write(ByteBuffer buf) {
+		buf.putInt(size);
+		if (Triangle.SINGLE) {
+			buf.asFloatBuffer().put(fgeo);
+			buf.position(buf.position() + 4 * fgeo.length);
+		} else {
+			buf.asDoubleBuffer().put(geo);
+			buf.position(buf.position() + 8 * geo.length);
+		}
+		buf.asDoubleBuffer().put(frame);
+		buf.position(buf.position() + 8 * frame.length);
+	}
+
+	/**
+	 * Number of bytes needed by write
+	 */
+	long bytes() {
+		int geoBytes = Triangle.SINGLE ? 4 : 8;
+		return 4 + (long) (geoBytes * Triangle.GEO + 8 * Triangle.FRAME) * size;
+	}
+
+	/**
+	 * Number of triangles
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Axis aligned bounding box of triangle i
+	 *
+	 * @param box xMin, yMin, zMin, xMax, yMax, zMax written here
+	 * @param off index of xMin in box
+	 */
+	public void getBounds(int i, double[] box, int off) {
+		if (Triangle.SINGLE) {
+			Triangle.getBounds(fgeo, i, box, off);
+		} else {
+			Triangle.getBounds(geo, i, box, off);
+		}
+	}
+
+	/**
+	 * Point of triangle i at barycentric coords u, v
+	 *
+	 * @param p point written here
+	 */
+	public void getPoint(int i, double u, double v, Vector3 p) {
+		if (Triangle.SINGLE) {
+			Triangle.point(fgeo, i, u, v, p);
+		} else {
+			Triangle.point(geo, i, u, v, p);
+		}
+	}
+
+	/**
+	 * Get normal and tangents of triangle i
+	 */
+	public void getFrame(int i, Vector3 n, Vector3 t1, Vector3 t2) {
+		int g = Triangle.GEO * i + Triangle.N;
+		int f = Triangle.FRAME * i;
+		if (Triangle.SINGLE) {
+			n.set(fgeo[g], fgeo[g + 1], fgeo[g + 2]);
+		} else {
+			n.set(geo[g], geo[g + 1], geo[g + 2]);
+		}
+		t1.set(frame[f + Triangle.T1], frame[f + Triangle.T1 + 1],
+				frame[f + Triangle.T1 + 2]);
+		t2.set(frame[f + Triangle.T2], frame[f + Triangle.T2 + 1],
+				frame[f + Triangle.T2 + 2]);
+	}
+
+	/**
+	 * Reorder triangles so the triangle at position i was at order[i]
+	 */
+	public void reorder(int[] order) {
+		Object oldGeo = Triangle.SINGLE ? fgeo : geo;
+		Object newGeo = Triangle.SINGLE ? new float[Triangle.GEO * size]
+				: new double[Triangle.GEO * size];
+		double[] newFrame = new double[Triangle.FRAME * size];
+		for (int i = 0; i < size; i++) {
+			System.arraycopy(oldGeo, Triangle.GEO * order[i], newGeo,
+					Triangle.GEO * i, Triangle.GEO);
+			System.arraycopy(frame, Triangle.FRAME * order[i], newFrame,
+					Triangle.FRAME * i, Triangle.FRAME);
+		}
+		if (Triangle.SINGLE) {
+			fgeo = (float[]) newGeo;
+		} else {
+			geo = (double[]) newGeo;
+		}
+		frame = newFrame;
+	}
+}
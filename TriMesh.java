@@ -1,283 +1,256 @@
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.util.ArrayList;
-import java.util.Scanner;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.stream.IntStream;
 
 /**
  * 3D Object defined by a set of triangles
  * 
+ * A mesh can be moved with setTransform, for animations. Movable meshes
+ * keep the untransformed vertices resident, so moving them only
+ * transforms the vertices, sets up the triangles in place and refits the
+ * hierarchy.
+ * 
  * @author Jeremy Parker Yang
  *
  */
 public class TriMesh {
 
-	// list of all triangles
-	public ArrayList<Triangle> tris = new ArrayList<Triangle>();
+	// all triangles, packed
+	public TriArray tris;
+
+	// acceleration structure over tris
+	BVH bvh;
+
+	// source of the mesh
+	private final String fileName;
 
-	// limits of bounding box
-	private double xMin = Double.MAX_VALUE;
-	private double yMin = Double.MAX_VALUE;
-	private double zMin = Double.MAX_VALUE;
-	private double xMax = -Double.MAX_VALUE;
-	private double yMax = -Double.MAX_VALUE;
-	private double zMax = -Double.MAX_VALUE;
+	// kept once the mesh is moved with setTransform
+	private double[] source; // xyz of each vertex, untransformed
+	private double[] verts; // source transformed
+	private int numVerts;
+	private int[] faces; // vertex indices of each triangle, in tris order
+	private double[] boxes; // bounding box of each triangle, for refit
 
 	/**
 	 * Default constructor. Construct mesh exactly from .obj file. Object must
-	 * be triangulated and in a right-hand coordinate system.
+	 * be in a right-hand coordinate system.
 	 * 
 	 * @param fileName .obj file to read
+	 * @throws UncheckedIOException if the file cannot be read
 	 */
 	public TriMesh(String fileName) {
-		
-		// store verts to generate tris
-		ArrayList<Vector3> verts = new ArrayList<Vector3>();
-		double x = 0, y = 0, z = 0; // store a single vertex
-		String[] line = null; // store a line from the file
-
-		// read data from file
-		try {
-			// set up file scanner
-			Scanner scnr = new Scanner(new File(fileName));
-
-			// add vertices
-			while (scnr.hasNextLine()) {
-
-				// read entire line
-				line = scnr.nextLine().split(" ");
-
-				// handle vertex
-				if (line[0].equals("v")) {
-					x = Double.valueOf(line[1]);
-					y = Double.valueOf(line[2]);
-					z = Double.valueOf(line[3]);
-					verts.add(new Vector3(x, y, z));
-
-					// adjust bounding box
-					// x component
-					if (x > xMax) {
-						xMax = x;
-					} else if (x < xMin) {
-						xMin = x;
-					}
-					// y component
-					if (y > yMax) {
-						yMax = y;
-					} else if (y < yMin) {
-						yMin = y;
-					}
-					// z component
-					if (z > zMax) {
-						zMax = z;
-					} else if (z < zMin) {
-						zMin = z;
-					}
-				}
-
-				// handle triangle
-				else if (line[0].equals("f")) {
-					// exit loop once triangle section starts
-					break;
-				}
-			}
-
-			// add triangles
-			addTris(verts, scnr, line);
-
-			// close scanner
-			scnr.close();
-			verts = null;
-
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-		}
+		this(fileName, new Vector3(1, 1, 1), new Vector3(0, 0, 0),
+				new Vector3(0, 0, 0));
 	}
 
 	/**
 	 * Construct mesh considering rotation, translation, and scaling. Object
-	 * must be triangulated and in a right-hand coordinate system.
+	 * must be in a right-hand coordinate system.
 	 * 
 	 * @param fileName obj file to read
 	 * @param rot      xyz rotation angles
 	 * @param scale    xyz scale constants
 	 * @param trans    xyz translation constants
+	 * @throws UncheckedIOException if the file cannot be read
 	 */
 	public TriMesh(String fileName, Vector3 scale, Vector3 rot, Vector3 trans) {
-		// store verts to generate tris
-		ArrayList<Vector3> verts = new ArrayList<Vector3>();
-		String[] line = null; // store a line from the file
+		this(fileName, scale, rot, trans, false);
+	}
 
-		// data for transformations
-		Vector3 transformed = new Vector3(0, 0, 0);
-		double[][] rotMat = Vector3.getRotMat(rot);
+	/**
+	 * Construct mesh considering rotation, translation, and scaling, ready
+	 * to be moved with setTransform if movable. A movable mesh keeps its
+	 * untransformed vertices from the start and is not cached, so moving
+	 * it never reads the file again.
+	 * 
+	 * @param fileName obj file to read
+	 * @param rot      xyz rotation angles
+	 * @param scale    xyz scale constants
+	 * @param trans    xyz translation constants
+	 * @param movable  true to keep the untransformed vertices
+	 * @throws UncheckedIOException if the file cannot be read
+	 */
+	public TriMesh(String fileName, Vector3 scale, Vector3 rot, Vector3 trans,
+			boolean movable) {
+		this.fileName = fileName;
+		if (movable) {
+			keep(scale, rot, trans);
+			return;
+		}
+
+		// use preprocessed mesh if source and transform are unchanged
+		byte[] key = null;
+		if (MeshCache.ENABLED) {
+			try {
+				key = MeshCache.key(fileName, scale, rot, trans);
+				if (MeshCache.load(this, key)) {
+					return;
+				}
+			} catch (IOException e) {
+				// source unreadable, reported when it is read below
+			}
+		}
 
 		// read data from file
 		try {
-			// set up file scanner
-			Scanner scnr = new Scanner(new File(fileName));
+			ObjReader obj = new ObjReader(fileName);
 
-			// add vertices
-			while (scnr.hasNextLine()) {
+			// apply transforms: scale, rotate, translate
+			transform(obj.verts, obj.verts, obj.numVerts, scale, rot, trans);
 
-				// read entire line
-				line = scnr.nextLine().split(" ");
-
-				// handle vertex
-				if (line[0].equals("v")) {
-
-					// get original vertex
-					transformed = new Vector3(Double.valueOf(line[1]),
-							Double.valueOf(line[2]), Double.valueOf(line[3]));
-
-					// apply transforms: scale, rotate, translate
-					transformed = transformed.mul(scale);
-					transformed = transformed.mul(rotMat);
-					transformed = transformed.add(trans);
+			// add faces
+			tris = new TriArray(obj.verts, obj.faces, obj.numFaces);
 
-					// add transformed point
-					verts.add(transformed);
+		} catch (IOException e) {
+			throw new UncheckedIOException("cannot read mesh " + fileName, e);
+		}
 
-					// adjust bounding box
-					// x component
-					if (transformed.getX() > xMax) {
-						xMax = transformed.getX();
-					} else if (transformed.getX() < xMin) {
-						xMin = transformed.getX();
-					}
-					// y component
-					if (transformed.getY() > yMax) {
-						yMax = transformed.getY();
-					} else if (transformed.getY() < yMin) {
-						yMin = transformed.getY();
-					}
-					// z component
-					if (transformed.getZ() > zMax) {
-						zMax = transformed.getZ();
-					} else if (transformed.getZ() < zMin) {
-						zMin = transformed.getZ();
-					}
-				}
+		// build acceleration structure
+		bvh = BVH.build(tris);
 
-				// handle triangle
-				else if (line[0].equals("f")) {
-					// exit loop once triangle section starts
-					break;
-				}
+		// save for next time
+		if (key != null) {
+			try {
+				MeshCache.save(this, key);
+			} catch (IOException e) {
+				e.printStackTrace();
 			}
+		}
+	}
 
-			// add faces
-			addTris(verts, scnr, line);
+	/**
+	 * Move the mesh to a new transform, in place. Unless the mesh was made
+	 * movable, the first call reads the .obj file again and keeps its
+	 * vertices. Later calls only transform them, set up the triangles again
+	 * and refit the hierarchy, which is rebuilt once refitting has made it
+	 * BVH.REBUILD times worse than when it was built. The scene holding the
+	 * mesh must be updated afterwards.
+	 * 
+	 * @param scale xyz scale constants
+	 * @param rot   xyz rotation angles
+	 * @param trans xyz translation constants
+	 * @return true if the hierarchy was rebuilt
+	 * @throws UncheckedIOException if the .obj file cannot be read
+	 */
+	public boolean setTransform(Vector3 scale, Vector3 rot, Vector3 trans) {
+		// first call: keep the source and build over it
+		if (source == null) {
+			keep(scale, rot, trans);
+			return true;
+		}
 
-			// close the scanner
-			scnr.close();
-			verts = null;
+		// move triangles and refit
+		transform(source, verts, numVerts, scale, rot, trans);
+		tris.set(verts, faces);
+		for (int i = 0; i < tris.size(); i++) {
+			tris.getBounds(i, boxes, 6 * i);
+		}
+		if (bvh.refit(boxes) > BVH.REBUILD) {
+			rebuild();
+			return true;
+		}
+		return false;
+	}
 
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
+	/**
+	 * Helper method for constructor and setTransform. Read the .obj file,
+	 * keep its vertices and build the mesh over them at a transform.
+	 */
+	private void keep(Vector3 scale, Vector3 rot, Vector3 trans) {
+		try {
+			ObjReader obj = new ObjReader(fileName);
+			source = obj.verts;
+			numVerts = obj.numVerts;
+			faces = Arrays.copyOf(obj.faces, 3 * obj.numFaces);
+		} catch (IOException e) {
+			throw new UncheckedIOException("cannot read mesh " + fileName, e);
 		}
+		verts = new double[3 * numVerts];
+		transform(source, verts, numVerts, scale, rot, trans);
+		tris = new TriArray(verts, faces, faces.length / 3);
+		boxes = new double[6 * tris.size()];
+		rebuild();
+	}
 
+	/**
+	 * Helper method for keep and setTransform. Build the hierarchy again,
+	 * keeping faces in the order of the triangles.
+	 */
+	private void rebuild() {
+		int[] order = new int[tris.size()];
+		bvh = BVH.build(tris, order);
+		int[] sorted = new int[faces.length];
+		for (int i = 0; i < order.length; i++) {
+			System.arraycopy(faces, 3 * order[i], sorted, 3 * i, 3);
+		}
+		faces = sorted;
 	}
 
 	/**
-	 * Ray-mesh intersection. (uses bounding box)
+	 * Scale, rotate and translate vertices, in parallel
 	 * 
-	 * @param o origin of the ray
-	 * @param d direction of ray
-	 * @return true if there is a collision
+	 * @param from     xyz of each vertex
+	 * @param to       transformed xyz written here, may be from
+	 * @param numVerts number of vertices
 	 */
-	public boolean meshInt(Vector3 o, Vector3 d, Vector3 hit, Vector3 tuv,
-			Vector3 n, Vector3 t1, Vector3 t2) {
-
-		// check intersection with bounding box
-		double txmin = (xMin - o.getX()) / d.getX();
-		double txmax = (xMax - o.getX()) / d.getX();
-		double tymin = (yMin - o.getY()) / d.getY();
-		double tymax = (yMax - o.getY()) / d.getY();
-		double tzmin = (zMin - o.getZ()) / d.getZ();
-		double tzmax = (zMax - o.getZ()) / d.getZ();
-
-		double tmin = Math.max(
-				Math.max(Math.min(txmin, txmax), Math.min(tymin, tymax)),
-				Math.min(tzmin, tzmax));
-		double tmax = Math.min(
-				Math.min(Math.max(txmin, txmax), Math.max(tymin, tymax)),
-				Math.max(tzmin, tzmax));
+	private static void transform(double[] from, double[] to, int numVerts,
+			Vector3 scale, Vector3 rot, Vector3 trans) {
+		double[][] rotMat = Vector3.getRotMat(rot);
+		IntStream.range(0, numVerts).parallel().forEach(i -> {
+			double x = from[3 * i] * scale.getX();
+			double y = from[3 * i + 1] * scale.getY();
+			double z = from[3 * i + 2] * scale.getZ();
+			to[3 * i] = rotMat[0][0] * x + rotMat[0][1] * y + rotMat[0][2] * z
+					+ trans.getX();
+			to[3 * i + 1] = rotMat[1][0] * x + rotMat[1][1] * y
+					+ rotMat[1][2] * z + trans.getY();
+			to[3 * i + 2] = rotMat[2][0] * x + rotMat[2][1] * y
+					+ rotMat[2][2] * z + trans.getZ();
+		});
+	}
 
-		if ((tmax < 0) || (tmin > tmax)) {
-			return false;
-		}
+	/**
+	 * Ray-mesh intersection. (uses bounding volume hierarchy) Collision info
+	 * of the ray is only written when there is a collision closer than tMax.
+	 * 
+	 * @param ray  ray to trace
+	 * @param tMax ignore collisions farther than this
+	 * @return true if there is a collision
+	 */
+	public boolean meshInt(Ray ray, double tMax) {
 
-		// store intersection data
-		double dist = Double.MAX_VALUE;
-		Vector3 hitRet = new Vector3(0, 0, 0);
-		Vector3 tuvRet = new Vector3(0, 0, 0);
-		int ihit = 0; // triangle that intersects
-		
-		// check intersection with triangles
-		for (int i = 0; i < tris.size(); i++) {
-			// there is an intersection
-			if (tris.get(i).MTint(o, d, hitRet, tuvRet)) {
-				// find closest triangle
-				if (tuv.getX() < dist) {
-					// save collsion specific info
-					dist = tuvRet.getX();
-					ihit = i;
-				}
-			}
-		}
+		// find closest triangle
+		int ihit = bvh.intersect(tris, ray, tMax);
 
 		// return triangle and collision info
-		if (dist == Double.MAX_VALUE) {
+		if (ihit < 0) {
 			return false;
 		} else {
-			n.set(tris.get(ihit).n);
-			t1.set(tris.get(ihit).t1);
-			t2.set(tris.get(ihit).t2);
-			hit.set(hitRet);
-			tuv.set(tuvRet);
+			tris.getFrame(ihit, ray.n, ray.t1, ray.t2);
 			return true;
 		}
 	}
 
 	/**
-	 * Helper method for constructor. Adds triangles to mesh.
+	 * Ray-mesh occlusion. Returns as soon as any triangle closer than tMax
+	 * is found. The collision info of the ray is not written.
 	 * 
-	 * @param verts add vertices here
-	 * @param scnr  scan through file
-	 * @param line  previous line read
+	 * @param ray  ray to trace
+	 * @param tMax ignore collisions farther than this
+	 * @return true if the ray is blocked before tMax
 	 */
-	private void addTris(ArrayList<Vector3> verts, Scanner scnr,
-			String[] line) {
-		// x y z parts of data
-		String[] pX = new String[1];
-		String[] pY = new String[1];
-		String[] pZ = new String[1];
-
-		// add first triangle
-		pX = line[1].split("/");
-		pY = line[2].split("/");
-		pZ = line[3].split("/");
-		tris.add(new Triangle(verts.get(Integer.valueOf(pX[0]) - 1),
-				verts.get(Integer.valueOf(pY[0]) - 1),
-				verts.get(Integer.valueOf(pZ[0]) - 1)));
-
-		// for other triangles
-		while (scnr.hasNextLine()) {
-			// check triangle
-			if (line[0].equals("f")) {
-
-				line = scnr.nextLine().split(" ");
-				
-				// get vertex info only
-				pX = line[1].split("/");
-				pY = line[2].split("/");
-				pZ = line[3].split("/");
+	public boolean occluded(Ray ray, double tMax) {
+		return bvh.occluded(tris, ray, tMax);
+	}
 
-				// add triangle from vertices
-				tris.add(new Triangle(verts.get(Integer.valueOf(pX[0]) - 1),
-						verts.get(Integer.valueOf(pY[0]) - 1),
-						verts.get(Integer.valueOf(pZ[0]) - 1)));
-			}
-		}
+	/**
+	 * Get bounding box of the mesh
+	 * 
+	 * @param box xMin, yMin, zMin, xMax, yMax, zMax written here
+	 * @param off index of xMin in box
+	 */
+	public void getBounds(double[] box, int off) {
+		bvh.getBounds(box, off);
 	}
 }
\ No newline at end of file
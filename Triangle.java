@@ -1,82 +1,355 @@
 /**
  * Triangle defined as one point and two vector edges. Assumes a right-handed
- * coordinate system.
- * 
+ * coordinate system. Triangles are not objects; they are packed into the flat
+ * arrays of a TriArray and read from there by index.
+ *
  * @author Jeremy Parker Yang
  *
  */
 public class Triangle {
 
-	// world coords
-	private Vector3 a; // point a
-	private Vector3 e1; // edge 1
-	private Vector3 e2; // edge 1
+	// store geometry in float and intersect in float, see TriArray. Set
+	// here or run with -Dsingle=true
+	final static boolean SINGLE = Boolean.getBoolean("single");
+
+	// world coords, packed per triangle
+	final static int A = 0; // point a
+	final static int E1 = 3; // edge 1
+	final static int E2 = 6; // edge 2
+	final static int N = 9; // normal
+	final static int GEO = 12; // values per triangle in geometry array
 
-	// local coords
-	public Vector3 n; // normal
-	public Vector3 t1; // tangent 1
-	public Vector3 t2; // tangent 2
+	// local coords, packed per triangle
+	final static int T1 = 0; // tangent 1
+	final static int T2 = 3; // tangent 2
+	final static int FRAME = 6; // doubles per triangle in frame array
 
 	/**
-	 * Construct triangle from 3 vertices
-	 * 
-	 * @param a Cartesian coords vertex a
-	 * @param b Cartesian coords vertex b
-	 * @param c Cartesian coords vertex c
+	 * Pack triangle i from 3 vertices
+	 *
+	 * @param geo   point, edges and normal of each triangle
+	 * @param frame tangents of each triangle
+	 * @param i     index of triangle
+	 * @param verts xyz of each vertex
+	 * @param a     index of vertex a
+	 * @param b     index of vertex b
+	 * @param c     index of vertex c
 	 */
-	public Triangle(Vector3 a, Vector3 b, Vector3 c) {
+	static void set(double[] geo, double[] frame, int i, double[] verts,
+			int a, int b, int c) {
+		int g = GEO * i;
+		int f = FRAME * i;
+
 		// defines triangle
-		this.a = a;
-		e1 = b.sub(a);
-		e2 = c.sub(a);
+		for (int k = 0; k < 3; k++) {
+			geo[g + A + k] = verts[3 * a + k];
+			geo[g + E1 + k] = verts[3 * b + k] - verts[3 * a + k];
+			geo[g + E2 + k] = verts[3 * c + k] - verts[3 * a + k];
+		}
 
 		// defines local coord system
-		n = e1.cross(e2).norm();
-		t1 = e1.norm();
-		t2 = n.cross(t1).norm();
+		cross(geo, g + E1, geo, g + E2, geo, g + N);
+		norm(geo, g + N);
+		System.arraycopy(geo, g + E1, frame, f + T1, 3);
+		norm(frame, f + T1);
+		cross(geo, g + N, frame, f + T1, frame, f + T2);
+		norm(frame, f + T2);
+	}
+
+	/**
+	 * Axis aligned bounding box of triangle i
+	 *
+	 * @param geo packed geometry
+	 * @param i   index of triangle
+	 * @param box xMin, yMin, zMin, xMax, yMax, zMax written here
+	 * @param off index of xMin in box
+	 */
+	static void getBounds(double[] geo, int i, double[] box, int off) {
+		int g = GEO * i;
+		for (int k = 0; k < 3; k++) {
+			double a = geo[g + A + k];
+			double b = a + geo[g + E1 + k];
+			double c = a + geo[g + E2 + k];
+			box[off + k] = Math.min(a, Math.min(b, c));
+			box[off + k + 3] = Math.max(a, Math.max(b, c));
+		}
 	}
 
 	/**
-	 * Moller-Trumbore algorithm for ray-triangle intersection
-	 * 
-	 * @param o origin of the ray
-	 * @param d direction of ray
+	 * Axis aligned bounding box of triangle i stored in float. Corners are
+	 * added up in double, so the box is exact for the stored triangle.
+	 */
+	static void getBounds(float[] geo, int i, double[] box, int off) {
+		int g = GEO * i;
+		for (int k = 0; k < 3; k++) {
+			double a = geo[g + A + k];
+			double b = a + geo[g + E1 + k];
+			double c = a + geo[g + E2 + k];
+			box[off + k] = Math.min(a, Math.min(b, c));
+			box[off + k + 3] = Math.max(a, Math.max(b, c));
+		}
+	}
+
+	/**
+	 * Point of triangle i at barycentric coords u, v. Interpolating the
+	 * corners puts the point on the plane of the triangle up to rounding of
+	 * its coords, however far the ray came from.
+	 */
+	static void point(double[] geo, int i, double u, double v, Vector3 p) {
+		int g = GEO * i;
+		p.set(geo[g + A] + u * geo[g + E1] + v * geo[g + E2],
+				geo[g + A + 1] + u * geo[g + E1 + 1] + v * geo[g + E2 + 1],
+				geo[g + A + 2] + u * geo[g + E1 + 2] + v * geo[g + E2 + 2]);
+	}
+
+	/**
+	 * Point of triangle i stored in float, see point
+	 */
+	static void point(float[] geo, int i, double u, double v, Vector3 p) {
+		int g = GEO * i;
+		p.set(geo[g + A] + u * geo[g + E1] + v * geo[g + E2],
+				geo[g + A + 1] + u * geo[g + E1 + 1] + v * geo[g + E2 + 1],
+				geo[g + A + 2] + u * geo[g + E1 + 2] + v * geo[g + E2 + 2]);
+	}
+
+	/**
+	 * Moller-Trumbore algorithm for ray-triangle intersection. hit and tuv
+	 * are only written when there is a hit.
+	 *
+	 * @param geo  packed geometry
+	 * @param i    index of triangle
+	 * @param o    origin of the ray
+	 * @param d    direction of ray
+	 * @param tMax ignore hits farther than this
 	 * @return true if there is a hit
 	 * @return hit point of intersection
 	 * @return tuv Barycentric coords of intersection
 	 */
-	public boolean MTint(Vector3 o, Vector3 d, Vector3 hit, Vector3 tuv) {
+	static boolean MTint(double[] geo, int i, Vector3 o, Vector3 d,
+			double tMax, Vector3 hit, Vector3 tuv) {
+		int g = GEO * i;
+		double dx = d.getX(), dy = d.getY(), dz = d.getZ();
 
 		// back facing triangles do not intersect
-		if (d.dot(n) > 0)
+		if (dx * geo[g + N] + dy * geo[g + N + 1] + dz * geo[g + N + 2] > 0)
 			return false;
 
-		Vector3 t = o.sub(a);
-		Vector3 p = d.cross(e2);
-		Vector3 q = t.cross(e1);
+		double e1x = geo[g + E1], e1y = geo[g + E1 + 1], e1z = geo[g + E1 + 2];
+		double e2x = geo[g + E2], e2y = geo[g + E2 + 1], e2z = geo[g + E2 + 2];
+
+		// t = o - a
+		double tx = o.getX() - geo[g + A];
+		double ty = o.getY() - geo[g + A + 1];
+		double tz = o.getZ() - geo[g + A + 2];
 
-		double k = 1d / p.dot(e1);
-		double u = k * p.dot(t);
+		// p = d x e2
+		double px = dy * e2z - dz * e2y;
+		double py = dz * e2x - dx * e2z;
+		double pz = dx * e2y - dy * e2x;
+
+		double k = 1d / (px * e1x + py * e1y + pz * e1z);
+		double u = k * (px * tx + py * ty + pz * tz);
 
 		// check intersection
 		if (u < 0 || u > 1)
 			return false;
 
-		double v = k * q.dot(d);
+		// q = t x e1
+		double qx = ty * e1z - tz * e1y;
+		double qy = tz * e1x - tx * e1z;
+		double qz = tx * e1y - ty * e1x;
+
+		double v = k * (qx * dx + qy * dy + qz * dz);
 
 		// check intersection
 		if (v < 0 || u + v > 1)
 			return false;
 
+		// distance to point of intersection
+		double t = k * (qx * e2x + qy * e2y + qz * e2z);
+
+		// hits behind the origin and farther hits do not count, spawned
+		// rays start off the surface so they can not hit it again
+		if (t <= 0 || t >= tMax) {
+			return false;
+		}
+
 		// get point of intersection
-		tuv.set(new Vector3(k * q.dot(e2), u, v));
-		hit.set(o.add(d.mul(tuv.getX())));
+		tuv.set(t, u, v);
+		point(geo, i, u, v, hit);
+		return true;
+	}
+
+	/**
+	 * Moller-Trumbore test of triangle i stored in float, same steps as
+	 * MTint in float arithmetic. Only o - a is taken in double, so rays
+	 * from far away lose no more precision than rays from nearby.
+	 */
+	static boolean MTint(float[] geo, int i, Vector3 o, Vector3 d,
+			double tMax, Vector3 hit, Vector3 tuv) {
+		int g = GEO * i;
+		float dx = (float) d.getX(), dy = (float) d.getY();
+		float dz = (float) d.getZ();
+
+		// back facing triangles do not intersect
+		if (dx * geo[g + N] + dy * geo[g + N + 1] + dz * geo[g + N + 2] > 0)
+			return false;
+
+		float e1x = geo[g + E1], e1y = geo[g + E1 + 1], e1z = geo[g + E1 + 2];
+		float e2x = geo[g + E2], e2y = geo[g + E2 + 1], e2z = geo[g + E2 + 2];
+
+		// t = o - a
+		float tx = (float) (o.getX() - geo[g + A]);
+		float ty = (float) (o.getY() - geo[g + A + 1]);
+		float tz = (float) (o.getZ() - geo[g + A + 2]);
+
+		// p = d x e2
+		float px = dy * e2z - dz * e2y;
+		float py = dz * e2x - dx * e2z;
+		float pz = dx * e2y - dy * e2x;
+
+		float k = 1f / (px * e1x + py * e1y + pz * e1z);
+		float u = k * (px * tx + py * ty + pz * tz);
+		if (u < 0 || u > 1)
+			return false;
+
+		// q = t x e1
+		float qx = ty * e1z - tz * e1y;
+		float qy = tz * e1x - tx * e1z;
+		float qz = tx * e1y - ty * e1x;
+
+		float v = k * (qx * dx + qy * dy + qz * dz);
+		if (v < 0 || u + v > 1)
+			return false;
 
-		// prevent self intersections
-		if (tuv.getX() < 0.000001) {
+		float t = k * (qx * e2x + qy * e2y + qz * e2z);
+		if (t <= 0 || t >= tMax) {
 			return false;
 		}
 
+		tuv.set(t, u, v);
+		point(geo, i, u, v, hit);
 		return true;
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Moller-Trumbore test for any hit, used by occlusion queries. Same
+	 * tests as MTint, but nothing is written.
+	 *
+	 * @param geo  packed geometry
+	 * @param i    index of triangle
+	 * @param o    origin of the ray
+	 * @param d    direction of ray
+	 * @param tMax ignore hits farther than this
+	 * @return true if there is a hit
+	 */
+	static boolean MTocc(double[] geo, int i, Vector3 o, Vector3 d,
+			double tMax) {
+		int g = GEO * i;
+		double dx = d.getX(), dy = d.getY(), dz = d.getZ();
+
+		// back facing triangles do not intersect
+		if (dx * geo[g + N] + dy * geo[g + N + 1] + dz * geo[g + N + 2] > 0)
+			return false;
+
+		double e1x = geo[g + E1], e1y = geo[g + E1 + 1], e1z = geo[g + E1 + 2];
+		double e2x = geo[g + E2], e2y = geo[g + E2 + 1], e2z = geo[g + E2 + 2];
+
+		// t = o - a
+		double tx = o.getX() - geo[g + A];
+		double ty = o.getY() - geo[g + A + 1];
+		double tz = o.getZ() - geo[g + A + 2];
+
+		// p = d x e2
+		double px = dy * e2z - dz * e2y;
+		double py = dz * e2x - dx * e2z;
+		double pz = dx * e2y - dy * e2x;
+
+		double k = 1d / (px * e1x + py * e1y + pz * e1z);
+		double u = k * (px * tx + py * ty + pz * tz);
+		if (u < 0 || u > 1)
+			return false;
+
+		// q = t x e1
+		double qx = ty * e1z - tz * e1y;
+		double qy = tz * e1x - tx * e1z;
+		double qz = tx * e1y - ty * e1x;
+
+		double v = k * (qx * dx + qy * dy + qz * dz);
+		if (v < 0 || u + v > 1)
+			return false;
+
+		// ignore hits behind the origin and farther hits
+		double t = k * (qx * e2x + qy * e2y + qz * e2z);
+		return t > 0 && t < tMax;
+	}
+
+	/**
+	 * Moller-Trumbore test for any hit of triangle i stored in float, same
+	 * steps as MTint
+	 */
+	static boolean MTocc(float[] geo, int i, Vector3 o, Vector3 d,
+			double tMax) {
+		int g = GEO * i;
+		float dx = (float) d.getX(), dy = (float) d.getY();
+		float dz = (float) d.getZ();
+
+		// back facing triangles do not intersect
+		if (dx * geo[g + N] + dy * geo[g + N + 1] + dz * geo[g + N + 2] > 0)
+			return false;
+
+		float e1x = geo[g + E1], e1y = geo[g + E1 + 1], e1z = geo[g + E1 + 2];
+		float e2x = geo[g + E2], e2y = geo[g + E2 + 1], e2z = geo[g + E2 + 2];
+
+		// t = o - a
+		float tx = (float) (o.getX() - geo[g + A]);
+		float ty = (float) (o.getY() - geo[g + A + 1]);
+		float tz = (float) (o.getZ() - geo[g + A + 2]);
+
+		// p = d x e2
+		float px = dy * e2z - dz * e2y;
+		float py = dz * e2x - dx * e2z;
+		float pz = dx * e2y - dy * e2x;
+
+		float k = 1f / (px * e1x + py * e1y + pz * e1z);
+		float u = k * (px * tx + py * ty + pz * tz);
+		if (u < 0 || u > 1)
+			return false;
+
+		// q = t x e1
+		float qx = ty * e1z - tz * e1y;
+		float qy = tz * e1x - tx * e1z;
+		float qz = tx * e1y - ty * e1x;
+
+		float v = k * (qx * dx + qy * dy + qz * dz);
+		if (v < 0 || u + v > 1)
+			return false;
+
+		float t = k * (qx * e2x + qy * e2y + qz * e2z);
+		return t > 0 && t < tMax;
+	}
+
+	/**
+	 * Helper method for set. Cross product of packed vectors u and v.
+	 */
+	private static void cross(double[] u, int iu, double[] v, int iv,
+			double[] out, int io) {
+		double x = u[iu + 1] * v[iv + 2] - u[iu + 2] * v[iv + 1];
+		double y = u[iu + 2] * v[iv] - u[iu] * v[iv + 2];
+		double z = u[iu] * v[iv + 1] - u[iu + 1] * v[iv];
+		out[io] = x;
+		out[io + 1] = y;
+		out[io + 2] = z;
+	}
+
+	/**
+	 * Helper method for set. Normalize packed vector in place.
+	 */
+	private static void norm(double[] u, int iu) {
+		double k = 1d / Math.sqrt(
+				u[iu] * u[iu] + u[iu + 1] * u[iu + 1] + u[iu + 2] * u[iu + 2]);
+		u[iu] *= k;
+		u[iu + 1] *= k;
+		u[iu + 2] *= k;
+	}
+}
@@ -27,6 +27,15 @@ public class Vector3 {
 		this.z = a.z;
 	}
 
+	/**
+	 * Set vector from components
+	 */
+	public void set(double x, double y, double z) {
+		this.x = x;
+		this.y = y;
+		this.z = z;
+	}
+
 	/**
 	 * Gets x component
 	 */
@@ -107,6 +116,28 @@ public class Vector3 {
 		return this.mul(1d / Math.sqrt(this.dot(this)));
 	}
 
+	/**
+	 * Left multiplies this vector by a 3x3 transformation matrix in place
+	 */
+	Vector3 mulLocal(double[][] mat) {
+		double x = this.x, y = this.y, z = this.z;
+		this.x = mat[0][0] * x + mat[0][1] * y + mat[0][2] * z;
+		this.y = mat[1][0] * x + mat[1][1] * y + mat[1][2] * z;
+		this.z = mat[2][0] * x + mat[2][1] * y + mat[2][2] * z;
+		return this;
+	}
+
+	/**
+	 * Normalize this vector in place
+	 */
+	Vector3 normLocal() {
+		double k = 1d / Math.sqrt(this.dot(this));
+		this.x *= k;
+		this.y *= k;
+		this.z *= k;
+		return this;
+	}
+
 	/**
 	 * Generates a rotation matrix using Euler ZYX format.
 	 * 
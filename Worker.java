@@ -0,0 +1,136 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Render node for a Coordinator. The scene is loaded once, then the worker
+ * connects to the coordinator, renders the tiles it is sent on all threads
+ * and sends back the film of each tile. When a frame is done or the
+ * coordinator goes away, the worker connects again for the next frame.
+ * Tiles of every frame run on the render pool of Camera, so threads and
+ * their scratch data are kept between frames.
+ *
+ * @author Jeremy Parker Yang
+ *
+ */
+public class Worker {
+
+	final static long RETRY = 1000; // ms between attempts to connect
+
+	/**
+	 * Serve frames until stopped. The scene must be loaded.
+	 *
+	 * @param host host of coordinator
+	 * @param port port of coordinator
+	 * @param once true to stop after one frame or failed attempt
+	 */
+	public static void run(String host, int port, boolean once) {
+		while (true) {
+			try (Socket socket = new Socket(host, port)) {
+				serve(socket);
+			} catch (IOException e) {
+				if (once) {
+					e.printStackTrace();
+				}
+			}
+			if (once) {
+				return;
+			}
+			try {
+				Thread.sleep(RETRY);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Render tiles for one frame
+	 */
+	private static void serve(Socket socket) throws IOException {
+		DataInputStream in = new DataInputStream(
+				new BufferedInputStream(socket.getInputStream()));
+		DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(socket.getOutputStream()));
+		double[][] camRotMat = Vector3.getRotMat(Camera.CAM_ROT);
+		Film film = new Film(Camera.WIDTH, Camera.HEIGHT);
+
+		// introduce worker
+		out.writeInt(Coordinator.MAGIC);
+		out.writeInt(Coordinator.VERSION);
+		out.writeInt(Coordinator.settings());
+		out.writeInt(Camera.THREADS);
+		out.flush();
+
+		// tell the coordinator the worker is alive, even while busy
+		ScheduledExecutorService heart = Executors
+				.newSingleThreadScheduledExecutor(r -> {
+					Thread t = new Thread(r);
+					t.setDaemon(true);
+					return t;
+				});
+		heart.scheduleAtFixedRate(() -> send(out, Coordinator.HEARTBEAT, -1,
+				null), 0, Coordinator.HEARTBEAT_MS, TimeUnit.MILLISECONDS);
+
+		// render tiles as they come
+		ArrayList<ForkJoinTask<?>> tasks = new ArrayList<>();
+		try {
+			while (in.readInt() == Coordinator.TILE) {
+				int t = in.readInt();
+				int i0 = in.readInt();
+				int j0 = in.readInt();
+				tasks.add(Camera.pool.submit(() -> {
+					Telemetry.tile(i0, j0,
+							() -> Camera.tile(film, i0, j0, camRotMat));
+					ByteArrayOutputStream data = new ByteArrayOutputStream();
+					try {
+						film.writeRegion(new DataOutputStream(data), j0, i0,
+								j0 + Camera.TILE_SIZE, i0 + Camera.TILE_SIZE);
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+					send(out, Coordinator.RESULT, t, data.toByteArray());
+				}));
+			}
+		} finally {
+			// tiles not started yet are no longer needed
+			heart.shutdownNow();
+			for (ForkJoinTask<?> task : tasks) {
+				task.cancel(false);
+			}
+		}
+	}
+
+	/**
+	 * Helper method for serve. Send one message, tiles and heartbeats come
+	 * from different threads.
+	 *
+	 * @param tile index of tile, for results
+	 * @param data film of tile, for results
+	 */
+	private static void send(DataOutputStream out, int msg, int tile,
+			byte[] data) {
+		synchronized (out) {
+			try {
+				out.writeInt(msg);
+				if (msg == Coordinator.RESULT) {
+					out.writeInt(tile);
+					out.writeInt(data.length);
+					out.write(data);
+				}
+				out.flush();
+			} catch (IOException e) {
+				// coordinator is gone, serve sees it too
+			}
+		}
+	}
+}
@@ -0,0 +1,176 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * The SAH hierarchy holds every primitive once and finds the same hits as
+ * testing every triangle of the mesh.
+ *
+ * @author Jeremy Parker Yang
+ *
+ */
+public class BVHTest {
+
+	final static int RAYS = 20000; // random rays per test
+
+	@Test
+	public void leavesHoldEveryBoxOnce() {
+		Random random = new Random(1);
+		int size = 1000;
+		double[] boxes = new double[6 * size];
+		double[] all = { Double.MAX_VALUE, Double.MAX_VALUE,
+				Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE,
+				-Double.MAX_VALUE };
+		for (int i = 0; i < size; i++) {
+			for (int k = 0; k < 3; k++) {
+				double min = 10 * random.nextDouble();
+				double max = min + random.nextDouble();
+				boxes[6 * i + k] = min;
+				boxes[6 * i + k + 3] = max;
+				all[k] = Math.min(all[k], min);
+				all[k + 3] = Math.max(all[k + 3], max);
+			}
+		}
+		int[] order = new int[size];
+		BVH bvh = new BVH(boxes, order);
+
+		// order is a permutation
+		boolean[] seen = new boolean[size];
+		for (int i = 0; i < size; i++) {
+			assertTrue(!seen[order[i]]);
+			seen[order[i]] = true;
+		}
+
+		// leaves cover every position once
+		int[] covered = new int[size];
+		cover(bvh, 0, covered);
+		for (int i = 0; i < size; i++) {
+			assertEquals(1, covered[i]);
+		}
+
+		// root encloses exactly the boxes
+		double[] root = new double[6];
+		bvh.getBounds(root, 0);
+		for (int k = 0; k < 6; k++) {
+			assertEquals(all[k], root[k], 0);
+		}
+	}
+
+	@Test
+	public void closestHitMatchesBruteForce() throws IOException {
+		TriMesh mesh = new TriMesh("face.obj");
+		ObjReader obj = new ObjReader("face.obj");
+		Random random = new Random(2);
+		Ray ray = new Ray();
+		int hits = 0;
+		for (int n = 0; n < RAYS; n++) {
+			randomRay(random, ray);
+			double t = bruteForce(obj, ray);
+			boolean hit = mesh.meshInt(ray, Double.MAX_VALUE);
+			assertEquals(t < Double.MAX_VALUE, hit);
+			if (hit) {
+				assertEquals(t, ray.tuv.getX(), 1e-12 * t);
+				hits++;
+			}
+		}
+		assertTrue(hits > RAYS / 10);
+	}
+
+	@Test
+	public void occlusionMatchesBruteForce() throws IOException {
+		TriMesh mesh = new TriMesh("face.obj");
+		ObjReader obj = new ObjReader("face.obj");
+		Random random = new Random(3);
+		Ray ray = new Ray();
+		for (int n = 0; n < RAYS; n++) {
+			randomRay(random, ray);
+			double t = bruteForce(obj, ray);
+			double tMax = 2 + 6 * random.nextDouble();
+			assertEquals(t < tMax, mesh.occluded(ray, tMax));
+		}
+	}
+
+	/**
+	 * Count the leaves that hold each position below a node
+	 */
+	private static void cover(BVH bvh, int node, int[] covered) {
+		if (bvh.count(node) == 0) {
+			cover(bvh, bvh.first(node), covered);
+			cover(bvh, bvh.first(node) + 1, covered);
+			return;
+		}
+		for (int i = 0; i < bvh.count(node); i++) {
+			covered[bvh.first(node) + i]++;
+		}
+	}
+
+	/**
+	 * Ray from a sphere around the mesh towards a point near it
+	 */
+	private static void randomRay(Random random, Ray ray) {
+		double z = 2 * random.nextDouble() - 1;
+		double phi = 2 * Math.PI * random.nextDouble();
+		double r = Math.sqrt(1 - z * z);
+		ray.o.set(6 * r * Math.cos(phi), 6 * r * Math.sin(phi), 6 * z);
+		ray.d.set(4 * random.nextDouble() - 2 - ray.o.getX(),
+				4 * random.nextDouble() - 2 - ray.o.getY(),
+				4 * random.nextDouble() - 2 - ray.o.getZ());
+		ray.d.normLocal();
+	}
+
+	/**
+	 * Distance to the closest front facing triangle, testing every one
+	 *
+	 * @return distance, Double.MAX_VALUE if none is hit
+	 */
+	private static double bruteForce(ObjReader obj, Ray ray) {
+		double ox = ray.o.getX(), oy = ray.o.getY(), oz = ray.o.getZ();
+		double dx = ray.d.getX(), dy = ray.d.getY(), dz = ray.d.getZ();
+		double best = Double.MAX_VALUE;
+		for (int i = 0; i < obj.numFaces; i++) {
+			double[] v = obj.verts;
+			int a = 3 * obj.faces[3 * i];
+			int b = 3 * obj.faces[3 * i + 1];
+			int c = 3 * obj.faces[3 * i + 2];
+			double e1x = v[b] - v[a], e1y = v[b + 1] - v[a + 1];
+			double e1z = v[b + 2] - v[a + 2];
+			double e2x = v[c] - v[a], e2y = v[c + 1] - v[a + 1];
+			double e2z = v[c + 2] - v[a + 2];
+
+			// back facing
+			double nx = e1y * e2z - e1z * e2y;
+			double ny = e1z * e2x - e1x * e2z;
+			double nz = e1x * e2y - e1y * e2x;
+			if (dx * nx + dy * ny + dz * nz > 0) {
+				continue;
+			}
+
+			// Moller-Trumbore
+			double px = dy * e2z - dz * e2y;
+			double py = dz * e2x - dx * e2z;
+			double pz = dx * e2y - dy * e2x;
+			double k = 1d / (px * e1x + py * e1y + pz * e1z);
+			double tx = ox - v[a], ty = oy - v[a + 1], tz = oz - v[a + 2];
+			double u = k * (px * tx + py * ty + pz * tz);
+			if (u < 0 || u > 1) {
+				continue;
+			}
+			double qx = ty * e1z - tz * e1y;
+			double qy = tz * e1x - tx * e1z;
+			double qz = tx * e1y - ty * e1x;
+			double w = k * (qx * dx + qy * dy + qz * dz);
+			if (w < 0 || u + w > 1) {
+				continue;
+			}
+			double t = k * (qx * e2x + qy * e2y + qz * e2z);
+			if (t > 0 && t < best) {
+				best = t;
+			}
+		}
+		return best;
+	}
+}
@@ -0,0 +1,502 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.IntToDoubleFunction;
+import java.util.function.Supplier;
+
+/**
+ * Throughput benchmarks for the hot paths of the renderer. Works like a
+ * small JMH: every benchmark runs in its own forked JVM, first for warmup
+ * iterations and then for measured iterations of fixed length, and the
+ * score is operations per second with a 99.9% confidence interval. Results
+ * can be written as JSON in the same shape as JMH's -rf json output so the
+ * same tools can track them between versions.
+ *
+ * For the ray benchmarks one operation is one ray, so the score is rays per
+ * second. For the render benchmark one operation is one camera path. The
+ * packet benchmark only shows up when the Vector API module is added, see
+ * Camera.PACKETS.
+ *
+ * Usage: java -cp classes Bench [options] [name regex...]
+ *
+ * -wi n     warmup iterations (default 3)
+ * -i n      measured iterations (default 5)
+ * -t ms     length of an iteration (default 1000)
+ * -f n      forks, 0 runs in this JVM (default 1)
+ * -json file write results as JSON
+ * -l        list benchmarks
+ *
+ * @author Jeremy Parker Yang
+ *
+ */
+public class Bench {
+
+	// rays cycled through by the ray benchmarks
+	final static int NUM_RAYS = 4096;
+
+	// options
+	private static int warmup = 3;
+	private static int iterations = 5;
+	private static long iterMillis = 1000;
+	private static int forks = 1;
+
+	// keeps results of operations alive
+	static volatile double sink;
+
+	// benchmarks by name, each makes its operation when first run
+	private final static Map<String, Supplier<IntToDoubleFunction>> BENCHMARKS
+			= new LinkedHashMap<>();
+	static {
+		BENCHMARKS.put("Triangle.MTint", Bench::mtInt);
+		BENCHMARKS.put("TriMesh.meshInt.cube", () -> meshInt("cube.obj"));
+		BENCHMARKS.put("TriMesh.meshInt.face", () -> meshInt("face.obj"));
+		BENCHMARKS.put("Scene.intersect", () -> scene(false));
+		BENCHMARKS.put("Scene.occluded", () -> scene(true));
+		BENCHMARKS.put("Scene.intersect.primary", () -> primary(false));
+		if (Camera.USE_PACKETS) {
+			BENCHMARKS.put("PacketTracer.intersect", () -> primary(true));
+		}
+		BENCHMARKS.put("Material.scatter", Bench::scatter);
+		BENCHMARKS.put("SkyLight.getLight", Bench::getLight);
+		BENCHMARKS.put("ObjReader.face", () -> i -> objReader("face.obj"));
+		BENCHMARKS.put("Camera.render", Bench::render);
+	}
+
+	public static void main(String[] args) throws Exception {
+		// read options
+		String json = null;
+		String child = null;
+		ArrayList<String> patterns = new ArrayList<>();
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+			case "-wi":
+				warmup = Integer.parseInt(args[++i]);
+				break;
+			case "-i":
+				iterations = Integer.parseInt(args[++i]);
+				break;
+			case "-t":
+				iterMillis = Long.parseLong(args[++i]);
+				break;
+			case "-f":
+				forks = Integer.parseInt(args[++i]);
+				break;
+			case "-json":
+				json = args[++i];
+				break;
+			case "-child":
+				child = args[++i];
+				break;
+			case "-l":
+				BENCHMARKS.keySet().forEach(System.out::println);
+				return;
+			default:
+				patterns.add(args[i]);
+			}
+		}
+
+		// forked JVM runs one benchmark and prints its scores
+		if (child != null) {
+			for (double score : measure(child)) {
+				System.out.println("score " + score);
+			}
+			return;
+		}
+
+		// run selected benchmarks
+		ArrayList<Result> results = new ArrayList<>();
+		for (String name : BENCHMARKS.keySet()) {
+			if (!patterns.isEmpty() && patterns.stream()
+					.noneMatch(p -> name.matches(".*(" + p + ").*"))) {
+				continue;
+			}
+			Result r = new Result(name);
+			if (forks == 0) {
+				r.forks.add(measure(name));
+			}
+			for (int f = 0; f < forks; f++) {
+				r.forks.add(fork(name));
+			}
+			System.out.println(r);
+			results.add(r);
+		}
+
+		if (json != null) {
+			try (PrintWriter out = new PrintWriter(json, "UTF-8")) {
+				writeJSON(out, results);
+			}
+		}
+	}
+
+	/**
+	 * Run a benchmark in this JVM
+	 *
+	 * @return ops per second of each measured iteration
+	 */
+	static double[] measure(String name) {
+		IntToDoubleFunction op = BENCHMARKS.get(name).get();
+		int[] next = new int[1];
+		for (int k = 0; k < warmup; k++) {
+			iteration(op, next);
+		}
+		double[] scores = new double[iterations];
+		for (int k = 0; k < iterations; k++) {
+			scores[k] = iteration(op, next);
+		}
+		return scores;
+	}
+
+	/**
+	 * Helper method for measure. Run operations for one iteration. They are
+	 * timed in batches that grow until a batch is long enough to time well.
+	 *
+	 * @return ops per second
+	 */
+	private static double iteration(IntToDoubleFunction op, int[] next) {
+		long start = System.nanoTime();
+		long end = start + iterMillis * 1000000;
+		long ops = 0;
+		int batch = 1;
+		double sum = 0;
+		long now = start;
+		while (now < end) {
+			int i = next[0];
+			for (int k = 0; k < batch; k++) {
+				sum += op.applyAsDouble(i++);
+			}
+			next[0] = i;
+			ops += batch;
+			long last = now;
+			now = System.nanoTime();
+			if (now - last < 100000 && batch < 1 << 20) {
+				batch *= 2;
+			}
+		}
+		sink = sum;
+		return ops * 1e9 / (now - start);
+	}
+
+	/**
+	 * Run a benchmark in a new JVM with the same class path and options
+	 *
+	 * @return ops per second of each measured iteration
+	 */
+	private static double[] fork(String name)
+			throws IOException, InterruptedException {
+		String java = System.getProperty("java.home") + "/bin/java";
+		ArrayList<String> cmd = new ArrayList<>();
+		cmd.add(java);
+		cmd.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+		cmd.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"),
+				"Bench", "-child", name, "-wi", "" + warmup,
+				"-i", "" + iterations, "-t", "" + iterMillis));
+		ProcessBuilder pb = new ProcessBuilder(cmd);
+		pb.redirectErrorStream(true);
+		Process p = pb.start();
+		ArrayList<Double> scores = new ArrayList<>();
+		try (BufferedReader in = new BufferedReader(
+				new InputStreamReader(p.getInputStream()))) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.startsWith("score ")) {
+					scores.add(Double.parseDouble(line.substring(6)));
+				} else {
+					System.out.println(line);
+				}
+			}
+		}
+		if (p.waitFor() != 0 || scores.isEmpty()) {
+			throw new IOException(name + ": fork failed");
+		}
+		return scores.stream().mapToDouble(Double::doubleValue).toArray();
+	}
+
+	/**
+	 * Random rays from a sphere around the origin aimed near the origin, so
+	 * about half of them hit a unit sized mesh
+	 */
+	static Ray[] rays(double radius) {
+		Random rand = new Random(1);
+		Ray[] rays = Ray.array(NUM_RAYS);
+		for (Ray ray : rays) {
+			ray.o.set(rand.nextGaussian(), rand.nextGaussian(),
+					rand.nextGaussian());
+			ray.o.normLocal();
+			ray.o.set(ray.o.mul(radius));
+			ray.d.set(rand.nextGaussian() - ray.o.getX(),
+					rand.nextGaussian() - ray.o.getY(),
+					rand.nextGaussian() - ray.o.getZ());
+			ray.d.normLocal();
+		}
+		return rays;
+	}
+
+	/**
+	 * One ray against one triangle of the face
+	 */
+	static IntToDoubleFunction mtInt() {
+		TriArray tris = new TriMesh("face.obj").tris;
+		Ray[] rays = rays(3);
+		// aim every ray at a point inside the triangle or just outside it
+		Random rand = new Random(2);
+		int[] tri = new int[NUM_RAYS];
+		for (int k = 0; k < NUM_RAYS; k++) {
+			tri[k] = rand.nextInt(tris.size());
+			double u = 1.2 * rand.nextDouble(), v = 1.2 * rand.nextDouble();
+			Vector3 p = new Vector3(0, 0, 0);
+			tris.getPoint(tri[k], u, v, p);
+			rays[k].d.set(p.sub(rays[k].o));
+			rays[k].d.normLocal();
+		}
+		return i -> {
+			Ray ray = rays[i & (NUM_RAYS - 1)];
+			int t = tri[i & (NUM_RAYS - 1)];
+			return (Triangle.SINGLE
+					? Triangle.MTint(tris.fgeo, t, ray.o, ray.d,
+							Double.MAX_VALUE, ray.hit, ray.tuv)
+					: Triangle.MTint(tris.geo, t, ray.o, ray.d,
+							Double.MAX_VALUE, ray.hit, ray.tuv)) ? 1 : 0;
+		};
+	}
+
+	/**
+	 * One ray against one mesh
+	 */
+	static IntToDoubleFunction meshInt(String fileName) {
+		TriMesh mesh = new TriMesh(fileName);
+		Ray[] rays = rays(3);
+		return i -> mesh.meshInt(rays[i & (NUM_RAYS - 1)], Double.MAX_VALUE)
+				? 1 : 0;
+	}
+
+	/**
+	 * One ray against a scene of every mesh, closest hit or any hit
+	 */
+	static IntToDoubleFunction scene(boolean anyHit) {
+		Scene scene = scene();
+		Ray[] rays = rays(4);
+		if (anyHit) {
+			return i -> scene.occluded(rays[i & (NUM_RAYS - 1)],
+					Double.MAX_VALUE) ? 1 : 0;
+		}
+		return i -> scene.intersect(rays[i & (NUM_RAYS - 1)]) ? 1 : 0;
+	}
+
+	/**
+	 * One camera ray against the scene of every mesh. Rays are jittered
+	 * samples of pixels near the center of the image, each run of
+	 * PacketTracer.SIZE rays going through the same pixel like the samples
+	 * the renderer queues. With packets, every run is traced at once.
+	 */
+	static IntToDoubleFunction primary(boolean packets) {
+		Scene scene = scene();
+		double[][] camRotMat = Vector3.getRotMat(Camera.CAM_ROT);
+		double step = 2 * Math.tan(Camera.FOV) / Camera.WIDTH;
+		Random rand = new Random(3);
+		Ray[] rays = Ray.array(NUM_RAYS);
+		for (int k = 0; k < NUM_RAYS; k++) {
+			int pixel = k / PacketTracer.SIZE;
+			double x = (Camera.WIDTH / 2 - 32) + (pixel & 63)
+					+ rand.nextDouble() - 0.5;
+			double y = (Camera.HEIGHT / 2 - 32) + (pixel >>> 6)
+					+ rand.nextDouble() - 0.5;
+			rays[k].o.set(Camera.CAM_LOC);
+			rays[k].d.set(step * (x - Camera.WIDTH / 2),
+					step * (Camera.HEIGHT / 2 - y), -1);
+			rays[k].d.mulLocal(camRotMat).normLocal();
+		}
+		if (!packets) {
+			return i -> scene.intersect(rays[i & (NUM_RAYS - 1)]) ? 1 : 0;
+		}
+		PacketTracer packet = new PacketTracer();
+		return i -> {
+			// trace a whole packet on its first ray
+			int k = i & (NUM_RAYS - 1);
+			if (k % PacketTracer.SIZE == 0) {
+				for (int l = 0; l < PacketTracer.SIZE; l++) {
+					packet.rays[l].o.set(rays[k + l].o);
+					packet.rays[l].d.set(rays[k + l].d);
+				}
+				packet.size = PacketTracer.SIZE;
+				packet.intersect(scene);
+			}
+			return packet.hit[k % PacketTracer.SIZE] ? 1 : 0;
+		};
+	}
+
+	/**
+	 * Scene of every mesh, placed side by side on the plane
+	 */
+	static Scene scene() {
+		Scene scene = new Scene();
+		scene.add(new TriMesh("face.obj"));
+		scene.add(new TriMesh("cube.obj", new Vector3(1, 1, 1),
+				new Vector3(0, 0, 0), new Vector3(1.5, 0.5, 0)));
+		scene.add(new TriMesh("icosahedron.obj", new Vector3(0.5, 0.5, 0.5),
+				new Vector3(0, 0, 0), new Vector3(-1.5, 0.5, 0)));
+		scene.add(new TriMesh("plane.obj"));
+		scene.build();
+		return scene;
+	}
+
+	/**
+	 * One scattered direction
+	 */
+	static IntToDoubleFunction scatter() {
+		Ray ray = rays(1)[0];
+		ray.n.set(0, 1, 0);
+		ray.t1.set(1, 0, 0);
+		ray.t2.set(0, 0, -1);
+		Sampler sampler = Sampler.create(Camera.SAMPLER, Camera.SEED);
+		return i -> {
+			sampler.start(0, 0, i);
+			Material.scatter(ray.n, ray.t1, ray.t2, ray.d, sampler);
+			return ray.d.getX();
+		};
+	}
+
+	/**
+	 * Sky light in one direction
+	 */
+	static IntToDoubleFunction getLight() {
+		Ray[] rays = rays(1);
+		return i -> SkyLight.getLight(rays[i & (NUM_RAYS - 1)].d);
+	}
+
+	/**
+	 * Parse a whole .obj file
+	 */
+	static double objReader(String fileName) {
+		try {
+			return new ObjReader(fileName).numFaces;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * One camera path of the default scene, through pixels near the center
+	 * of the image. Samples are seeded by pixel and sample index, so every
+	 * run traces the same paths.
+	 */
+	static IntToDoubleFunction render() {
+		Camera.loadScene();
+		double[][] camRotMat = Vector3.getRotMat(Camera.CAM_ROT);
+		Film film = new Film(Camera.WIDTH, Camera.HEIGHT);
+		Ray[] rays = Ray.array(Camera.MAX_BOUNCES + 1);
+		Sampler sampler = Sampler.create(Camera.SAMPLER, Camera.SEED);
+		double[] color = new double[3];
+		int x0 = Camera.WIDTH / 2 - 32;
+		int y0 = Camera.HEIGHT / 2 - 32;
+		return i -> {
+			int x = x0 + (i & 63);
+			int y = y0 + ((i >>> 6) & 63);
+			Camera.samplePixel(film, x, y, rays, sampler, color, camRotMat);
+			return color[0];
+		};
+	}
+
+	/**
+	 * Write results in the layout of JMH's JSON output
+	 */
+	static void writeJSON(PrintWriter out, ArrayList<Result> results) {
+		out.println("[");
+		for (int k = 0; k < results.size(); k++) {
+			Result r = results.get(k);
+			out.println("    {");
+			out.println("        \"jmhVersion\" : \"none\",");
+			out.println("        \"benchmark\" : \"" + r.name + "\",");
+			out.println("        \"mode\" : \"thrpt\",");
+			out.println("        \"threads\" : 1,");
+			out.println("        \"forks\" : " + forks + ",");
+			out.println("        \"jdkVersion\" : \""
+					+ System.getProperty("java.version") + "\",");
+			out.println("        \"warmupIterations\" : " + warmup + ",");
+			out.println("        \"warmupTime\" : \"" + iterMillis + " ms\",");
+			out.println("        \"measurementIterations\" : " + iterations
+					+ ",");
+			out.println("        \"measurementTime\" : \"" + iterMillis
+					+ " ms\",");
+			out.println("        \"primaryMetric\" : {");
+			out.println("            \"score\" : " + r.score() + ",");
+			out.println("            \"scoreError\" : " + r.error() + ",");
+			out.println("            \"scoreUnit\" : \"ops/s\",");
+			out.println("            \"rawData\" : [");
+			for (int f = 0; f < r.forks.size(); f++) {
+				StringBuilder row = new StringBuilder();
+				for (double s : r.forks.get(f)) {
+					row.append(row.length() == 0 ? "" : ", ").append(s);
+				}
+				out.println("                [" + row + "]"
+						+ (f + 1 < r.forks.size() ? "," : ""));
+			}
+			out.println("            ]");
+			out.println("        }");
+			out.println("    }" + (k + 1 < results.size() ? "," : ""));
+		}
+		out.println("]");
+	}
+
+	/**
+	 * Scores of one benchmark from every fork
+	 */
+	static class Result {
+
+		// two sided t values for 99.9% confidence, by degrees of freedom
+		private final static double[] T = { 636.62, 31.599, 12.924, 8.610,
+				6.869, 5.959, 5.408, 5.041, 4.781, 4.587, 4.437, 4.318, 4.221,
+				4.140, 4.073, 4.015, 3.965, 3.922, 3.883, 3.850, 3.819, 3.792,
+				3.768, 3.745, 3.725, 3.707, 3.690, 3.674, 3.659, 3.646 };
+
+		final String name;
+		final ArrayList<double[]> forks = new ArrayList<>();
+
+		Result(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * Number of measured iterations over all forks
+		 */
+		int count() {
+			return forks.stream().mapToInt(s -> s.length).sum();
+		}
+
+		/**
+		 * Mean ops per second
+		 */
+		double score() {
+			return forks.stream().flatMapToDouble(Arrays::stream)
+					.average().orElse(Double.NaN);
+		}
+
+		/**
+		 * Half width of the 99.9% confidence interval of the score
+		 */
+		double error() {
+			int n = count();
+			if (n < 2) {
+				return Double.NaN;
+			}
+			double mean = score();
+			double ss = forks.stream().flatMapToDouble(Arrays::stream)
+					.map(s -> (s - mean) * (s - mean)).sum();
+			double t = n - 1 <= T.length ? T[n - 2] : 3.291;
+			return t * Math.sqrt(ss / (n - 1) / n);
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.ROOT, "%-24s %16.1f +- %14.1f ops/s",
+					name, score(), error());
+		}
+	}
+}
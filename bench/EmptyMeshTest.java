@@ -0,0 +1,76 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Meshes and scenes without triangles are never hit. Their hierarchy is a
+ * single leaf without primitives, which traversals must not walk into.
+ *
+ * @author Jeremy Parker Yang
+ *
+ */
+public class EmptyMeshTest {
+
+	@TempDir
+	Path dir;
+
+	@Test
+	public void emptyMeshIsNeverHit() throws IOException {
+		TriMesh mesh = emptyMesh();
+		assertEquals(0, mesh.tris.size());
+		assertFalse(mesh.meshInt(ray(), Double.MAX_VALUE));
+		assertFalse(mesh.occluded(ray(), Double.MAX_VALUE));
+	}
+
+	@Test
+	public void sceneOfEmptyMeshIsNeverHit() throws IOException {
+		Scene scene = new Scene();
+		scene.add(emptyMesh());
+		scene.build();
+		assertFalse(scene.intersect(ray()));
+		assertFalse(scene.occluded(ray(), Double.MAX_VALUE));
+	}
+
+	@Test
+	public void sceneWithoutMeshesIsNeverHit() {
+		Scene scene = new Scene();
+		scene.build();
+		assertFalse(scene.intersect(ray()));
+		assertFalse(scene.occluded(ray(), Double.MAX_VALUE));
+	}
+
+	@Test
+	public void emptyMeshDoesNotHideOthers() throws IOException {
+		Scene scene = new Scene();
+		scene.add(emptyMesh());
+		scene.add(new TriMesh("cube.obj"));
+		scene.build();
+		assertTrue(scene.intersect(ray()));
+		assertTrue(scene.occluded(ray(), Double.MAX_VALUE));
+	}
+
+	/**
+	 * Mesh read from an .obj file without faces
+	 */
+	private TriMesh emptyMesh() throws IOException {
+		Path obj = Files.createFile(dir.resolve("empty.obj"));
+		return new TriMesh(obj.toString());
+	}
+
+	/**
+	 * Ray from outside the unit cube through its center
+	 */
+	private static Ray ray() {
+		Ray ray = new Ray();
+		ray.o.set(0.1, 0.2, 5);
+		ray.d.set(0, 0, -1);
+		return ray;
+	}
+}
@@ -0,0 +1,108 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Regions copied between films with writeRegion and readRegion carry the
+ * same samples, clipped to the image, and leave the rest of the film alone.
+ *
+ * @author Jeremy Parker Yang
+ *
+ */
+public class FilmTest {
+
+	final static int WIDTH = 20;
+	final static int HEIGHT = 12;
+
+	@Test
+	public void regionCarriesSamples() throws IOException {
+		Film film = randomFilm(1);
+		Film copy = randomFilm(2);
+		Film before = randomFilm(2);
+		copy(film, copy, 4, 3, 11, 9);
+		check(film, copy, before, 4, 3, 11, 9);
+	}
+
+	@Test
+	public void regionIsClipped() throws IOException {
+		// tile hanging over the bottom right corner
+		Film film = randomFilm(3);
+		Film copy = randomFilm(4);
+		Film before = randomFilm(4);
+		int written = copy(film, copy, 16, 8, 16 + 8, 8 + 8);
+		assertEquals((WIDTH - 16) * (HEIGHT - 8) * (4 + 4 * 8), written);
+		check(film, copy, before, 16, 8, WIDTH, HEIGHT);
+	}
+
+	@Test
+	public void emptyPixelsStayEmpty() throws IOException {
+		Film film = new Film(WIDTH, HEIGHT);
+		Film copy = randomFilm(5);
+		copy(film, copy, 0, 0, WIDTH, HEIGHT);
+		for (int y = 0; y < HEIGHT; y++) {
+			for (int x = 0; x < WIDTH; x++) {
+				assertEquals(0, copy.getCount(x, y));
+				assertEquals(0, copy.get(x, y, 0), 0);
+			}
+		}
+	}
+
+	/**
+	 * Copy a region from one film to another through a stream
+	 *
+	 * @return bytes written
+	 */
+	private static int copy(Film from, Film to, int x0, int y0, int x1, int y1)
+			throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		from.writeRegion(new DataOutputStream(bytes), x0, y0, x1, y1);
+		DataInputStream in = new DataInputStream(
+				new ByteArrayInputStream(bytes.toByteArray()));
+		to.readRegion(in, x0, y0, x1, y1);
+		assertEquals(0, in.available());
+		return bytes.size();
+	}
+
+	/**
+	 * Pixels inside the region match from, pixels outside match before
+	 */
+	private static void check(Film from, Film to, Film before, int x0,
+			int y0, int x1, int y1) {
+		for (int y = 0; y < HEIGHT; y++) {
+			for (int x = 0; x < WIDTH; x++) {
+				boolean inside = x >= x0 && x < x1 && y >= y0 && y < y1;
+				Film expected = inside ? from : before;
+				assertEquals(expected.getCount(x, y), to.getCount(x, y));
+				assertEquals(expected.getError(x, y), to.getError(x, y), 0);
+				for (int c = 0; c < 3; c++) {
+					assertEquals(expected.get(x, y, c), to.get(x, y, c), 0);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Film with a few random samples in each pixel, the same for a seed
+	 */
+	private static Film randomFilm(long seed) {
+		Random random = new Random(seed);
+		Film film = new Film(WIDTH, HEIGHT);
+		for (int y = 0; y < HEIGHT; y++) {
+			for (int x = 0; x < WIDTH; x++) {
+				int n = 1 + random.nextInt(4);
+				for (int i = 0; i < n; i++) {
+					film.add(x, y, random.nextDouble(), random.nextDouble(),
+							random.nextDouble());
+				}
+			}
+		}
+		return film;
+	}
+}
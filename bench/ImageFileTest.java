@@ -0,0 +1,194 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Images written by ImageFile read back the same, and PFM and Radiance
+ * files read with the right orientation and values.
+ *
+ * @author Jeremy Parker Yang
+ *
+ */
+public class ImageFileTest {
+
+	@TempDir
+	Path dir;
+
+	@Test
+	public void pfmRoundTrip() throws IOException {
+		Film film = new Film(5, 3);
+		for (int y = 0; y < 3; y++) {
+			for (int x = 0; x < 5; x++) {
+				film.add(x, y, x + 0.25, y * 10, -x * y - 0.5);
+			}
+		}
+		String file = dir.resolve("film.pfm").toString();
+		ImageFile.writePFM(film, file);
+
+		Film read = ImageFile.read(file);
+		assertEquals(5, read.getWidth());
+		assertEquals(3, read.getHeight());
+		for (int y = 0; y < 3; y++) {
+			for (int x = 0; x < 5; x++) {
+				for (int c = 0; c < 3; c++) {
+					assertEquals((float) film.get(x, y, c), read.get(x, y, c),
+							0);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void readsGreyBigEndianPfm() throws IOException {
+		// rows bottom to top, positive scale for big endian
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		bytes.write("Pf\n2 2\n1.0\n".getBytes(StandardCharsets.US_ASCII));
+		ByteBuffer data = ByteBuffer.allocate(16).order(ByteOrder.BIG_ENDIAN);
+		data.putFloat(1).putFloat(2).putFloat(3).putFloat(4);
+		bytes.write(data.array());
+		Path file = dir.resolve("grey.pfm");
+		Files.write(file, bytes.toByteArray());
+
+		Film film = ImageFile.read(file.toString());
+		double[] grey = { 3, 4, 1, 2 };
+		for (int i = 0; i < 4; i++) {
+			for (int c = 0; c < 3; c++) {
+				assertEquals(grey[i], film.get(i % 2, i / 2, c), 0);
+			}
+		}
+	}
+
+	@Test
+	public void readsFlatHdr() throws IOException {
+		ByteArrayOutputStream bytes = header(2, 3);
+		int[][] rgbe = { { 128, 64, 32, 129 }, { 0, 0, 0, 0 },
+				{ 128, 128, 128, 130 }, { 255, 0, 128, 128 },
+				{ 1, 2, 3, 136 }, { 128, 0, 0, 137 } };
+		for (int[] p : rgbe) {
+			for (int b : p) {
+				bytes.write(b);
+			}
+		}
+		Path file = dir.resolve("flat.hdr");
+		Files.write(file, bytes.toByteArray());
+
+		Film film = ImageFile.read(file.toString());
+		assertEquals(3, film.getWidth());
+		assertEquals(2, film.getHeight());
+		double[][] rgb = { { 1, .5, .25 }, { 0, 0, 0 }, { 2, 2, 2 },
+				{ 255d / 256, 0, .5 }, { 1, 2, 3 }, { 256, 0, 0 } };
+		for (int i = 0; i < rgb.length; i++) {
+			for (int c = 0; c < 3; c++) {
+				assertEquals(rgb[i][c], film.get(i % 3, i / 3, c), 0);
+			}
+		}
+	}
+
+	@Test
+	public void runLengthHdrMatchesFlat() throws IOException {
+		int width = 10;
+		byte[][] rgbe = new byte[4][width];
+		for (int x = 0; x < width; x++) {
+			rgbe[0][x] = (byte) (x < 6 ? 200 : 10 * x);
+			rgbe[1][x] = (byte) (20 * x);
+			rgbe[2][x] = (byte) 77;
+			rgbe[3][x] = (byte) (x < 3 ? 128 : 131);
+		}
+
+		// flat file
+		ByteArrayOutputStream flat = header(1, width);
+		for (int x = 0; x < width; x++) {
+			for (int c = 0; c < 4; c++) {
+				flat.write(rgbe[c][x]);
+			}
+		}
+
+		// one run and literals on red, literals on green, one run on blue,
+		// two runs on the exponent
+		ByteArrayOutputStream rle = header(1, width);
+		rle.write(new byte[] { 2, 2, 0, (byte) width });
+		rle.write(128 + 6);
+		rle.write(200);
+		rle.write(4);
+		rle.write(rgbe[0], 6, 4);
+		rle.write(width);
+		rle.write(rgbe[1], 0, width);
+		rle.write(128 + width);
+		rle.write(77);
+		rle.write(128 + 3);
+		rle.write(128);
+		rle.write(128 + 7);
+		rle.write(131);
+
+		Path flatFile = dir.resolve("flat.hdr");
+		Files.write(flatFile, flat.toByteArray());
+		Path rleFile = dir.resolve("rle.hdr");
+		Files.write(rleFile, rle.toByteArray());
+		Film expected = ImageFile.read(flatFile.toString());
+		Film film = ImageFile.read(rleFile.toString());
+		for (int x = 0; x < width; x++) {
+			for (int c = 0; c < 3; c++) {
+				assertEquals(expected.get(x, 0, c), film.get(x, 0, c), 0);
+			}
+		}
+	}
+
+	@Test
+	public void pngIsClamped() throws IOException {
+		Film film = new Film(3, 1);
+		film.add(0, 0, -1, 0.5, 2);
+		film.add(1, 0, 1, 0, 0);
+		film.add(2, 0, 0.2, 0.4, 0.6);
+		Path file = dir.resolve("film.png");
+		ImageFile.writePNG(film, file.toString());
+
+		BufferedImage image = ImageIO.read(file.toFile());
+		assertEquals(3, image.getWidth());
+		assertEquals(1, image.getHeight());
+		assertEquals(0x007fff, image.getRGB(0, 0) & 0xffffff);
+		assertEquals(0xff0000, image.getRGB(1, 0) & 0xffffff);
+		assertEquals(51 << 16 | 102 << 8 | 153, image.getRGB(2, 0) & 0xffffff);
+	}
+
+	@Test
+	public void badHeaderIsRejected() throws IOException {
+		Path pfm = dir.resolve("bad.pfm");
+		Files.write(pfm, "P6\n2 2\n255\n".getBytes(StandardCharsets.US_ASCII));
+		assertThrows(IOException.class, () -> ImageFile.read(pfm.toString()));
+
+		Path hdr = dir.resolve("bad.hdr");
+		Files.write(hdr, "#?RADIANCE\nFORMAT=32-bit_rle_xyze\n\n-Y 1 +X 1\n"
+				.getBytes(StandardCharsets.US_ASCII));
+		assertThrows(IOException.class, () -> ImageFile.read(hdr.toString()));
+
+		Path layout = dir.resolve("layout.hdr");
+		Files.write(layout, "#?RADIANCE\n\n+Y 1 +X 1\n"
+				.getBytes(StandardCharsets.US_ASCII));
+		assertThrows(IOException.class,
+				() -> ImageFile.read(layout.toString()));
+	}
+
+	/**
+	 * Radiance header of an image height by width
+	 */
+	private static ByteArrayOutputStream header(int height, int width) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		String header = "#?RADIANCE\nFORMAT=32-bit_rle_rgbe\n\n-Y " + height
+				+ " +X " + width + "\n";
+		bytes.writeBytes(header.getBytes(StandardCharsets.US_ASCII));
+		return bytes;
+	}
+}
@@ -0,0 +1,127 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Vertices and faces come out of the parallel reader as written, malformed
+ * files are rejected, and files of several chunks are joined back in order.
+ *
+ * @author Jeremy Parker Yang
+ *
+ */
+public class ObjReaderTest {
+
+	@TempDir
+	Path dir;
+
+	@Test
+	public void readsVerticesAndFaces() throws IOException {
+		ObjReader obj = read("# comment\r\n"
+				+ "v 0 0 0\r\n"
+				+ "v 1 0 0\r\n"
+				+ "vt 0.5 0.5\r\n"
+				+ "vn 0 0 1\r\n"
+				+ "\r\n"
+				+ "v 1 1 0\r\n"
+				+ "v 0 1 0 # corner\r\n"
+				+ "f 1/1/1 2/1/1 3/1/1 4/1/1\r\n"
+				+ "f -4 -3 -2\r\n"
+				+ "f\t1//1  3//1\t4//1\r\n");
+		assertEquals(4, obj.numVerts);
+		assertArrayEquals(new double[] { 0, 0, 0, 1, 0, 0, 1, 1, 0, 0, 1, 0 },
+				Arrays.copyOf(obj.verts, 12), 0);
+
+		// the quad is split into a fan around its first vertex
+		assertEquals(4, obj.numFaces);
+		assertArrayEquals(new int[] { 0, 1, 2, 0, 2, 3, 0, 1, 2, 0, 2, 3 },
+				Arrays.copyOf(obj.faces, 12));
+	}
+
+	@Test
+	public void readsNumbersExactly() throws IOException {
+		String[] numbers = { "1.5", "-0.25", "+3", "1e3", "-2.5E-2", ".5",
+				"7.", "0.1", "123456789.123456789", "1.7976931348623157e308",
+				"4.9e-324", "0.000000000000000000000123" };
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < numbers.length; i += 3) {
+			text.append("v ").append(numbers[i]).append(' ')
+					.append(numbers[i + 1]).append(' ')
+					.append(numbers[i + 2]).append('\n');
+		}
+		ObjReader obj = read(text.toString());
+		for (int i = 0; i < numbers.length; i++) {
+			assertEquals(Double.parseDouble(numbers[i]), obj.verts[i], 0);
+		}
+	}
+
+	@Test
+	public void vertexWithoutNumberNamesLine() throws IOException {
+		IOException e = assertThrows(IOException.class,
+				() -> read("v 0 0 0\nv 1 0 0\n# next\nv abc 1 2\nf 1 2 3\n"));
+		assertTrue(e.getMessage().contains(":4:"));
+		e = assertThrows(IOException.class,
+				() -> read("v 0 0 0\nv 1 0\nv 0 1 0\nf 1 2 3\n"));
+		assertTrue(e.getMessage().contains(":2:"));
+	}
+
+	@Test
+	public void badFaceIndexIsRejected() {
+		assertThrows(IOException.class,
+				() -> read("v 0 0 0\nv 1 0 0\nv 0 1 0\nf 1 2 4\n"));
+		assertThrows(IOException.class,
+				() -> read("v 0 0 0\nv 1 0 0\nv 0 1 0\nf 1 2 -4\n"));
+	}
+
+	@Test
+	public void chunksAreJoinedInOrder() throws IOException {
+		// several chunks, with relative indices counting back over chunk
+		// boundaries
+		int size = (int) (3 * ObjReader.CHUNK_SIZE / 40);
+		Path file = dir.resolve("big.obj");
+		try (BufferedWriter out = Files.newBufferedWriter(file,
+				StandardCharsets.US_ASCII)) {
+			for (int i = 0; i < size; i++) {
+				out.write("v " + i + " " + (i % 7) + " -" + i + ".5\n");
+				if (i >= 2) {
+					out.write(i % 2 == 0 ? "f -3 -2 -1\n"
+							: "f " + (i - 1) + " " + i + " " + (i + 1) + "\n");
+				}
+			}
+		}
+		assertTrue(Files.size(file) > 2 * ObjReader.CHUNK_SIZE);
+
+		ObjReader obj = new ObjReader(file.toString());
+		assertEquals(size, obj.numVerts);
+		assertEquals(size - 2, obj.numFaces);
+		for (int i = 0; i < size; i++) {
+			assertEquals(i, obj.verts[3 * i], 0);
+			assertEquals(i % 7, obj.verts[3 * i + 1], 0);
+			assertEquals(-i - 0.5, obj.verts[3 * i + 2], 0);
+		}
+		for (int f = 0; f < size - 2; f++) {
+			assertEquals(f, obj.faces[3 * f]);
+			assertEquals(f + 1, obj.faces[3 * f + 1]);
+			assertEquals(f + 2, obj.faces[3 * f + 2]);
+		}
+	}
+
+	/**
+	 * Read an .obj file holding text
+	 */
+	private ObjReader read(String text) throws IOException {
+		Path file = Files.createTempFile(dir, "mesh", ".obj");
+		Files.write(file, text.getBytes(StandardCharsets.US_ASCII));
+		return new ObjReader(file.toString());
+	}
+}
@@ -0,0 +1,113 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.util.ArrayList;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Renders with Triangle.SINGLE match renders in double precision to within
+ * the rounding of float geometry. The precision is fixed once Triangle is
+ * loaded, so each mode renders the tile in its own JVM (see main).
+ *
+ * @author Jeremy Parker Yang
+ *
+ */
+public class SinglePrecisionTest {
+
+	// tile of the default scene, on the cube and the plane
+	final static int X0 = 304;
+	final static int Y0 = 208;
+	final static int SIZE = 16;
+	final static int SAMPLES = 2; // samples per pixel
+
+	// largest difference of a pixel value, relative to the value, as
+	// measured when float geometry was added
+	final static double TOLERANCE = 1.2e-7;
+
+	@TempDir
+	Path dir;
+
+	@Test
+	public void floatRenderMatchesDouble() throws Exception {
+		double[] d = render(false);
+		double[] f = render(true);
+		assertEquals(d.length, f.length);
+		for (int i = 0; i < d.length; i++) {
+			assertEquals(d[i], f[i], TOLERANCE * Math.abs(d[i]),
+					"value " + i);
+		}
+	}
+
+	/**
+	 * Render the tile in a new JVM
+	 *
+	 * @param single true for float geometry
+	 * @return rgb of each pixel of the tile, row by row
+	 */
+	private double[] render(boolean single) throws Exception {
+		Path out = dir.resolve(single ? "single" : "double");
+		ArrayList<String> cmd = new ArrayList<>();
+		cmd.add(System.getProperty("java.home") + "/bin/java");
+		cmd.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+		cmd.add("-Dsingle=" + single);
+		cmd.add("-cp");
+		cmd.add(System.getProperty("java.class.path"));
+		cmd.add(SinglePrecisionTest.class.getName());
+		cmd.add(out.toString());
+		Process p = new ProcessBuilder(cmd).inheritIO().start();
+		assertEquals(0, p.waitFor());
+
+		double[] rgb = new double[3 * SIZE * SIZE];
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(out.toFile())))) {
+			for (int i = 0; i < rgb.length; i++) {
+				rgb[i] = in.readDouble();
+			}
+		}
+		return rgb;
+	}
+
+	/**
+	 * Render the tile with the precision of this JVM
+	 *
+	 * @param args file to write the rgb of each pixel to
+	 */
+	public static void main(String[] args) throws IOException {
+		Camera.loadScene();
+		Film film = new Film(Camera.WIDTH, Camera.HEIGHT);
+		Ray[] rays = Ray.array(Camera.MAX_BOUNCES + 1);
+		Sampler sampler = Sampler.create(Camera.SAMPLER, Camera.SEED);
+		double[] color = new double[3];
+		double[][] camRotMat = Vector3.getRotMat(Camera.CAM_ROT);
+		for (int y = Y0; y < Y0 + SIZE; y++) {
+			for (int x = X0; x < X0 + SIZE; x++) {
+				for (int k = 0; k < SAMPLES; k++) {
+					Camera.samplePixel(film, x, y, rays, sampler, color,
+							camRotMat);
+				}
+			}
+		}
+		Camera.flush(film, rays, sampler, color);
+
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(args[0])))) {
+			for (int y = Y0; y < Y0 + SIZE; y++) {
+				for (int x = X0; x < X0 + SIZE; x++) {
+					for (int c = 0; c < 3; c++) {
+						out.writeDouble(film.get(x, y, c));
+					}
+				}
+			}
+		}
+	}
+}